@@ -0,0 +1,117 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte buffers, by capacity, so that connections that come and go do
+ * not each allocate (and leave for the garbage collector) their own large
+ * network and application buffers.
+ * 
+ * @see SecureChannel
+ * @see WriteBehind
+ */
+class BufferPool
+{
+    /**
+     * Maximum number of idle buffers kept per capacity.
+     */
+    private static final int MAXIDLE = 64;
+
+    /**
+     * Smallest capacity handed out by {@link #acquireAtLeast(int)}.
+     */
+    private static final int MINCAPACITY = 1024;
+
+    private static class Pool
+    {
+        private final ConcurrentLinkedQueue<ByteBuffer> idle =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    private static final ConcurrentHashMap<Integer, Pool> pools =
+        new ConcurrentHashMap<Integer, Pool>();
+
+    private BufferPool()
+    {
+    }
+
+    private static Pool pool(int capacity)
+    {
+        Pool pool = pools.get(capacity);
+        if (pool == null)
+        {
+            Pool newPool = new Pool();
+            pool = pools.putIfAbsent(capacity, newPool);
+            if (pool == null)
+                pool = newPool;
+        }
+        return pool;
+    }
+
+    /**
+     * @param capacity the capacity of the wanted buffer.
+     * @return a cleared buffer of the given capacity, pooled if available.
+     */
+    static ByteBuffer acquire(int capacity)
+    {
+        Pool pool = pool(capacity);
+        ByteBuffer buffer = pool.idle.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(capacity);
+        pool.size.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param bytes the number of bytes the wanted buffer must hold.
+     * @return a cleared buffer with room for them, of a power of 2 capacity
+     *         so that buffers of varying sizes are pooled together.
+     */
+    static ByteBuffer acquireAtLeast(int bytes)
+    {
+        int capacity = MINCAPACITY;
+        while (capacity < bytes)
+            capacity <<= 1;
+        return acquire(capacity);
+    }
+
+    /**
+     * Return a buffer to the pool. It must no longer be used by the caller.
+     * 
+     * @param buffer the buffer to return, ignored when null.
+     */
+    static void release(ByteBuffer buffer)
+    {
+        if (buffer == null)
+            return;
+        Pool pool = pool(buffer.capacity());
+        if (pool.size.incrementAndGet() > MAXIDLE)
+        {
+            pool.size.decrementAndGet();
+            return;
+        }
+        pool.idle.offer(buffer);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * A range of bytes compared by content, to look up received values (URIs,
+ * session-ids) in maps without decoding them first.
+ * <P>
+ * A slice used as key in a map should not be changed, only a probe used for
+ * lookups is {@link #set(byte[], int, int) set} again.
+ */
+final class ByteSlice
+{
+    private byte[] data;
+
+    private int offset;
+
+    private int length;
+
+    private int hash;
+
+    /**
+     * @param data the bytes, not copied.
+     * @param offset where the slice starts.
+     * @param length the number of bytes.
+     */
+    ByteSlice(byte[] data, int offset, int length)
+    {
+        set(data, offset, length);
+    }
+
+    /**
+     * @param data the bytes, not copied.
+     */
+    ByteSlice(byte[] data)
+    {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Point at another range of bytes.
+     *
+     * @param data the bytes, not copied.
+     * @param offset where the slice starts.
+     * @param length the number of bytes.
+     */
+    void set(byte[] data, int offset, int length)
+    {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        int h = 1;
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + data[i];
+        hash = h;
+    }
+
+    /**
+     * @return a slice of its own copy of the bytes, to keep.
+     */
+    ByteSlice copy()
+    {
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, offset, bytes, 0, length);
+        return new ByteSlice(bytes);
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof ByteSlice))
+            return false;
+        ByteSlice other = (ByteSlice) obj;
+        if (other.hash != hash || other.length != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (data[offset + i] != other.data[other.offset + i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(data, offset, length, TextUtils.latin1);
+    }
+}
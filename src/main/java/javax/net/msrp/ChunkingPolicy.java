@@ -0,0 +1,244 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+/**
+ * Decides how much of an outgoing message goes in each SEND transaction
+ * (chunk).
+ * <P>
+ * A chunk ends with the continuation flag '+', the rest of the message is
+ * queued again behind the messages queued meanwhile: bounded chunks let small
+ * messages through during a large transfer, and make the units that responses
+ * and reports are about. A chunk may still end earlier, when it is
+ * interrupted.
+ *
+ * @see Stack#setChunkingPolicy(ChunkingPolicy)
+ * @see Session#setChunkingPolicy(ChunkingPolicy)
+ */
+public abstract class ChunkingPolicy
+{
+    /** A single chunk per message, the default. */
+    public static final ChunkingPolicy NONE = new ChunkingPolicy()
+        {
+            @Override
+            public long nextChunkSize(OutgoingMessage message)
+            {
+                return 0;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "ChunkingPolicy[none]";
+            }
+        };
+
+    /**
+     * @param message the message of which the next chunk is made.
+     * @return the maximum number of content bytes of the chunk, 0 for the
+     * 			rest of the message.
+     */
+    public abstract long nextChunkSize(OutgoingMessage message);
+
+    /**
+     * Told of each 200 response to a chunk sent with this policy.
+     *
+     * @param message the message of the chunk.
+     * @param chunkSize the number of content bytes of the chunk.
+     * @param rttNanos the time from the end of the chunk to its response, in
+     * 			nanoseconds.
+     */
+    public void responseReceived(OutgoingMessage message, long chunkSize,
+                                 long rttNanos)
+    {
+        /* no feedback used */;
+    }
+
+    /**
+     * Give a new session its policy, from the default one of the stack.
+     * Policies that learn from the responses return a copy that starts
+     * afresh, so sessions do not share their measurements.
+     *
+     * @return this policy, keeping no state.
+     * @see Stack#setChunkingPolicy(ChunkingPolicy)
+     */
+    public ChunkingPolicy newInstance()
+    {
+        return this;
+    }
+
+    /**
+     * Chunks of a fixed number of bytes.
+     */
+    public static class BySize
+        extends ChunkingPolicy
+    {
+        private final long chunkSize;
+
+        /**
+         * @param chunkSize the number of content bytes per chunk.
+         * @throws IllegalArgumentException if not positive.
+         */
+        public BySize(long chunkSize)
+        {
+            if (chunkSize <= 0)
+                throw new IllegalArgumentException("Invalid chunk size");
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public long nextChunkSize(OutgoingMessage message)
+        {
+            return chunkSize;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ChunkingPolicy[size " + chunkSize + "]";
+        }
+    }
+
+    /**
+     * Each message of known size in a fixed number of chunks, of at least a
+     * minimum size.
+     */
+    public static class ByCount
+        extends ChunkingPolicy
+    {
+        private final int chunks;
+
+        private final long minChunkSize;
+
+        /**
+         * @param chunks the number of chunks per message.
+         * @param minChunkSize the number of content bytes under which a
+         * 			chunk is not split further.
+         * @throws IllegalArgumentException if not positive.
+         */
+        public ByCount(int chunks, long minChunkSize)
+        {
+            if (chunks <= 0 || minChunkSize <= 0)
+                throw new IllegalArgumentException("Invalid chunk count");
+            this.chunks = chunks;
+            this.minChunkSize = minChunkSize;
+        }
+
+        @Override
+        public long nextChunkSize(OutgoingMessage message)
+        {
+            long size = message.getSize();
+            if (size <= 0)
+                return 0;
+            return Math.max(minChunkSize, (size + chunks - 1) / chunks);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ChunkingPolicy[" + chunks + " chunks]";
+        }
+    }
+
+    /**
+     * Chunks sized after the time their responses take: a response delayed
+     * beyond the target means the chunks fill the path faster than it drains,
+     * the chunks shrink; a quicker response lets them grow, by at most half or
+     * double per response. The round-trip time is smoothed as TCP does
+     * (1/8 of each new sample).
+     * <P>
+     * The sizes are kept per instance: each session set up with the default
+     * policy of the stack gets a copy of its own.
+     */
+    public static class Adaptive
+        extends ChunkingPolicy
+    {
+        private final long targetNanos;
+
+        private final long minChunkSize;
+
+        private final long maxChunkSize;
+
+        private long chunkSize;
+
+        /** Smoothed round-trip time, 0 until measured */
+        private long srtt = 0;
+
+        /**
+         * @param targetMillis the response time to size the chunks for, in
+         * 			milliseconds.
+         * @param minChunkSize the smallest chunk, also the first one.
+         * @param maxChunkSize the largest chunk.
+         * @throws IllegalArgumentException on values not positive or a
+         * 			minimum above the maximum.
+         */
+        public Adaptive(long targetMillis, long minChunkSize, long maxChunkSize)
+        {
+            if (targetMillis <= 0 || minChunkSize <= 0 ||
+                minChunkSize > maxChunkSize)
+                throw new IllegalArgumentException("Invalid adaptive chunking");
+            this.targetNanos = targetMillis * 1000000L;
+            this.minChunkSize = minChunkSize;
+            this.maxChunkSize = maxChunkSize;
+            chunkSize = minChunkSize;
+        }
+
+        /**
+         * @return a policy of the same settings, starting from the minimum
+         * 			chunk size.
+         */
+        @Override
+        public ChunkingPolicy newInstance()
+        {
+            return new Adaptive(targetNanos / 1000000L, minChunkSize,
+                                maxChunkSize);
+        }
+
+        @Override
+        public synchronized long nextChunkSize(OutgoingMessage message)
+        {
+            return chunkSize;
+        }
+
+        @Override
+        public synchronized void responseReceived(OutgoingMessage message,
+                                            long chunkSize, long rttNanos)
+        {
+            if (rttNanos <= 0)
+                rttNanos = 1;
+            srtt = srtt == 0 ? rttNanos : srtt + (rttNanos - srtt) / 8;
+            long size = (long) (this.chunkSize * ((double) targetNanos / srtt));
+            size = Math.max(this.chunkSize / 2, Math.min(this.chunkSize * 2, size));
+            this.chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+        }
+
+        /**
+         * @return the smoothed response time, in milliseconds.
+         */
+        public synchronized long getRoundTripMillis()
+        {
+            return srtt / 1000000L;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "ChunkingPolicy[adaptive " + chunkSize + " bytes, rtt " +
+                getRoundTripMillis() + " ms]";
+        }
+    }
+}
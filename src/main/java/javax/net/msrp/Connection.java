@@ -19,23 +19,29 @@ package javax.net.msrp;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
+import java.security.NoSuchAlgorithmException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Observable;
-import java.util.Random;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.msrp.exceptions.ConnectionLostException;
 import javax.net.msrp.exceptions.ParseException;
 import javax.net.msrp.exceptions.ConnectionReadException;
 import javax.net.msrp.exceptions.ConnectionWriteException;
 import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.utils.IdGenerator;
 import javax.net.msrp.utils.NetworkUtils;
 import javax.net.msrp.utils.TextUtils;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +50,10 @@ import org.slf4j.LoggerFactory;
 /**
  * This class represents an MSRP connection.
  * 
- * It has one pair of threads associated for writing and reading.
- * 
+ * It has one pair of threads associated for writing and reading, or, when the
+ * stack runs a {@link Reactor}, is serviced by one of the reactor's event
+ * loops.
+ *
  * It is also responsible for some parsing, including:
  * Identifying MSRP transaction requests and responses;
  * Pre-parsing - identifying what is the content of the transaction from what isn't;
@@ -61,11 +69,20 @@ class Connection extends Observable implements Runnable
 
     public static final int OUTPUTBUFFERLENGTH = 2048;
 
+    /**
+     * Maximum number of bytes and buffers in the batch written by one
+     * gathering write.
+     * 
+     * @see Stack#setGatheringWrites(boolean)
+     */
+    private static final int GATHERBATCHBYTES = 64 * 1024;
+
+    private static final int GATHERBATCHBUFFERS = 64;
+
     public Connection(SocketChannel newSocketChannel)
         throws URISyntaxException
     {
         socketChannel = newSocketChannel;
-        random = new Random();
         Socket socket = socketChannel.socket();
         URI newLocalURI =
             new URI("msrp", null, socket.getInetAddress().getHostAddress(),
@@ -76,6 +93,32 @@ class Connection extends Observable implements Runnable
 
     }
 
+    /**
+     * Create a connection for an accepted socket.
+     * 
+     * @param newSocketChannel the accepted socket.
+     * @param secure use TLS (msrps), as server.
+     * @throws URISyntaxException there was a problem generating the connection
+     *             dependent part of the URI
+     * @throws IOException if TLS could not be set up.
+     */
+    Connection(SocketChannel newSocketChannel, boolean secure)
+        throws URISyntaxException, IOException
+    {
+        this(newSocketChannel);
+        if (Stack.isTcpNoDelay())
+            setTcpNoDelay(true);
+        if (secure)
+        {
+            this.secure = true;
+            localURI = new URI(SECURESCHEME, null, localURI.getHost(),
+                            localURI.getPort(), null, null, null);
+            SSLEngine engine = newEngine(null, 0);
+            engine.setUseClientMode(false);
+            secureChannel = new SecureChannel(socketChannel, engine);
+        }
+    }
+
     /**
      * Create a new connection object.
      * This connection will create a socket and bind itself to a free port.
@@ -88,8 +131,26 @@ class Connection extends Observable implements Runnable
      */
     public Connection(InetAddress address) throws URISyntaxException, IOException
     {
+        this(address, false);
+    }
+
+    /**
+     * Create a new connection object.
+     * This connection will create a socket and bind itself to a free port.
+     * 
+     * @param address hostname/IP used to bound the new MSRP socket
+     * @param secure use TLS (msrps) once connected.
+     * @throws URISyntaxException there was a problem generating the connection
+     *             dependent part of the URI
+     * @throws IOException if there was a problem with the creation of the
+     *             socket
+     * @see Stack#setSSLContext(SSLContext)
+     */
+    Connection(InetAddress address, boolean secure)
+        throws URISyntaxException, IOException
+    {
+        this.secure = secure;
         transactionManager = new TransactionManager(this);
-        random = new Random();
         // activate the connection:
 
         if (NetworkUtils.isLinkLocalIPv4Address(address))
@@ -106,7 +167,8 @@ class Connection extends Observable implements Runnable
         // fill the localURI variable that contains the uri parts that are
         // associated with this connection (scheme[protocol], host and port)
         URI newLocalURI =
-            new URI("msrp", null, address.getHostAddress(), socket.getLocalPort(),
+            new URI(secure ? SECURESCHEME : "msrp", null,
+            		address.getHostAddress(), socket.getLocalPort(),
             		null, null, null);
         localURI = newLocalURI;
         // this.addObserver(transactionManager);
@@ -126,7 +188,85 @@ class Connection extends Observable implements Runnable
 
     private SocketChannel socketChannel = null;
 
-    protected Random random;
+    /**
+     * URI scheme of connections using TLS.
+     */
+    static final String SECURESCHEME = "msrps";
+
+    /**
+     * Use TLS on this connection?
+     */
+    private boolean secure = false;
+
+    /**
+     * TLS on top of the socket channel, set once connected when secure.
+     */
+    private SecureChannel secureChannel = null;
+
+    /**
+     * @return a new engine from the TLS context of the stack.
+     * @param host the peer host, null when unknown (server). Engines created
+     *            for the same peer can resume sessions.
+     * @param port the peer port.
+     * @throws IOException if no TLS context is available.
+     * @see Stack#getSSLContext()
+     */
+    private static SSLEngine newEngine(String host, int port)
+        throws IOException
+    {
+        SSLContext context;
+        try
+        {
+            context = Stack.getSSLContext();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            IOException ioe = new IOException("No TLS context available");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        return host == null ? context.createSSLEngine() :
+                              context.createSSLEngine(host, port);
+    }
+
+    /**
+     * @return true if this connection uses TLS (msrps).
+     */
+    protected boolean isSecure()
+    {
+        return secure;
+    }
+
+    /**
+     * @return the socket channel of this connection.
+     */
+    SocketChannel getSocketChannel()
+    {
+        return socketChannel;
+    }
+
+    /**
+     * @return the TLS channel of this connection, null when not secure or not
+     *         connected yet.
+     */
+    SecureChannel getSecureChannel()
+    {
+        return secureChannel;
+    }
+
+    /**
+     * @return the channel data is written to.
+     */
+    private GatheringByteChannel outputChannel()
+    {
+        return secureChannel != null ? secureChannel : socketChannel;
+    }
+
+    private int read(ByteBuffer dst) throws IOException
+    {
+        return secureChannel != null ? secureChannel.read(dst) :
+                                       socketChannel.read(dst);
+    }
 
     protected URI localURI = null;
 
@@ -154,6 +294,28 @@ class Connection extends Observable implements Runnable
         return socketChannel.isConnected();
     }
 
+    /**
+     * Check, without waiting, that an established connection that was not
+     * started yet can still be used: the peer did not close it, nor sent
+     * anything on it (nothing is expected before our first request).
+     * 
+     * @return true if the connection is open and nothing was received.
+     */
+    boolean isIdleOpen()
+    {
+        try
+        {
+            socketChannel.configureBlocking(false);
+            int read = socketChannel.read(ByteBuffer.allocate(1));
+            socketChannel.configureBlocking(true);
+            return read == 0;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
     /**
      * 
      * @return returns the associated local uri (relevant parts of the uri for
@@ -199,52 +361,17 @@ class Connection extends Observable implements Runnable
      * @throws URISyntaxException @see java.net.URI
      */
     protected URI newUri() throws URISyntaxException {
-        byte[] randomBytes = new byte[8];
-
-        generateRandom(randomBytes);
+        String sessionId = IdGenerator.SESSION.next();
 
         if (logger.isTraceEnabled())
-	        logger.trace("Random bytes generated: "
-	            + (new String(randomBytes, TextUtils.utf8))
-	            + ":END");
+	        logger.trace("Session-id generated: " + sessionId + ":END");
 
         // Generate new using current local URI.
         return
             new URI(localURI.getScheme(), localURI.getUserInfo(),
             		localURI.getHost(), localURI.getPort(),
-            		 "/" + (new String(randomBytes, TextUtils.utf8))
-            		 + ";tcp", localURI.getQuery(), localURI.getFragment());
-    }
-
-    // TODO: IMPROVE add the rest of the unreserved characters according rfc3986 (-._~)
-    // TODO: IMPROVE speed by not doing so much calls to the Random class
-    /**
-     * Generates a number of random alpha-numeric codes in US-ASCII
-     * 
-     * @param byteArray	array that receives the newly generated bytes.
-     *            	The number of generated bytes is given by the length of
-     *            	the array.
-     */
-    protected void generateRandom(byte[] byteArray)
-    {
-        random.nextBytes(byteArray);
-        for (int i = 0; i < byteArray.length; i++)
-        {
-            if (byteArray[i] < 0)
-                byteArray[i] *= -1;
-
-            while (!((byteArray[i] >= 65 && byteArray[i] <= 90)
-                || (byteArray[i] >= 97 && byteArray[i] <= 122)
-                || (byteArray[i] <= 57 && byteArray[i] >= 48)))
-            {
-                if (byteArray[i] > 122)
-                    byteArray[i] -= random.nextInt(byteArray[i]);
-                if (byteArray[i] < 48)
-                    byteArray[i] += random.nextInt(5);
-                else
-                    byteArray[i] += random.nextInt(10);
-            }
-        }
+            		 "/" + sessionId + ";tcp", localURI.getQuery(),
+            		 localURI.getFragment());
     }
 
     /**
@@ -291,9 +418,17 @@ class Connection extends Observable implements Runnable
     	if (closing)
     		return;						// already closed
     	closing = true;
+    	signalWriteCycle(false);
+    	if (transactionManager != null)
+    		transactionManager.getFlowControl().close();
+    	WriteBehind wb = writeBehind;
+    	if (wb != null)
+    		wb.close();
     	try
     	{
-    		if (socketChannel != null)
+    		if (secureChannel != null)
+    			secureChannel.close();
+    		else if (socketChannel != null)
     			socketChannel.close();
 		}
     	catch (IOException e) { /* empty */; }
@@ -358,8 +493,38 @@ class Connection extends Observable implements Runnable
     protected volatile boolean closing = false; // connection closing?
 
     private Thread writeThread = null;
+
+    /**
+     * Lock and condition the write cycle waits on while there is nothing to
+     * send. Not a monitor, so a write cycle running on a virtual thread does
+     * not pin its carrier while waiting.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Condition writeSignal = writeLock.newCondition();
+
+    /**
+     * Data was queued since the write cycle last went to sleep. Set under the
+     * {@link #writeLock} so a notification given before the write cycle
+     * waits is never lost.
+     */
+    private boolean writePending = false;
+
     private Thread readThread = null;
 
+    /**
+     * The batch written by gathering writes, null if this connection copies
+     * the outgoing data into an output array instead.
+     * 
+     * @see Stack#setGatheringWrites(boolean)
+     */
+    private OutputBatch outputBatch = null;
+
+    /**
+     * Number of writes done on the channel, for statistics.
+     */
+    private volatile long writeCount = 0;
+
     private void writeCycle() throws ConnectionWriteException
     {
         /*
@@ -368,15 +533,39 @@ class Connection extends Observable implements Runnable
          */
         Thread.currentThread().setName("Connection: " + localURI + " writeCycle thread");
 
-        byte[] outData = new byte[OUTPUTBUFFERLENGTH];
+        long coalesceNanos = Stack.getCoalesceMicros() * 1000L;
+        int coalesceBytes = Stack.getCoalesceBytes();
+        byte[] outData = new byte[coalesceNanos > 0 ?
+        		Math.max(OUTPUTBUFFERLENGTH, coalesceBytes) : OUTPUTBUFFERLENGTH];
         ByteBuffer outByteBuffer = ByteBuffer.wrap(outData);
+        if (Stack.isGatheringWrites())
+            outputBatch = new OutputBatch(GATHERBATCHBUFFERS, GATHERBATCHBYTES,
+            							  secureChannel == null);
 
         int wroteNrBytes = 0;
         while (!closing)
         {
             try
             {
-                if (transactionManager.hasDataToSend())
+                if (transactionManager.hasDataToSend() && outputBatch != null)
+                {
+                    outputBatch.clear();
+                    transactionManager.getDataToSend(outputBatch);
+                    if (coalesceNanos > 0)
+                    {
+                        long deadline = System.nanoTime() + coalesceNanos;
+                        while (!outputBatch.isFull() &&
+                               outputBatch.size() < coalesceBytes &&
+                               awaitDataToSend(deadline))
+                            transactionManager.getDataToSend(outputBatch);
+                    }
+                    while (outputBatch.hasRemaining())
+                    {
+                        outputBatch.writeTo(outputChannel());
+                        writeCount++;
+                    }
+                }
+                else if (transactionManager.hasDataToSend())
                 {
                     int toWriteNrBytes;
 
@@ -385,18 +574,35 @@ class Connection extends Observable implements Runnable
                     // FIXME remove comment and change method name after the
                     // tests go well
                     toWriteNrBytes = transactionManager.getDataToSend(outData);
+                    if (coalesceNanos > 0)
+                    {
+                        long deadline = System.nanoTime() + coalesceNanos;
+                        while (toWriteNrBytes < coalesceBytes &&
+                               awaitDataToSend(deadline))
+                            toWriteNrBytes += transactionManager.getDataToSend(
+                            						outData, toWriteNrBytes);
+                    }
 
                     outByteBuffer.limit(toWriteNrBytes);
                     wroteNrBytes = 0;
                     while (wroteNrBytes != toWriteNrBytes)
-                        wroteNrBytes += socketChannel.write(outByteBuffer);
+                    {
+                        wroteNrBytes += outputChannel().write(outByteBuffer);
+                        writeCount++;
+                    }
                 }
                 else
                 {
-                    // TODO FIXME do this in another way, maybe with notify!
-                    synchronized (writeThread)
+                    writeLock.lock();
+                    try
                     {
-                        writeThread.wait(200);
+                        while (!writePending && !closing)
+                            writeSignal.await();
+                        writePending = false;
+                    }
+                    finally
+                    {
+                        writeLock.unlock();
                     }
                 }
             }
@@ -408,6 +614,63 @@ class Connection extends Observable implements Runnable
         }
     }
 
+    /**
+     * Coalescing: wait for more data to be queued, up to the given deadline.
+     * 
+     * @param deadline the {@link System#nanoTime()} to stop waiting at.
+     * @return true if there is data to send.
+     * @throws InterruptedException when interrupted while waiting.
+     * @see Stack#setCoalesceMicros(int)
+     */
+    private boolean awaitDataToSend(long deadline) throws InterruptedException
+    {
+        writeLock.lock();
+        try
+        {
+            while (!transactionManager.hasDataToSend() && !closing)
+            {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                writeSignal.awaitNanos(left);
+            }
+            return !closing;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of writes done on the channel so far.
+     */
+    long getWriteCount()
+    {
+        return writeCount;
+    }
+
+    /**
+     * Enable or disable Nagle's algorithm on this connection.
+     * 
+     * @param noDelay true to set TCP_NODELAY.
+     * @throws SocketException if the option could not be set.
+     * @see Stack#setTcpNoDelay(boolean)
+     */
+    void setTcpNoDelay(boolean noDelay) throws SocketException
+    {
+        socketChannel.socket().setTcpNoDelay(noDelay);
+    }
+
+    /**
+     * @return true if TCP_NODELAY is set on this connection.
+     * @throws SocketException if the option could not be read.
+     */
+    boolean getTcpNoDelay() throws SocketException
+    {
+        return socketChannel.socket().getTcpNoDelay();
+    }
+
     /**
      * Used to pre-parse the received data by the read cycle
      * 
@@ -426,7 +689,10 @@ class Connection extends Observable implements Runnable
             inByteBuffer.clear();
             try
             {
-                readNrBytes = socketChannel.read(inByteBuffer);
+                WriteBehind wb = writeBehind;
+                if (wb != null)
+                    wb.awaitRoom();
+                readNrBytes = read(inByteBuffer);
 
                 if (readNrBytes != -1 && readNrBytes != 0)
                 {
@@ -442,6 +708,232 @@ class Connection extends Observable implements Runnable
         }
     }
 
+    /*
+     * Reactor mode: the event loop servicing this connection and the
+     * connection's registration on it. Only touched by the loop thread, except
+     * for the (volatile) event loop reference used to route write requests.
+     */
+    private volatile Reactor.EventLoop eventLoop = null;
+
+    private SelectionKey selectionKey = null;
+
+    /**
+     * Reactor mode: data fetched from the transaction manager that could not
+     * be written yet because the socket buffer was full.
+     */
+    private ByteBuffer pendingOutput = null;
+
+    /**
+     * Maximum number of output buffers written per write readiness event,
+     * so that one busy connection does not starve the others on its loop.
+     */
+    private static final int MAXWRITESPEREVENT = 16;
+
+    /**
+     * Register this (connected) connection with the given reactor event loop.
+     * Must be called from the loop thread.
+     *
+     * @param loop the event loop that will service this connection
+     * @param selector the selector of that loop
+     * @throws IOException if the channel could not be registered
+     */
+    void registerWith(Reactor.EventLoop loop, Selector selector)
+        throws IOException
+    {
+        socketChannel.configureBlocking(false);
+        selectionKey = socketChannel.register(selector, SelectionKey.OP_READ,
+                                              this);
+        pendingOutput = ByteBuffer.allocate(OUTPUTBUFFERLENGTH);
+        pendingOutput.flip();
+        if (Stack.isGatheringWrites())
+            outputBatch = new OutputBatch(GATHERBATCHBUFFERS, GATHERBATCHBYTES,
+            							  secureChannel == null);
+        eventLoop = loop;
+        /* anything queued before we got here is written now */
+        if (transactionManager.hasDataToSend())
+            enableWriteInterest();
+    }
+
+    /**
+     * Reactor mode: read what is available and pre-parse it.
+     *
+     * @param inByteBuffer the buffer to read into
+     * @throws ConnectionReadException if reading or parsing failed, or the
+     * 			peer closed the connection.
+     */
+    void readReady(ByteBuffer inByteBuffer) throws ConnectionReadException
+    {
+        try
+        {
+            int readNrBytes;
+            do
+            {
+                inByteBuffer.clear();
+                readNrBytes = read(inByteBuffer);
+                if (readNrBytes == -1)	// end of stream, the connection is lost
+                    throw new EOFException("Connection closed by the peer");
+                else if (readNrBytes > 0)
+                {
+                    preParser.preParse(inByteBuffer.array(), readNrBytes);
+                    WriteBehind wb = writeBehind;
+                    if (wb != null && wb.pauseReadingIfFull())
+                    {
+                        selectionKey.interestOps(
+                            selectionKey.interestOps() & ~SelectionKey.OP_READ);
+                        break;
+                    }
+                }
+            }					/* TLS may hold more than fitted the buffer */
+            while (secureChannel != null && readNrBytes > 0);
+            if (secureChannel != null && (secureChannel.hasPendingOutput() ||
+                                          secureChannel.takeHandshakeNews()))
+                enableWriteInterest();
+        }
+        catch (Exception e)
+        {
+            if (!closing)
+                throw new ConnectionReadException(e);
+        }
+    }
+
+    /**
+     * Reactor mode: write pending output and whatever the transaction manager
+     * has to send until either the socket buffer is full or there is nothing
+     * left, in which case write interest is dropped.
+     *
+     * @throws ConnectionWriteException if writing failed
+     */
+    void writeReady() throws ConnectionWriteException
+    {
+        try
+        {
+            if (secureChannel != null)
+            {
+                if (!secureChannel.handshake())
+                    return;			// socket buffer full, wait for next event
+                if (!secureChannel.isHandshakeDone())
+                {					// reading resumes writing once done
+                    selectionKey.interestOps(
+                        selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            for (int i = 0; i < MAXWRITESPEREVENT; i++)
+            {
+                while (outputBatch != null && outputBatch.hasRemaining())
+                {
+                    writeCount++;
+                    if (outputBatch.writeTo(outputChannel()) == 0)
+                        return;		// socket buffer full, wait for next event
+                }
+                if (pendingOutput.hasRemaining())
+                {
+                    writeCount++;
+                    outputChannel().write(pendingOutput);
+                    if (pendingOutput.hasRemaining())
+                        return;		// socket buffer full, wait for next event
+                }
+                if (secureChannel != null && secureChannel.hasPendingOutput())
+                    return;			// socket buffer full, wait for next event
+                if (!transactionManager.hasDataToSend())
+                {
+                    selectionKey.interestOps(
+                        selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (outputBatch != null)
+                {
+                    outputBatch.clear();
+                    transactionManager.getDataToSend(outputBatch);
+                    continue;
+                }
+                pendingOutput.clear();
+                pendingOutput.limit(
+                    transactionManager.getDataToSend(pendingOutput.array()));
+            }
+        }
+        catch (Exception e)
+        {
+            if (!closing)
+                throw new ConnectionWriteException(e);
+        }
+    }
+
+    /**
+     * Reactor mode: read again, after the write-behind stage paused reading.
+     * 
+     * @see WriteBehind#pauseReadingIfFull()
+     */
+    void resumeReading()
+    {
+        final Reactor.EventLoop loop = eventLoop;
+        if (loop == null)
+            return;
+        loop.execute(new Runnable()
+        {
+            public void run()
+            {
+                if (selectionKey.isValid())
+                    selectionKey.interestOps(
+                        selectionKey.interestOps() | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * Write-behind stage storing received file data, created on first use.
+     */
+    private volatile WriteBehind writeBehind = null;
+
+    /**
+     * @return the write-behind stage of this connection, null when disabled.
+     * @see Stack#setWriteBehindBytes(int)
+     */
+    WriteBehind getWriteBehind()
+    {
+        /* only called while parsing, by the reading thread or event loop */
+        if (writeBehind == null && Stack.getWriteBehindBytes() > 0)
+            writeBehind = new WriteBehind(this, Stack.getWriteBehindBytes());
+        return writeBehind;
+    }
+
+    /**
+     * Notify the observers (the transaction manager) of a received
+     * transaction. Queued behind the data still being stored by the
+     * write-behind stage, if any.
+     * 
+     * @param arg the received transaction (or its type).
+     */
+    private void notifyTransaction(final Object arg)
+    {
+        WriteBehind wb = writeBehind;
+        if (wb != null && wb.isBusy())
+        {
+            wb.execute(new Runnable()
+            {
+                public void run()
+                {
+                    setChanged();
+                    notifyObservers(arg);
+                }
+            });
+            return;
+        }
+        setChanged();
+        notifyObservers(arg);
+    }
+
+    /**
+     * Reactor mode: have the event loop write when the socket is writable.
+     * Must be called from the loop thread.
+     */
+    private void enableWriteInterest()
+    {
+        if (selectionKey.isValid())
+            selectionKey.interestOps(
+                selectionKey.interestOps() | SelectionKey.OP_WRITE);
+    }
+
     /**
      * Constantly receives and sends new transactions
      */
@@ -466,8 +958,8 @@ class Connection extends Observable implements Runnable
         if (writeThread == null && readThread == null)
         {
             writeThread = Thread.currentThread();
-            readThread = new Thread(ioOperationGroup, this);
-            readThread.setName("Connection: " + localURI + " readThread");
+            readThread = Stack.newThread(ioOperationGroup, this,
+                            "Connection: " + localURI + " readThread");
             readThread.start();
 
         }
@@ -496,6 +988,8 @@ class Connection extends Observable implements Runnable
 	 * @param t	the reason it was lost.
 	 */
 	void notifyConnectionLoss(Throwable t) {
+		if (transactionManager != null)
+			transactionManager.getFlowControl().close();
 		Collection<Session> attachedSessions = new ArrayList<Session>();
 		for (Session s : Stack.getInstance().getActiveSessions()) {
 			if (this.equals(s.getConnection()))
@@ -514,24 +1008,19 @@ class Connection extends Observable implements Runnable
 
     private Transaction incomingTransaction = null;
 
-    String getCurrentIncomingTid() {
-    	if (incomingTransaction != null)
-    		return incomingTransaction.getTID();
-    	return null;
-    }
+    /** Finds the end-line of the incoming transaction */
+    private EndLineMatcher incomingEndLine = null;
 
-    /* Find the MSRP start line.
-     * the TId has to contain at least 64 bits of randomness.
-     * 
-     * req-start = pMSRP SP transact-id SP method CRLF
-     * resp-start= pMSRP SP transact-id SP status-cdoe [SP comment CRLF
+    /** Start of a header line not ended in the last data parsed */
+    private byte[] headerCarry = null;
+
+    /**
+     * @return the end-line of the transaction being received, null if none.
      */
-    private static Pattern req_start = Pattern.compile(
-                    "(^MSRP) (\\p{Alnum}[\\p{Alnum}\\-=%+.]{3,31}) ([\\p{Upper}]{1,20})\r\n(.*)",
-                    Pattern.DOTALL);
-    private static Pattern resp_start = Pattern.compile(
-                    "(^MSRP) (\\p{Alnum}[\\p{Alnum}\\-=%+.]{3,31}) ((\\d{3})([^\r\n]*)\r\n)(.*)",
-                    Pattern.DOTALL);
+    EndLineMatcher getEndLineMatcher()
+    {
+        return incomingEndLine;
+    }
 
     /**
      * Parse the incoming data, identifying transaction start or end,
@@ -563,53 +1052,65 @@ class Connection extends Observable implements Runnable
         }
         else
         {								// We are receiving headers.
-            String incomingString =
-                new String(incomingBytes, offset, length, TextUtils.utf8);
-            String toParse = incomingString;
-            String tID;
             /*
-             * For calls containing multiple transactions in incomingString
+             * Only whole lines are parsed, so that each call starts at a line
+             * start: a line split over reads is kept for the next call.
              */
-            ArrayList<String> txRest = new ArrayList<String>();
+            byte[] data = incomingBytes;
+            int start = offset;
+            int end = offset + length;
+            String tID;
 
-            do
+            if (headerCarry != null)
+            {
+                data = new byte[headerCarry.length + length];
+                System.arraycopy(headerCarry, 0, data, 0, headerCarry.length);
+                System.arraycopy(incomingBytes, offset, data,
+                                headerCarry.length, length);
+                start = 0;
+                end = data.length;
+                headerCarry = null;
+            }
+            int lineEnd = end;
+            while (lineEnd > start + 1 &&
+                   !(data[lineEnd - 2] == '\r' && data[lineEnd - 1] == '\n'))
+                lineEnd--;
+            if (lineEnd <= start + 1)
+                lineEnd = start;
+            if (lineEnd < end)
+            {
+                if (end - lineEnd > Transaction.MAXHEADERBYTES)
+                    throw new ParseException(
+                        "Error, no line end found in " + (end - lineEnd) +
+                        " bytes of headers");
+                headerCarry = new byte[end - lineEnd];
+                System.arraycopy(data, lineEnd, headerCarry, 0, end - lineEnd);
+                end = lineEnd;
+            }
+
+            while (start < end)
             {
                 /*
-                 * Deal with reception of multiple transactions.
+                 * Deal with reception of multiple transactions: whatever
+                 * follows the end-line of one is parsed from its start-line.
                  */
-                if (txRest.size() > 0)
-                {
-                    toParse = txRest.remove(0);
-                }
-                if (txRest.size() > 0)
-                    throw new RuntimeException(
-                    		"restTransactions were never meant "
-                            + "to have more than one element!");
-
                 if (!receivingTransaction)
                 {
-                    Matcher matchRequest = req_start.matcher(toParse);
-                    Matcher matchResponse = resp_start.matcher(toParse);
+                    StartLine startLine = StartLine.parse(data, start, end);
 
-                    if (matchRequest.matches())
+                    if (startLine != null && startLine.isRequest())
                     {					// Retrieve TID and create new transaction
                         receivingTransaction = true;
-                        tID = matchRequest.group(2);
-                        toParse = matchRequest.group(4);
-                        String type = matchRequest.group(3).toUpperCase();
-                        TransactionType tType;
-                        try
-                        {
-                            tType = TransactionType.valueOf(type);
+                        tID = startLine.getTid();
+                        start = startLine.getEnd();
+                        incomingEndLine = new EndLineMatcher(tID);
+                        TransactionType tType = startLine.getType();
+                        if (tType == TransactionType.UNSUPPORTED)
+                            logger.warn("Unsupported transaction type: Tx-"
+                        			+ startLine.getMethod() + "[" + tID + "]");
+                        else
                             logger.debug(String.format(
                             		"Parsing incoming request Tx-%s[%s]", tType, tID));
-                        }
-                        catch (IllegalArgumentException iae)
-                        {
-                            tType = TransactionType.UNSUPPORTED;
-                            logger.warn("Unsupported transaction type: Tx-"
-                        			+ type + "[" + tID + "]");
-                        }
                         try
                         {
                             incomingTransaction = new Transaction(tID, tType,
@@ -626,19 +1127,18 @@ class Connection extends Observable implements Runnable
                             		"Found an unsupported transaction type for["
                                     + tID
                                     + "] signalised end and called update");
-                            setChanged();
-                            notifyObservers(tType);
+                            notifyTransaction(tType);
                             // XXX:? receivingTransaction = false;
                         }
                     }
-                    else if (matchResponse.matches())
+                    else if (startLine != null)
                     {
                         receivingTransaction = true;
-                        tID = matchResponse.group(2);
-                        int status = Integer.parseInt(matchResponse.group(4));
-                        String comment = matchResponse.group(5);
-                        if (matchResponse.group(6) != null)
-                            toParse = matchResponse.group(6);
+                        tID = startLine.getTid();
+                        int status = startLine.getStatus();
+                        String comment = startLine.getComment();
+                        start = startLine.getEnd();
+                        incomingEndLine = new EndLineMatcher(tID);
 
                         incomingTransaction =
                             transactionManager.getTransaction(tID);
@@ -666,7 +1166,8 @@ class Connection extends Observable implements Runnable
                     else
                     {
                         logger.error("Start of transaction not found while parsing:\n"
-                                + incomingString);
+                                + new String(data, start, end - start,
+                                			 TextUtils.utf8));
                         throw new ParseException(
                             "Error, start of the transaction not found on thread: "
                             + Thread.currentThread().getName());
@@ -675,90 +1176,60 @@ class Connection extends Observable implements Runnable
                 if (receivingTransaction)
                 {
                     /*
-                     * Split multiple transactions.
+                     * Split multiple transactions: look for the end-line,
+                     * anything after it is parsed next.
                      */
-                    tID = incomingTransaction.getTID();
-                    Pattern endTransaction = Pattern.compile(
-                        		"(.*)(-------" + tID.replace("+", "\\+") + ")([$+#])(\r\n)(.*)?",
-                        		Pattern.DOTALL);
-                    Matcher matcher = endTransaction.matcher(toParse);
-                    if (matcher.matches())
+                    int dataEnd = end;
+                    incomingEndLine.resetAtLineStart();
+                    int found = incomingEndLine.find(data, start, end);
+                    if (found >= 0)
                     {
                         logger.trace("found end of " + incomingTransaction);
-                        toParse = matcher.group(1) + matcher.group(2)
-                                + matcher.group(3) + matcher.group(4);
                         /*
-                         * add any remaining data to restTransactions
+                         * The CRLF before the end-line closes the headers,
+                         * but belongs to the end-line after content-stuff.
                          */
-                        if ((matcher.group(5) != null) &&
-                    		(matcher.group(5).length() > 0)) {
-                            txRest.add(matcher.group(5));
-                        }
+                        dataEnd = found - incomingEndLine.length() + 2;
+                        if (incomingTransaction.hasContentStuff)
+                            dataEnd -= 2;
+                        dataEnd = Math.max(start, dataEnd);
                     }
-                    /*
-                     * identify if transaction has content-stuff or not:
-                     * 'Content-Type 2CRLF' from formal syntax.
-                     */
-                    Pattern contentStuff = Pattern.compile(
-                    		"(.*)(Content-Type:) (" + RegEx.token
-                            + "/" + RegEx.token + ")(\r\n\r\n)(.*)",
-                            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-                    matcher = contentStuff.matcher(toParse);
-                    if (matcher.matches())
+                    else if (end - start == 2 || (end - start >= 4 &&
+                             data[end - 4] == '\r' && data[end - 3] == '\n'))
                     {
+                        /*
+                         * 'Content-Type 2CRLF' from formal syntax: the
+                         * preparser hands over the headers up to the 2CRLF
+                         * when content-stuff follows. The lines end at end,
+                         * so this is an empty line.
+                         */
                         logger.trace(incomingTransaction +
                         			" was found to have content-stuff");
                         incomingTransaction.hasContentStuff = true;
                     }
-                    if (incomingTransaction.hasContentStuff) {
-                    	// strip 1 CRLF from string to parse...
-                        endTransaction = Pattern.compile(
-                    		"(.*)(\r\n)(-------" + tID.replace("+", "\\+") + ")([$+#])(\r\n)(.*)?",
-                            Pattern.DOTALL);
+                    try
+                    {
+                        incomingTransaction.parse(data, start,
+                                            dataEnd - start, inContentStuff);
                     }
-                    matcher = endTransaction.matcher(toParse);
-
-                    if (matcher.matches())
+                    catch (Exception e)
+                    {
+                        logger.error(
+                            "Exception parsing data to a transaction:", e);
+                    }
+                    start = end;
+                    if (found >= 0)
                     {					// we have a complete end of transaction
-                        try
-                        {
-                            incomingTransaction.parse(
-                        		matcher.group(1).getBytes(TextUtils.utf8), 0,
-                                matcher.group(1).length(),
-                                inContentStuff);
-                        }
-                        catch (Exception e)
-                        {
-                            e.printStackTrace();
-                        }
-                        if (incomingTransaction.hasContentStuff)
-                            incomingTransaction
-                                .signalizeEnd(matcher.group(4).charAt(0));
-                        else
-                            incomingTransaction
-                                .signalizeEnd(matcher.group(3).charAt(0));
-
-                        setChanged();
-                        notifyObservers(incomingTransaction);
+                        incomingTransaction.signalizeEnd(
+                                            incomingEndLine.getFlag());
+                        notifyTransaction(incomingTransaction);
                         receivingTransaction = false;
-                    }
-                    else
-                    {
-                        try
-                        {
-                            incomingTransaction.parse(
-                                toParse.getBytes(TextUtils.utf8), 0, toParse.length(),
-                                inContentStuff);
-                        }
-                        catch (Exception e)
-                        {
-                            logger.error(
-	                            "Exception parsing data to a transaction:", e);
-                        }
+                        start = found;		// parse any remaining data next
                     }
                 }
+                else
+                    start = end;
             }
-            while (txRest.size() > 0);
         }
     }
 
@@ -789,9 +1260,66 @@ class Connection extends Observable implements Runnable
 //        transactionManager.presetTID = presetTidOld;
         // -- end of the code that enables a transaction test.
 
-        socketChannel.connect(remoteAddress);
+        socketChannel.socket().connect(remoteAddress,
+                                       Stack.getConnectTimeout());
+        endConnect(uri);
+        start(uri, address);
+    }
+
+    /**
+     * Start connecting without waiting for it.
+     * 
+     * @param uri the URI to connect to.
+     * @return true if the connection was established at once.
+     * @throws IOException if connecting failed.
+     * @see Connector
+     */
+    boolean beginConnect(URI uri) throws IOException
+    {
+        socketChannel.configureBlocking(false);
+        return socketChannel.connect(
+            new InetSocketAddress(uri.getHost(), uri.getPort()));
+    }
+
+    /**
+     * Set up an established connection: back to blocking and, when secure,
+     * TLS on top.
+     * 
+     * @param uri the URI connected to.
+     * @throws IOException if TLS could not be set up.
+     */
+    void endConnect(URI uri) throws IOException
+    {
+        socketChannel.configureBlocking(true);
+        if (Stack.isTcpNoDelay())
+            setTcpNoDelay(true);
+        if (secure)
+        {
+            SSLEngine engine = newEngine(uri.getHost(), uri.getPort());
+            engine.setUseClientMode(true);
+            secureChannel = new SecureChannel(socketChannel, engine);
+        }
+    }
+
+    /**
+     * Start servicing an established connection: on the reactor when enabled,
+     * else on a read and a write thread.
+     * 
+     * @param uri the URI connected to.
+     * @param address the local address.
+     * @throws IOException if the reactor could not be created.
+     */
+    void start(URI uri, InetAddress address) throws IOException
+    {
         Connections connectionsInstance =
-            Stack.getConnectionsInstance(address);
+            Stack.getConnectionsInstance(address, secure);
+
+        Reactor reactor = Stack.getReactor();
+        if (reactor != null)
+        {
+            reactor.register(this);
+            return;
+        }
 
         ioOperationGroup =
             new ThreadGroup(connectionsInstance.getConnectionsGroup(),
@@ -808,16 +1336,47 @@ class Connection extends Observable implements Runnable
     }
 
     /**
-     * Method used to notify the write cycle thread
+     * Method used to notify the write cycle thread (or, in reactor mode, the
+     * event loop) that there is data to send.
      */
     public void notifyWriteThread()
     {
-        if (writeThread != null)
+        final Reactor.EventLoop loop = eventLoop;
+        if (loop != null)
         {
-            synchronized (writeThread)
-            {
-                writeThread.notify();
-            }
+            if (loop.inEventLoop())
+                enableWriteInterest();
+            else
+                loop.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        enableWriteInterest();
+                    }
+                });
+            return;
+        }
+        signalWriteCycle(true);
+    }
+
+    /**
+     * Wake up the write cycle.
+     *
+     * @param dataPending true if new data was queued, false if the write cycle
+     *            should only re-check whether the connection is closing.
+     */
+    private void signalWriteCycle(boolean dataPending)
+    {
+        writeLock.lock();
+        try
+        {
+            if (dataPending)
+                writePending = true;
+            writeSignal.signal();
+        }
+        finally
+        {
+            writeLock.unlock();
         }
     }
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.msrp.utils.NetworkUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The established outgoing connections, by the authority of the peer and the
+ * local address, that sessions to the same peer can share (RFC 4975 section
+ * 6.1, connection reuse).
+ * <p>
+ * The sessions using a connection are the ones associated with its
+ * {@link TransactionManager}. A connection takes no more sessions once it
+ * has the maximum number, and it leaves the pool (to be closed) when its last
+ * session is gone.
+ * <p>
+ * The pool also keeps pre-warmed connections: established (but idle)
+ * connections to the peers that sessions connected to, ready for the next
+ * session to such a peer. These are closed once idle for the idle timeout, and
+ * checked (not closed by the peer) before being handed out.
+ * 
+ * @see Stack#setMaxSessionsPerConnection(int)
+ * @see Stack#setPrewarmedConnections(int)
+ * @see Stack#setIdleConnectionTimeout(int)
+ */
+class ConnectionPool
+{
+    /** The logger associated with this class */
+    private static final Logger logger =
+        LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static class Key
+    {
+        private final URI authority;
+
+        private final InetAddress localAddress;
+
+        private Key(URI remote, InetAddress localAddress)
+        {
+            authority = NetworkUtils.getCompleteAuthority(remote);
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return authority.equals(other.authority) &&
+                localAddress.equals(other.localAddress);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return authority.hashCode() * 31 + localAddress.hashCode();
+        }
+    }
+
+    /**
+     * A pre-warmed connection and its idle timeout.
+     */
+    private static class Idle
+    {
+        private final Connection connection;
+
+        private TimerWheel.Timeout expiry = null;
+
+        private Idle(Connection connection)
+        {
+            this.connection = connection;
+        }
+    }
+
+    private final HashMap<Key, ArrayList<Connection>> connections =
+        new HashMap<Key, ArrayList<Connection>>();
+
+    /**
+     * Pre-warmed connections, established but not started yet.
+     */
+    private final HashMap<Key, ArrayList<Idle>> idle =
+        new HashMap<Key, ArrayList<Idle>>();
+
+    /**
+     * Number of pre-warmed connections still connecting.
+     */
+    private final HashMap<Key, Integer> warming = new HashMap<Key, Integer>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Associate the session with an established connection to the given peer
+     * that has room for it.
+     * 
+     * @param session the session looking for a connection.
+     * @param remote the URI of the peer.
+     * @param localAddress the local address the connection must use.
+     * @return the connection the session now uses, null if none had room.
+     */
+    Connection attach(Session session, URI remote, InetAddress localAddress)
+    {
+        int maxSessions = Stack.getMaxSessionsPerConnection();
+        lock.lock();
+        try
+        {
+            ArrayList<Connection> peerConnections =
+                connections.get(new Key(remote, localAddress));
+            if (peerConnections == null)
+                return null;
+            Iterator<Connection> it = peerConnections.iterator();
+            while (it.hasNext())
+            {
+                Connection connection = it.next();
+                if (connection.closing || !connection.isEstablished())
+                {
+                    it.remove();
+                    continue;
+                }
+                TransactionManager txManager =
+                    connection.getTransactionManager();
+                if (txManager.getAssociatedSessions().size() < maxSessions)
+                {
+                    txManager.addSession(session);
+                    return connection;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pool an established connection, the given session being its first.
+     * 
+     * @param session the session that established the connection.
+     * @param remote the URI of the peer.
+     * @param localAddress the local address of the connection.
+     * @param connection the connection.
+     */
+    void add(Session session, URI remote, InetAddress localAddress,
+        Connection connection)
+    {
+        lock.lock();
+        try
+        {
+            connection.getTransactionManager().addSession(session);
+            Key key = new Key(remote, localAddress);
+            ArrayList<Connection> peerConnections = connections.get(key);
+            if (peerConnections == null)
+            {
+                peerConnections = new ArrayList<Connection>();
+                connections.put(key, peerConnections);
+            }
+            peerConnections.add(connection);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take a pre-warmed connection to the given peer.
+     * 
+     * @param remote the URI of the peer.
+     * @param localAddress the local address the connection must use.
+     * @return an established connection that was not started yet, or null.
+     */
+    Connection takeIdle(URI remote, InetAddress localAddress)
+    {
+        Key key = new Key(remote, localAddress);
+        while (true)
+        {
+            Idle taken;
+            lock.lock();
+            try
+            {
+                ArrayList<Idle> peerConnections = idle.get(key);
+                if (peerConnections == null || peerConnections.isEmpty())
+                    return null;
+                taken = peerConnections.remove(0);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (taken.expiry != null)
+                taken.expiry.cancel();
+            Connection connection = taken.connection;
+            if (!connection.closing && connection.isEstablished() &&
+                connection.isIdleOpen())
+                return connection;
+            logger.debug("Pre-warmed connection to " + remote +
+                " was closed, dropping it");
+            connection.close();
+        }
+    }
+
+    /**
+     * Open connections to the given peer until the number of pre-warmed
+     * connections of the stack are established or connecting.
+     * 
+     * @param remote the URI of the peer.
+     * @param localAddress the local address to connect from.
+     * @param secure use TLS (msrps).
+     */
+    void prewarm(URI remote, InetAddress localAddress, boolean secure)
+    {
+        int wanted = Stack.getPrewarmedConnections();
+        if (wanted == 0)
+            return;
+        final Key key = new Key(remote, localAddress);
+        int missing;
+        lock.lock();
+        try
+        {
+            ArrayList<Idle> peerConnections = idle.get(key);
+            missing = wanted - warming(key, 0) -
+                (peerConnections == null ? 0 : peerConnections.size());
+            if (missing <= 0)
+                return;
+            warming(key, missing);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (int i = 0; i < missing; i++)
+        {
+            try
+            {
+                Connection connection = new Connection(localAddress, secure);
+                Stack.getConnector().connect(connection, remote,
+                    new Connector.Listener()
+                    {
+                        public void connected(Connection connection)
+                        {
+                            warmed(key, connection);
+                        }
+
+                        public void failed(Connection connection,
+                            IOException cause)
+                        {
+                            warmed(key, null);
+                        }
+                    });
+            }
+            catch (Exception e)
+            {
+                logger.warn("Unable to pre-warm a connection to " + remote, e);
+                warmed(key, null);
+            }
+        }
+    }
+
+    /**
+     * Add to the number of pre-warmed connections connecting to a peer.
+     * Call with the lock held.
+     * 
+     * @return the new number.
+     */
+    private int warming(Key key, int delta)
+    {
+        Integer count = warming.get(key);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0)
+            warming.remove(key);
+        else
+            warming.put(key, newCount);
+        return newCount;
+    }
+
+    /**
+     * A pre-warmed connection is done connecting.
+     * 
+     * @param connection the established connection, null when it failed.
+     */
+    private void warmed(final Key key, Connection connection)
+    {
+        final Idle entry = connection == null ? null : new Idle(connection);
+        lock.lock();
+        try
+        {
+            warming(key, -1);
+            if (entry == null)
+                return;
+            ArrayList<Idle> peerConnections = idle.get(key);
+            if (peerConnections == null)
+            {
+                peerConnections = new ArrayList<Idle>();
+                idle.put(key, peerConnections);
+            }
+            peerConnections.add(entry);
+            int timeout = Stack.getIdleConnectionTimeout();
+            if (timeout > 0)
+                entry.expiry = Stack.getTimerWheel().schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            expired(key, entry);
+                        }
+                    }, timeout);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A pre-warmed connection was idle for the idle timeout: close it, unless
+     * taken meanwhile.
+     */
+    private void expired(Key key, Idle entry)
+    {
+        lock.lock();
+        try
+        {
+            ArrayList<Idle> peerConnections = idle.get(key);
+            if (peerConnections == null || !peerConnections.remove(entry))
+                return;
+            if (peerConnections.isEmpty())
+                idle.remove(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        logger.debug("Closing idle pre-warmed connection to " +
+            key.authority);
+        entry.connection.close();
+    }
+
+    /**
+     * Dissociate the session from its connection.
+     * 
+     * @param session the session that is done with the connection.
+     * @param connection the connection it used.
+     * @return true if no other session uses the connection, which then left
+     *         the pool and can be closed.
+     */
+    boolean release(Session session, Connection connection)
+    {
+        lock.lock();
+        try
+        {
+            TransactionManager txManager = connection.getTransactionManager();
+            if (txManager != null)
+            {
+                txManager.removeSession(session);
+                if (!txManager.getAssociatedSessions().isEmpty())
+                    return false;
+            }
+            Iterator<ArrayList<Connection>> it =
+                connections.values().iterator();
+            while (it.hasNext())
+            {
+                ArrayList<Connection> peerConnections = it.next();
+                if (peerConnections.remove(connection))
+                {
+                    if (peerConnections.isEmpty())
+                        it.remove();
+                    break;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
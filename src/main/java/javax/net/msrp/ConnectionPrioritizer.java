@@ -20,14 +20,26 @@ package javax.net.msrp;
 import java.util.Collection;
 import java.util.HashMap;
 
-import javax.net.msrp.exceptions.InternalErrorException;
-
-
 /**
  * Abstract class used to allow a fair share of bandwidth between sessions that
- * are using the same connection
+ * are using the same connection.
+ * <P>
+ * The transaction manager of a connection asks it which of the sessions
+ * with messages queued is served next, and, as the message of a session is
+ * being sent, whether to interrupt it in favour of another session; the rest
+ * of the message is then queued again. The bytes sent are accounted per
+ * session as they are taken.
+ * <P>
+ * Without a prioritizer (the default), messages are sent in the order they
+ * were queued. The prioritizer set on the stack is the model of those of the
+ * connections: each connection uses its own {@link #newInstance()}, called by
+ * its write thread only (and when a session is removed), so the state of the
+ * scheduling is kept per connection and locked per connection.
  * 
- * *NOTE* not used atm
+ * @see Stack#setConnectionPrioritizer(ConnectionPrioritizer)
+ * @see DeficitRoundRobin
+ * @see WeightedFairQueueing
+ * @see StrictPriority
  * 
  * @author Joo Andr Pereira Antunes 2008
  * 
@@ -43,63 +55,82 @@ public abstract class ConnectionPrioritizer
         new HashMap<Session, Long>();
 
     /**
-     * Method that registers the useful sent bytes and is also responsible of
-     * swapping the messageBeingSent and call the TransactionManager
-     * generateTransactions if the sending of the message is complete
+     * Make the prioritizer of a new connection, of the same settings as this
+     * one. Extensions keeping the state of their scheduling return a new
+     * instance; the settings of the sessions (weights, priorities) may be
+     * shared with it, as they are set on the prioritizer of the stack.
      * 
-     * if the message is complete and success report set to yes the message is
-     * stored in order to be retrieved when the REPORT arrives
-     * 
-     * Also calls the unimplemented shouldSwap method
+     * @return a prioritizer for one connection.
+     * @see Stack#setConnectionPrioritizer(ConnectionPrioritizer)
+     */
+    public abstract ConnectionPrioritizer newInstance();
+
+    /**
+     * Method that registers the bytes sent for a message of a session.
      * 
      * @param session Session where the message bytes are being sent
      * @param message Message the message for which the bytes are accounted for
      * @param numberBytesSent Long that has the number of bytes that were sent
      *            for this given message
+     * @see #sentBytes(Session, OutgoingMessage, int)
      */
     protected final void accountSentBytes(Session session, OutgoingMessage message,
         int numberBytesSent)
     {
-        Long numberBytesAccounted = sessionsTotalUsefulBytesSent.get(session);
-        if (numberBytesAccounted == null)
-            numberBytesAccounted = new Long(numberBytesSent);
-        else
-            numberBytesAccounted =
-                new Long(numberBytesAccounted.longValue() + numberBytesSent);
-        sessionsTotalUsefulBytesSent.put(session, numberBytesAccounted);
-
-        Session sessionToRetrieveMessage;
-        TransactionManager tm = session.getTransactionManager();
-        if (message.isComplete())
+        synchronized (this)
         {
-            sessionToRetrieveMessage = nextSession(tm.getAssociatedSessions());
-            Message messageToSend = sessionToRetrieveMessage.getMessageToSend();
-            tm.generateTransactionsToSend(messageToSend);
-
-            // Store the sent message based on the success report
-            if (message.wantSuccessReport())
-                session.addSentOrSendingMessage(message);
-        }
-        else if (shouldSwap(tm.getAssociatedSessions(), session, message))
-        {
-            sessionToRetrieveMessage = nextSession(tm.getAssociatedSessions());
-            Message messageToSend = sessionToRetrieveMessage.getMessageToSend();
-            try
-            {
-                message.pause();
-            }
-            catch (InternalErrorException e)
-            {
-                // TODO log it
-                e.printStackTrace();
-            }
-            tm.generateTransactionsToSend(messageToSend);
+            Long numberBytesAccounted = sessionsTotalUsefulBytesSent.get(session);
+            long total = numberBytesSent;
+            if (numberBytesAccounted != null)
+                total += numberBytesAccounted.longValue();
+            sessionsTotalUsefulBytesSent.put(session, total);
+            sentBytes(session, message, numberBytesSent);
         }
     }
 
+    /**
+     * @param session the session.
+     * @return the number of bytes sent for the session since it was added.
+     */
+    protected synchronized long getSentBytes(Session session)
+    {
+        Long sent = sessionsTotalUsefulBytesSent.get(session);
+        return sent == null ? 0 : sent.longValue();
+    }
+
+    /**
+     * Forget a session that was torn down. Extensions keeping state per
+     * session should drop it here too.
+     * 
+     * @param session the session gone.
+     */
+    protected synchronized void removeSession(Session session)
+    {
+        sessionsTotalUsefulBytesSent.remove(session);
+    }
+
+    /**
+     * Told of the bytes sent for a message of a session, with this
+     * prioritizer locked.
+     * 
+     * @param session the session of the message.
+     * @param message the message sent.
+     * @param numberBytesSent the number of bytes sent, header and end-line
+     *            included.
+     */
+    protected void sentBytes(Session session, OutgoingMessage message,
+        int numberBytesSent)
+    {
+        /* nothing to do by default */;
+    }
+
     /**
      * Method that decides if the session should be swapped or not
      * 
+     * @param sessions the sessions with messages queued on the connection,
+     *            in the order they were queued
+     * @param session the session whose message is being sent
+     * @param message the message being sent
      * @return true if the message should be swapped by another of another
      *         session false otherwise Note: it must return true only if there
      *         is another session with messages to be sent
@@ -108,14 +139,11 @@ public abstract class ConnectionPrioritizer
         Session session, Message message);
 
     /**
-     * function that tells what should be the next session to be served the next
-     * session that should be served must have a message to send (FIXME TODO the
-     * initialize method of the transaction manager)
+     * function that tells what should be the next session to be served.
      * 
-     * @param sessions the collection of the sessions associated with this
-     *            connection to choose from
-     * @return Session that must have at least one message to send to which the
-     *         next message will be sent from
+     * @param sessions the sessions with messages queued on the connection to
+     *            choose from, in the order they were queued (never empty)
+     * @return Session one of the given sessions, to send the next message of
      */
     protected abstract Session nextSession(Collection<Session> sessions);
 
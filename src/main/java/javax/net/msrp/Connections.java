@@ -27,7 +27,6 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Random;
 
 import javax.net.msrp.Connection;
 import javax.net.msrp.exceptions.*;
@@ -73,11 +72,26 @@ public class Connections
 
     private HashSet<URI> existingURISessions = new HashSet<URI>();
 
+    /**
+     * Accept TLS (msrps) connections?
+     */
+    private boolean secure = false;
+
     public Connections(InetAddress address)
     {
+        this(address, false);
+    }
+
+    /**
+     * @param address the address to accept connections on.
+     * @param secure accept TLS (msrps) connections.
+     * @see Stack#setSSLContext(javax.net.ssl.SSLContext)
+     */
+    public Connections(InetAddress address, boolean secure)
+    {
+        this.secure = secure;
         try
         {
-            random = new Random();
             if (NetworkUtils.isLinkLocalIPv4Address(address))
             {
                 logger.info("Connections: given address is a local one: "
@@ -95,10 +109,11 @@ public class Connections
             // fill the localURI variable that contains the uri parts that are
             // associated with this connection (scheme[protocol], host and port)
             localURI =
-                new URI("msrp", null, address.getHostAddress(), socket
-                    .getLocalPort(), null, null, null);
-            Thread server = new Thread(this);
-            server.setName("Connections: " + localURI + " server");
+                new URI(secure ? SECURESCHEME : "msrp", null,
+                    address.getHostAddress(), socket.getLocalPort(),
+                    null, null, null);
+            Thread server = Stack.newThread(null, this,
+                            "Connections: " + localURI + " server");
             server.start();
         }
         catch (Exception e)
@@ -113,8 +128,6 @@ public class Connections
     {
         try
         {
-            random = new Random();
-
             boolean localAddress = false;
 
             InetAddress newAddress = InetAddress.getLocalHost();
@@ -189,10 +202,16 @@ public class Connections
             while (true)
             {
                 Connection connection =
-                    new Connection(serverSocketChannel.accept());
+                    new Connection(serverSocketChannel.accept(), secure);
                 stack.addConnection(connection);
-                Thread newConnThread = new Thread(connection);
-                newConnThread.setName("Connection: " + connection.getLocalURI() +
+                Reactor reactor = Stack.getReactor();
+                if (reactor != null)
+                {
+                    reactor.register(connection);
+                    continue;
+                }
+                Thread newConnThread = Stack.newThread(null, connection,
+                					"Connection: " + connection.getLocalURI() +
                 					" by Connections.newConnThread");
                 newConnThread.start();
 
@@ -232,9 +251,8 @@ public class Connections
         }
         else
         {
-            associatedThread = new Thread(this);
-            associatedThread.setName("Connections: " + localURI
-                + " associatedThread");
+            associatedThread = Stack.newThread(null, this,
+                "Connections: " + localURI + " associatedThread");
             associatedThread.start();
             hasStarted = true;
         }
@@ -271,8 +289,8 @@ public class Connections
     protected void startConnectionThread(Runnable connection,
         ThreadGroup ioGroup)
     {
-        Thread newThread = new Thread(ioGroup, connection);
-        newThread.setName("Connections: " + localURI + " newThread");
+        Thread newThread = Stack.newThread(ioGroup, connection,
+                        "Connections: " + localURI + " newThread");
         newThread.start();
     }
 
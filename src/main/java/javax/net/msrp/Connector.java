@@ -0,0 +1,299 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects {@link Connection}s without blocking the caller.
+ * <P>
+ * A single thread with its own {@link Selector} finishes the pending
+ * connects once their channels become connectable, and gives up on the
+ * ones that take longer than the connect timeout. The listener of a connect
+ * is called on that thread, so it should not block.
+ *
+ * @see Stack#setConnectTimeout(int)
+ * @see Session#setToPathAsync(java.util.ArrayList)
+ */
+class Connector
+    implements Runnable
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(Connector.class);
+
+    /**
+     * Told about the outcome of a connect.
+     */
+    interface Listener
+    {
+        /**
+         * @param connection the connection that is now established.
+         */
+        void connected(Connection connection);
+
+        /**
+         * @param connection the connection that failed (and was closed).
+         * @param cause why it failed.
+         */
+        void failed(Connection connection, IOException cause);
+    }
+
+    private static class Pending
+    {
+        private final Connection connection;
+
+        private final URI uri;
+
+        private final Listener listener;
+
+        private final long deadline;
+
+        private Pending(Connection connection, URI uri, Listener listener,
+            int timeout)
+        {
+            this.connection = connection;
+            this.uri = uri;
+            this.listener = listener;
+            deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        }
+    }
+
+    private final Selector selector;
+
+    private final ConcurrentLinkedQueue<Pending> requests =
+        new ConcurrentLinkedQueue<Pending>();
+
+    /**
+     * Connects waiting for their channel, only touched by the connector
+     * thread.
+     */
+    private final ArrayList<Pending> pending = new ArrayList<Pending>();
+
+    private final Thread thread;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Create and start a connector.
+     *
+     * @throws IOException if the selector could not be opened.
+     */
+    Connector() throws IOException
+    {
+        selector = Selector.open();
+        thread = Stack.newThread(null, this, "MSRP connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the connector thread and wait for it to end. The connects still
+     * pending fail, and the selector is closed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop() throws InterruptedException
+    {
+        stopped = true;
+        selector.wakeup();
+        thread.join();
+    }
+
+    /**
+     * Connect the given connection to the given URI, within the connect
+     * timeout of the stack.
+     *
+     * @param connection the (bound, unconnected) connection.
+     * @param uri the URI to connect to.
+     * @param listener told about the outcome.
+     */
+    void connect(Connection connection, URI uri, Listener listener)
+    {
+        requests.add(new Pending(connection, uri, listener,
+                                 Stack.getConnectTimeout()));
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        ArrayList<Pending> connected = new ArrayList<Pending>();
+        while (!stopped)
+        {
+            try
+            {
+                Pending request;
+                while ((request = requests.poll()) != null)
+                    begin(request, connected);
+                selector.select(nextTimeout());
+                Iterator<SelectionKey> keys =
+                    selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Pending connect = (Pending) key.attachment();
+                    try
+                    {
+                        if (connect.connection.getSocketChannel().finishConnect())
+                        {
+                            key.cancel();
+                            pending.remove(connect);
+                            connected.add(connect);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        key.cancel();
+                        fail(connect, e);
+                    }
+                }
+                expire();
+                if (!connected.isEmpty())
+                {
+                    selector.selectNow();	// deregister the cancelled keys
+                    for (Pending connect : connected)
+                        end(connect);
+                    connected.clear();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Connector select failed", e);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Unexpected error in connector", e);
+            }
+        }
+        IOException cause = new IOException("Connector stopped");
+        for (Pending connect : new ArrayList<Pending>(pending))
+            fail(connect, cause);
+        Pending request;
+        while ((request = requests.poll()) != null)
+            fail(request, cause);
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Closing connector selector failed", e);
+        }
+    }
+
+    private void begin(Pending connect, ArrayList<Pending> connected)
+    {
+        try
+        {
+            if (connect.connection.beginConnect(connect.uri))
+                connected.add(connect);
+            else
+            {
+                connect.connection.getSocketChannel().register(selector,
+                    SelectionKey.OP_CONNECT, connect);
+                pending.add(connect);
+            }
+        }
+        catch (IOException e)
+        {
+            fail(connect, e);
+        }
+    }
+
+    private void end(Pending connect)
+    {
+        try
+        {
+            connect.connection.endConnect(connect.uri);
+        }
+        catch (IOException e)
+        {
+            fail(connect, e);
+            return;
+        }
+        try
+        {
+            connect.listener.connected(connect.connection);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Connect listener failed", e);
+        }
+    }
+
+    private void fail(Pending connect, IOException cause)
+    {
+        pending.remove(connect);
+        logger.warn("Unable to connect to " + connect.uri + ": " +
+                    cause.getMessage());
+        connect.connection.close();
+        try
+        {
+            connect.listener.failed(connect.connection, cause);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Connect listener failed", e);
+        }
+    }
+
+    /**
+     * @return milliseconds until the first deadline, 0 when there is none.
+     */
+    private long nextTimeout()
+    {
+        long first = 0;
+        for (Pending connect : pending)
+            if (connect.deadline > 0 &&
+                (first == 0 || connect.deadline < first))
+                first = connect.deadline;
+        if (first == 0)
+            return 0;
+        return Math.max(1, first - System.currentTimeMillis());
+    }
+
+    private void expire()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> it = pending.iterator();
+        ArrayList<Pending> expired = new ArrayList<Pending>();
+        while (it.hasNext())
+        {
+            Pending connect = it.next();
+            if (connect.deadline > 0 && connect.deadline <= now)
+            {
+                SelectionKey key =
+                    connect.connection.getSocketChannel().keyFor(selector);
+                if (key != null)
+                    key.cancel();
+                expired.add(connect);
+            }
+        }
+        for (Pending connect : expired)
+            fail(connect, new SocketTimeoutException("connect timed out"));
+    }
+}
@@ -83,6 +83,46 @@ public abstract class DataContainer
     public abstract int get(byte[] dst, int offset)
         throws IndexOutOfBoundsException, Exception;
 
+    /**
+     * Retrieve up to maxLength bytes from the current read offset as a
+     * buffer, advancing the read offset past them.
+     * <p>
+     * Used by gathering writes to hand the data to the connection without
+     * copying it into its output array first. This default implementation
+     * copies, containers that hold the data in memory return a view on it
+     * instead, so the returned buffer must not be written to.
+     * 
+     * @param maxLength the maximum number of bytes to retrieve
+     * @return a buffer with the data between its position and limit, empty if
+     *         there is no more data to read
+     * @throws Exception if there was any kind of Exception
+     * @see #get(byte[], int)
+     */
+    public ByteBuffer getSlice(int maxLength) throws Exception
+    {
+        long remaining = size() - currentReadOffset();
+        if (remaining <= 0 || maxLength <= 0)
+            return ByteBuffer.allocate(0);
+        byte[] data = new byte[(int) Math.min(maxLength, remaining)];
+        int length = get(data, 0);
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    /**
+     * Retrieve up to maxLength bytes from the current read offset as a region
+     * of a file that can be transferred to the connection directly, advancing
+     * the read offset past them.
+     * 
+     * @param maxLength the maximum number of bytes to retrieve
+     * @return the region, or null if this container does not keep its data in
+     *         a file (use {@link #getSlice(int)} instead)
+     * @throws Exception if there was any kind of Exception
+     */
+    FileRegion getRegion(int maxLength) throws Exception
+    {
+        return null;
+    }
+
     /**
      * Retrieve the data from the data container
      * <p>
@@ -122,6 +162,28 @@ public abstract class DataContainer
     public abstract void put(long startingIndex, byte[] dataToPut)
         throws NotEnoughStorageException, Exception;
 
+    /**
+     * Stores the bytes between position and limit of the given buffer,
+     * leaving its position at the limit.
+     * <p>
+     * Lets the receiving side store data straight from the buffer it was
+     * read into. This default implementation copies the bytes into an array
+     * first, containers that can avoid that override it.
+     * 
+     * @param startingIndex where to start putting the data in this container.
+     * @param dataToPut the buffer with the data to store.
+     * @throws NotEnoughStorageException if there is no more storage
+     *             available in this Container
+     * @throws Exception if there was any other kind of Exception
+     */
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, Exception
+    {
+        byte[] data = new byte[dataToPut.remaining()];
+        dataToPut.get(data);
+        put(startingIndex, data);
+    }
+
     /**
      * Store the given byte.
      * 
@@ -0,0 +1,121 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Deficit round robin (Shreedhar and Varghese): the sessions with messages
+ * queued take turns, each adding a quantum of bytes to its deficit when its
+ * turn comes and sending until it is spent. A session sending more in a turn
+ * starts the next one with less (by up to a quantum), so each gets the same
+ * share of the connection. A session without messages queued loses its
+ * deficit.
+ */
+public class DeficitRoundRobin
+    extends ConnectionPrioritizer
+{
+    /** The default quantum, in bytes */
+    public static final int QUANTUM = 16 * 1024;
+
+    private final int quantum;
+
+    private final HashMap<Session, Long> deficits = new HashMap<Session, Long>();
+
+    /** Turn last taken by each session */
+    private final HashMap<Session, Long> turns = new HashMap<Session, Long>();
+
+    private long turn = 0;
+
+    public DeficitRoundRobin()
+    {
+        this(QUANTUM);
+    }
+
+    /**
+     * @param quantum the number of bytes each session sends per turn.
+     * @throws IllegalArgumentException if not positive.
+     */
+    public DeficitRoundRobin(int quantum)
+    {
+        if (quantum <= 0)
+            throw new IllegalArgumentException("Invalid quantum");
+        this.quantum = quantum;
+    }
+
+    @Override
+    public ConnectionPrioritizer newInstance()
+    {
+        return new DeficitRoundRobin(quantum);
+    }
+
+    @Override
+    protected synchronized Session nextSession(Collection<Session> sessions)
+    {
+        deficits.keySet().retainAll(sessions);
+        Session next = null;
+        long oldest = Long.MAX_VALUE;
+        for (Session session : sessions)
+        {
+            Long last = turns.get(session);
+            long taken = last == null ? -1 : last.longValue();
+            if (taken < oldest)
+            {
+                oldest = taken;
+                next = session;
+            }
+        }
+        turns.put(next, ++turn);
+        deficits.put(next, deficit(next) + quantum);
+        return next;
+    }
+
+    @Override
+    protected synchronized boolean shouldSwap(Collection<Session> sessions,
+        Session session, Message message)
+    {
+        if (deficit(session) > 0)
+            return false;
+        for (Session other : sessions)
+            if (other != session)
+                return true;
+        return false;
+    }
+
+    @Override
+    protected void sentBytes(Session session, OutgoingMessage message,
+        int numberBytesSent)
+    {
+        deficits.put(session,
+            Math.max(-quantum, deficit(session) - numberBytesSent));
+    }
+
+    @Override
+    protected synchronized void removeSession(Session session)
+    {
+        super.removeSession(session);
+        deficits.remove(session);
+        turns.remove(session);
+    }
+
+    private long deficit(Session session)
+    {
+        Long deficit = deficits.get(session);
+        return deficit == null ? 0 : deficit.longValue();
+    }
+}
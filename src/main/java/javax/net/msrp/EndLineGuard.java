@@ -0,0 +1,142 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.nio.ByteBuffer;
+
+import javax.net.msrp.utils.ByteScanner;
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * Watches the content of an outgoing transaction for its own end-line.
+ * <P>
+ * As written in RFC 4975: " If the request contains a body, the sender MUST
+ * ensure that the end- line (seven hyphens, the transaction identifier, and
+ * a continuation flag) is not present in the body. [...] Some
+ * implementations may choose to scan for the closing sequence as they send
+ * the body, and if it is encountered, simply interrupt the chunk at that
+ * point and start a new transaction with a different transaction identifier
+ * to carry the rest of the body."
+ * <P>
+ * The content is fed as it is taken from the data container, the state is
+ * kept between calls (Knuth-Morris-Pratt). The content can be sent up to,
+ * not including, the continuation flag that would complete the end-line: then
+ * the end-line never shows, even when started in content already sent.
+ */
+class EndLineGuard
+{
+    /** "-------" transact-id */
+    private final byte[] prefix;
+
+    /** Length of the longest proper prefix that is also a suffix of the
+     * first i bytes of the prefix */
+    private final int[] border;
+
+    /** Number of prefix bytes matched */
+    private int state = 0;
+
+    /**
+     * @param tid the transaction-id of the end-line to guard against.
+     */
+    EndLineGuard(String tid)
+    {
+        byte[] id = tid.getBytes(TextUtils.usascii);
+        prefix = new byte[7 + id.length];
+        for (int i = 0; i < 7; i++)
+            prefix[i] = '-';
+        System.arraycopy(id, 0, prefix, 7, id.length);
+
+        border = new int[prefix.length + 1];
+        int k = 0;
+        for (int i = 1; i < prefix.length; i++)
+        {
+            while (k > 0 && prefix[i] != prefix[k])
+                k = border[k];
+            if (prefix[i] == prefix[k])
+                k++;
+            border[i + 1] = k;
+        }
+    }
+
+    /**
+     * Feed the next content bytes.
+     *
+     * @param data the content.
+     * @param offset where the bytes start.
+     * @param length the number of bytes.
+     * @return the number of bytes that can be sent: <code>length</code> or
+     * 			the offset of the flag that completes the end-line.
+     */
+    int scan(byte[] data, int offset, int length)
+    {
+        int limit = offset + length;
+        for (int i = offset; i < limit; i++)
+        {
+            if (state == 0)				// skip to the next hyphen
+            {
+                i = ByteScanner.indexOf(data, i, limit, (byte) '-');
+                if (i < 0)
+                    break;
+            }
+            if (advance(data[i]))
+                return i - offset;
+        }
+        return length;
+    }
+
+    /**
+     * Feed the bytes between position and limit of the buffer, without
+     * changing either.
+     *
+     * @param data the content.
+     * @return the number of bytes that can be sent: all remaining or up to
+     * 			the flag that completes the end-line.
+     */
+    int scan(ByteBuffer data)
+    {
+        if (data.hasArray())
+            return scan(data.array(), data.arrayOffset() + data.position(),
+                        data.remaining());
+        for (int i = data.position(); i < data.limit(); i++)
+            if (advance(data.get(i)))
+                return i - data.position();
+        return data.remaining();
+    }
+
+    /**
+     * @param b the next content byte.
+     * @return true if the byte would complete the end-line. It is then left
+     * 			out, the state is reset.
+     */
+    private boolean advance(byte b)
+    {
+        if (state == prefix.length)
+        {
+            if (b == '$' || b == '+' || b == '#')
+            {
+                state = 0;
+                return true;
+            }
+            state = border[state];
+        }
+        while (state > 0 && prefix[state] != b)
+            state = border[state];
+        if (prefix[state] == b)
+            state++;
+        return false;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import javax.net.msrp.utils.ByteScanner;
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * Finds the end-line of one transaction in the received bytes, as (RFC 4975):
+ * <pre>
+ * end-line = "-------" transact-id continuation-flag CRLF
+ * </pre>
+ * preceded by the CRLF that closes the headers or the content-stuff.
+ * <P>
+ * Created once per incoming transaction, it keeps its state between calls so
+ * that an end-line split over read buffers is still found.
+ * <P>
+ * Only the leading CR occurs in the end-line once, so on a mismatch matching
+ * simply restarts at the current byte.
+ */
+class EndLineMatcher
+{
+    /** CRLF "-------" transact-id */
+    private final byte[] prefix;
+
+    /** Number of end-line bytes matched */
+    private int state = 0;
+
+    /** Number of the matched bytes assumed, not received */
+    private int assumed = 0;
+
+    private byte flag;
+
+    /**
+     * @param tid the transaction-id of the end-line to find.
+     */
+    EndLineMatcher(String tid)
+    {
+        byte[] id = tid.getBytes(TextUtils.usascii);
+        prefix = new byte[9 + id.length];
+        prefix[0] = '\r';
+        prefix[1] = '\n';
+        for (int i = 2; i < 9; i++)
+            prefix[i] = '-';
+        System.arraycopy(id, 0, prefix, 9, id.length);
+    }
+
+    /**
+     * Forget any partial match.
+     */
+    void reset()
+    {
+        state = 0;
+        assumed = 0;
+    }
+
+    /**
+     * Restart matching as if a CRLF was just received: the end-line may
+     * follow without one at the start of the headers.
+     */
+    void resetAtLineStart()
+    {
+        state = 2;
+        assumed = 2;
+    }
+
+    /**
+     * Look for the (rest of the) end-line.
+     *
+     * @param data the received bytes.
+     * @param offset where to start looking.
+     * @param limit the end of the received bytes.
+     * @return the offset just past the end-line, -1 when not found (yet).
+     */
+    int find(byte[] data, int offset, int limit)
+    {
+        int end = prefix.length;
+        for (int i = offset; i < limit; i++)
+        {
+            if (state == 0)				// skip to the next CR
+            {
+                i = ByteScanner.indexOf(data, i, limit, (byte) '\r');
+                if (i < 0)
+                    return -1;
+            }
+            byte b = data[i];
+            if (state < end)
+            {
+                if (b == prefix[state])
+                {
+                    state++;
+                    continue;
+                }
+            }
+            else if (state == end)
+            {
+                if (b == '$' || b == '+' || b == '#')
+                {
+                    flag = b;
+                    state++;
+                    continue;
+                }
+            }
+            else if (state == end + 1)
+            {
+                if (b == '\r')
+                {
+                    state++;
+                    continue;
+                }
+            }
+            else if (b == '\n')
+            {
+                state = 0;
+                assumed = 0;
+                return i + 1;
+            }
+            state = b == '\r' ? 1 : 0;
+            assumed = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes of a partial end-line at the end of the data
+     * 			looked at, these were received.
+     */
+    int getPartial()
+    {
+        return state - assumed;
+    }
+
+    /**
+     * @return the length of the end-line found and the CRLF before it. That
+     * 			CRLF was not received when assumed at the start of the headers.
+     */
+    int length()
+    {
+        return prefix.length + 3;
+    }
+
+    /**
+     * @return the continuation flag of the end-line found.
+     */
+    char getFlag()
+    {
+        return (char) flag;
+    }
+}
@@ -21,7 +21,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.msrp.exceptions.IllegalUseException;
 import javax.net.msrp.exceptions.NotEnoughDataException;
@@ -71,9 +73,28 @@ public class FileDataContainer
      */
     private ByteBuffer auxByteBuffer;
 
-    private final Object readOffsetLock = new Object();
+    /**
+     * Guards the read offset (and the reads done at it); not a monitor so
+     * virtual threads reading the file do not get pinned.
+     */
+    private final ReentrantLock readOffsetLock = new ReentrantLock();
     private Long currentReadOffset = new Long(0);
 
+    /**
+     * Size of the window of the file that is mapped to check the regions
+     * transferred from it.
+     */
+    private static final int SCANWINDOWBYTES = 8 * 1024 * 1024;
+
+    /**
+     * Read-only mapping of the part of the file that regions are taken from
+     * and where it starts in the file.
+     * 
+     * @see #getRegion(int)
+     */
+    private MappedByteBuffer scanWindow = null;
+    private long scanWindowStart = 0;
+
     /**
      * Creates a new DataContainer based on the given file, The file must be
      * readable and writable.
@@ -129,10 +150,15 @@ public class FileDataContainer
     @Override
     public long currentReadOffset()
     {
-        synchronized (readOffsetLock)
+        readOffsetLock.lock();
+        try
         {
             return currentReadOffset.longValue();
         }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
     }
 
     /* (non-Javadoc)
@@ -141,7 +167,8 @@ public class FileDataContainer
     @Override
     public boolean hasDataToRead()
     {
-        synchronized (readOffsetLock)
+        readOffsetLock.lock();
+        try
         {
             try
             {
@@ -154,6 +181,10 @@ public class FileDataContainer
             }
             return false;
         }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
     }
 
     /* (non-Javadoc)
@@ -168,6 +199,22 @@ public class FileDataContainer
         fileChannel.write(auxByteBuffer, startingIndex);
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        while (dataToPut.hasRemaining())
+        {
+            int result = fileChannel.write(dataToPut, startingIndex);
+            if (result == 0 || result == -1)
+                throw new NotEnoughStorageException();
+            startingIndex += result;
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#put(byte)
      */
@@ -243,10 +290,15 @@ public class FileDataContainer
          * reader of the file is put into the position specified by that
          * variable prior to reading data from it
          */
-        synchronized (readOffsetLock)
+        readOffsetLock.lock();
+        try
         {
             currentReadOffset -= nrPositions;
         }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
 
     }
 
@@ -257,7 +309,8 @@ public class FileDataContainer
     {
         if (offset > dst.length - 1)
             throw new IndexOutOfBoundsException();
-        synchronized (readOffsetLock)
+        readOffsetLock.lock();
+        try
         {
             int bytesToCopy = 0;
             long remainingDataBytes =
@@ -267,8 +320,9 @@ public class FileDataContainer
             else
                 bytesToCopy = dst.length - offset;
 
-            auxByteBuffer = ByteBuffer.allocate(bytesToCopy);
-            int result = fileChannel.read(auxByteBuffer);
+            int result = fileChannel.read(
+            				ByteBuffer.wrap(dst, offset, bytesToCopy),
+            				currentReadOffset.longValue());
             if (result == 0 || result == -1)
                 throw new NotEnoughDataException();
             if (result != bytesToCopy)
@@ -276,11 +330,76 @@ public class FileDataContainer
                     "Something went wrong, it should have copied "
                         + bytesToCopy + " but instead copied " + result);
 
-            System.arraycopy(auxByteBuffer.array(), 0, dst, offset, result);
             currentReadOffset += result;
             return result;
         }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
+
+    }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getSlice(int)
+     */
+    @Override
+    public ByteBuffer getSlice(int maxLength) throws Exception
+    {
+        readOffsetLock.lock();
+        try
+        {
+            long remainingDataBytes =
+                fileChannel.size() - currentReadOffset.longValue();
+            ByteBuffer slice = ByteBuffer.allocate(
+            		(int) Math.max(0, Math.min(maxLength, remainingDataBytes)));
+            while (slice.hasRemaining())
+            {
+                int result = fileChannel.read(slice,
+                			currentReadOffset.longValue() + slice.position());
+                if (result == -1)
+                    throw new NotEnoughDataException();
+            }
+            slice.flip();
+            currentReadOffset += slice.remaining();
+            return slice;
+        }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getRegion(int)
+     */
+    @Override
+    FileRegion getRegion(int maxLength) throws IOException
+    {
+        readOffsetLock.lock();
+        try
+        {
+            long offset = currentReadOffset.longValue();
+            long size = fileChannel.size();
+            int length = (int) Math.max(0, Math.min(maxLength, size - offset));
+            if (scanWindow == null || offset < scanWindowStart ||
+                offset + length > scanWindowStart + scanWindow.capacity())
+            {
+                scanWindowStart = offset;
+                scanWindow = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                	offset, Math.min(Math.max(SCANWINDOWBYTES, length),
+                					size - offset));
+            }
+            ByteBuffer content = scanWindow.duplicate();
+            content.position((int) (offset - scanWindowStart));
+            content.limit(content.position() + length);
+            currentReadOffset += length;
+            return new FileRegion(fileChannel, offset, content);
+        }
+        finally
+        {
+            readOffsetLock.unlock();
+        }
     }
 
     /* (non-Javadoc)
@@ -291,6 +410,7 @@ public class FileDataContainer
     {
         try
         {
+            scanWindow = null;
             fileChannel.close();
             randomAccessFile.close();
         }
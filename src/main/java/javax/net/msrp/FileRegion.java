@@ -0,0 +1,99 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of a file that is sent by transferring it straight from the file to
+ * the connection, without reading it into the JVM.
+ * 
+ * @see DataContainer#getRegion(int)
+ * @see FileChannel#transferTo(long, long, WritableByteChannel)
+ */
+class FileRegion
+{
+    private final FileChannel channel;
+
+    private long position;
+
+    private long count;
+
+    /**
+     * Mapped view on the range, used to check it for the end-line.
+     */
+    private final ByteBuffer content;
+
+    /**
+     * @param channel the channel of the file
+     * @param position position of the range in the file
+     * @param content a (read-only) view on the bytes of the range
+     */
+    FileRegion(FileChannel channel, long position, ByteBuffer content)
+    {
+        this.channel = channel;
+        this.position = position;
+        this.count = content.remaining();
+        this.content = content;
+    }
+
+    /**
+     * @return a view on the bytes of this region, as it was created.
+     */
+    ByteBuffer getContent()
+    {
+        return content;
+    }
+
+    /**
+     * @return the number of bytes still to transfer.
+     */
+    long remaining()
+    {
+        return count;
+    }
+
+    /**
+     * Leave the given number of bytes at the end of the range out.
+     * 
+     * @param nrBytes the number of bytes to drop
+     */
+    void shrink(int nrBytes)
+    {
+        count -= nrBytes;
+        content.limit(content.limit() - nrBytes);
+    }
+
+    /**
+     * Transfer (as much as possible of) the remaining bytes to the given
+     * channel.
+     * 
+     * @param target the channel to write to
+     * @return the number of bytes transferred
+     * @throws IOException if the transfer failed
+     */
+    long transferTo(WritableByteChannel target) throws IOException
+    {
+        long transferred = channel.transferTo(position, count, target);
+        position += transferred;
+        count -= transferred;
+        return transferred;
+    }
+}
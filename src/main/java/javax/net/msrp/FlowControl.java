@@ -0,0 +1,192 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accounts the bytes and messages in a send queue against its
+ * {@link Watermarks}.
+ * <P>
+ * The queue turns unwritable when a high watermark is reached and writable
+ * again once it drained to the low watermarks. Threads can wait for the
+ * latter.
+ */
+class FlowControl
+{
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition drained = lock.newCondition();
+
+    private Watermarks watermarks;
+
+    private long bytes = 0;
+
+    private int messages = 0;
+
+    private boolean writable = true;
+
+    private boolean closed = false;
+
+    FlowControl(Watermarks watermarks)
+    {
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * @param watermarks the new watermarks to account against.
+     */
+    void setWatermarks(Watermarks watermarks)
+    {
+        lock.lock();
+        try
+        {
+            this.watermarks = watermarks;
+            if (writable)
+                writable = !watermarks.isAbove(bytes, messages);
+            else if (watermarks.isBelow(bytes, messages))
+            {
+                writable = true;
+                drained.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    Watermarks getWatermarks()
+    {
+        return watermarks;
+    }
+
+    /**
+     * @return false between reaching a high watermark and draining to the low
+     * 			ones.
+     */
+    boolean isWritable()
+    {
+        lock.lock();
+        try
+        {
+            return writable || closed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Account a queued message.
+     *
+     * @param size the number of bytes of the message.
+     * @return true if the queue is still writable.
+     */
+    boolean add(long size)
+    {
+        lock.lock();
+        try
+        {
+            bytes += size;
+            messages++;
+            if (writable && watermarks.isAbove(bytes, messages))
+                writable = false;
+            return writable;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Account a message that left the queue.
+     *
+     * @param size the number of bytes of the message.
+     * @return true if the queue just turned writable.
+     */
+    boolean release(long size)
+    {
+        lock.lock();
+        try
+        {
+            bytes -= size;
+            messages--;
+            if (!writable && watermarks.isBelow(bytes, messages))
+            {
+                writable = true;
+                drained.signalAll();
+                return !closed;
+            }
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the queue is writable (or closed).
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    void awaitWritable() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (!writable && !closed)
+                drained.await();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The queue will not drain anymore: wake up and no longer hold any
+     * waiting thread.
+     */
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            drained.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    long getBytes()
+    {
+        return bytes;
+    }
+
+    int getMessages()
+    {
+        return messages;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import javax.net.msrp.exceptions.InvalidHeaderException;
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * Walks the header lines of a transaction in one pass over the received
+ * bytes, as (RFC 4975):
+ * <pre>
+ * headers = To-Path CRLF From-Path CRLF 1*( header CRLF )
+ * header  = hname ":" SP hval
+ * </pre>
+ * Each line is recognised by its (case-insensitive) name, the value is kept as
+ * offsets in the given buffer until it is asked for. The walk ends at an
+ * empty line or at the end of the buffer.
+ */
+class HeaderTokenizer
+{
+    /**
+     * The headers used by the stack, others are passed as unknown.
+     */
+    enum Name
+    {
+        TO_PATH("To-Path"),
+        FROM_PATH("From-Path"),
+        MESSAGE_ID("Message-ID"),
+        BYTE_RANGE("Byte-Range"),
+        CONTENT_TYPE("Content-Type"),
+        FAILURE_REPORT("Failure-Report"),
+        SUCCESS_REPORT("Success-Report"),
+        STATUS("Status"),
+        USE_NICKNAME("Use-Nickname");
+
+        /** lowercase */
+        private final byte[] name;
+
+        private Name(String name)
+        {
+            this.name = name.toLowerCase().getBytes(TextUtils.usascii);
+        }
+    }
+
+    private static final Name[] NAMES = Name.values();
+
+    private final byte[] data;
+
+    private final int limit;
+
+    private int position;
+
+    private Name name;
+
+    private int valueStart;
+
+    private int valueEnd;
+
+    /**
+     * @param data the header bytes.
+     * @param offset where the first header line begins.
+     * @param limit the end of the header bytes.
+     */
+    HeaderTokenizer(byte[] data, int offset, int limit)
+    {
+        this.data = data;
+        this.position = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Advance to the next header line.
+     *
+     * @return false when no more header lines remain.
+     * @throws InvalidHeaderException on non-ascii characters, a line break
+     * 			within a line or a missing CRLF.
+     */
+    boolean next() throws InvalidHeaderException
+    {
+        int start = position;
+        int i = start;
+        while (i < limit)
+        {
+            byte b = data[i];
+            if (b < 0)
+                throw new InvalidHeaderException(
+                    "Error, non-ascii characters contained in the header");
+            if (b == '\r' && i + 1 < limit && data[i + 1] == '\n')
+                break;
+            if (b == '\r' || b == '\n')
+                throw new InvalidHeaderException(
+                    "Error, line break within header line");
+            i++;
+        }
+        if (i == start)
+            return false;				// end of buffer or empty line
+        if (i >= limit)
+            throw new InvalidHeaderException(
+                "Error, header line without CRLF");
+        position = i + 2;
+        valueEnd = i;
+        name = null;
+        for (int colon = start; colon < i - 1; colon++)
+        {
+            if (data[colon] == ':')
+            {
+                if (data[colon + 1] == ' ')
+                {
+                    name = lookup(start, colon);
+                    valueStart = colon + 2;
+                }
+                break;
+            }
+        }
+        if (name == null)
+            valueStart = start;
+        return true;
+    }
+
+    private Name lookup(int start, int end)
+    {
+        int length = end - start;
+        for (Name candidate : NAMES)
+        {
+            byte[] lower = candidate.name;
+            if (lower.length != length)
+                continue;
+            int i = 0;
+            while (i < length && toLower(data[start + i]) == lower[i])
+                i++;
+            if (i == length)
+                return candidate;
+        }
+        return null;
+    }
+
+    private static int toLower(byte b)
+    {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * @return the name of the current header line, null if not used by the
+     * 			stack (or not followed by ": ").
+     */
+    Name getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the value of the current header line, the whole line for an
+     * 			unknown header.
+     */
+    String getValue()
+    {
+        return new String(data, valueStart, valueEnd - valueStart,
+        				TextUtils.latin1);
+    }
+
+    /**
+     * @return the length of the value of the current header line.
+     */
+    int getValueLength()
+    {
+        return valueEnd - valueStart;
+    }
+
+    /**
+     * @return the paths in the value of the current (To- or From-Path) line,
+     * 			separated by one or more spaces.
+     */
+    PathHeader getPath()
+    {
+        return new PathHeader(data, valueStart, valueEnd);
+    }
+
+    /**
+     * @return the value if a valid message-id, null otherwise.
+     */
+    /* ident = ALPHANUM 3*31ident-char */
+    String getMessageId()
+    {
+        int length = valueEnd - valueStart;
+        if (length < 4 || length > 32 || !isAlnum(data[valueStart]))
+            return null;
+        for (int i = valueStart + 1; i < valueEnd; i++)
+        {
+            byte b = data[i];
+            if (!isAlnum(b) && b != '.' && b != '-' && b != '+' && b != '%' &&
+                b != '=')
+                return null;
+        }
+        return getValue();
+    }
+
+    /**
+     * Parse the value as Byte-Range: range-start "-" range-end "/" total.
+     *
+     * @param range to receive start, end and total. End and total are set to
+     * 			<code>unknown</code> when given as "*".
+     * @param unknown the value for an "*".
+     * @return false if the value is not a valid byte-range.
+     */
+    boolean getByteRange(long[] range, long unknown)
+    {
+        int i = valueStart;
+        for (int field = 0; field < 3; field++)
+        {
+            int start = i;
+            long value;
+            if (field > 0 && i < valueEnd && data[i] == '*')
+            {
+                value = unknown;
+                i++;
+            }
+            else
+            {
+                value = 0;
+                while (i < valueEnd && isDigit(data[i]))
+                {
+                    if (i - start >= 18)		// no overflow, please
+                        return false;
+                    value = value * 10 + (data[i++] - '0');
+                }
+                if (i == start)
+                    return false;
+            }
+            range[field] = value;
+            if (field < 2 &&
+                (i >= valueEnd || data[i++] != (field == 0 ? '-' : '/')))
+                return false;
+        }
+        return i == valueEnd;
+    }
+
+    /**
+     * @return the type/subtype of the value, parameters left out. Null if not
+     * 			a valid content-type.
+     */
+    String getContentType()
+    {
+        int slash = valueStart;
+        while (slash < valueEnd && data[slash] != '/')
+            slash++;
+        if (slash == valueStart || slash - valueStart > 30 || slash == valueEnd)
+            return null;
+        int end = slash + 1;
+        while (end < valueEnd && data[end] != ';')
+            end++;
+        if (end == slash + 1 || end - slash - 1 > 30)
+            return null;
+        return new String(data, valueStart, end - valueStart, TextUtils.latin1);
+    }
+
+    /**
+     * @return the status header of the value, null if not valid.
+     * @throws InvalidHeaderException on an unknown namespace or status-code.
+     */
+    /* Status = "Status:" SP namespace SP status-code [SP text-reason] */
+    StatusHeader getStatus() throws InvalidHeaderException
+    {
+        int i = valueStart;
+        if (valueEnd - i < 7 || !isDigits(i, 3) || data[i + 3] != ' ' ||
+            !isDigits(i + 4, 3))
+            return null;
+        return new StatusHeader(
+            new String(data, i, 3, TextUtils.latin1),
+            new String(data, i + 4, 3, TextUtils.latin1),
+            new String(data, i + 7, valueEnd - i - 7, TextUtils.latin1));
+    }
+
+    /**
+     * @return the quoted nickname of the value, null if not found.
+     */
+    String getNickname()
+    {
+        int i = valueStart;
+        while (i < valueEnd && data[i] == ' ')
+            i++;
+        if (i >= valueEnd || data[i] != '"')
+            return null;
+        int start = ++i;
+        while (i < valueEnd && data[i] != '"')
+            i++;
+        if (i == start || i >= valueEnd)
+            return null;
+        return new String(data, start, i - start, TextUtils.latin1);
+    }
+
+    private boolean isDigits(int offset, int count)
+    {
+        for (int i = offset; i < offset + count; i++)
+            if (!isDigit(data[i]))
+                return false;
+        return true;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlnum(byte b)
+    {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+import javax.net.msrp.exceptions.NotEnoughDataException;
+import javax.net.msrp.exceptions.NotEnoughStorageException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An implementation of the data container class that accesses the file
+ * holding the data through memory mapped windows on it.
+ * <p>
+ * Reads and writes are served from the page cache without a system call or
+ * buffer allocation per access, sent data is handed to the connection as a
+ * view on the mapping. Meant for large transfers.
+ * <p>
+ * Only the existing part of the file is mapped, data put beyond its end is
+ * appended with plain writes. So when receiving, create the container with
+ * the size of the message to have all of it written through the mapping.
+ * @see DataContainer
+ * @see FileDataContainer
+ */
+public class MappedFileDataContainer
+    extends DataContainer
+{
+	private static final String IOERR = "I/O problems: ";
+
+	/** The logger associated with this class */
+    private static final Logger logger =
+        LoggerFactory.getLogger(MappedFileDataContainer.class);
+
+    /**
+     * Maximum size of the part of the file mapped by a window.
+     */
+    private static final int WINDOWBYTES = 64 * 1024 * 1024;
+
+    /**
+     * Original File reference
+     */
+    private File file;
+
+    private RandomAccessFile randomAccessFile;
+
+    private FileChannel fileChannel;
+
+    /**
+     * Guards the offsets, the size and the windows.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long currentReadOffset = 0;
+
+    private long currentWriteOffset = 0;
+
+    /**
+     * Size of the file.
+     */
+    private long size;
+
+    /**
+     * The mapped windows used for reading and for writing and where they
+     * start in the file.
+     */
+    private MappedByteBuffer readWindow = null;
+    private long readWindowStart = 0;
+
+    private MappedByteBuffer writeWindow = null;
+    private long writeWindowStart = 0;
+
+    /**
+     * Creates a new DataContainer based on the given file, The file must be
+     * readable and writable.
+     * 
+     * @param file the file to read the data from or write it to.
+     * @throws FileNotFoundException if the file was not found
+     * @throws SecurityException if a security manager exists and denies read
+     *             or write access to the file
+     */
+    public MappedFileDataContainer(File file)
+        throws FileNotFoundException, SecurityException
+    {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+        size = file.length();
+        logger.trace("Created a MappedFileDataContainer for file: " +
+        			file.getAbsolutePath());
+    }
+
+    /**
+     * Creates a new DataContainer based on the given file and sets the size of
+     * the file, so that all data put can be written through the mapping.
+     * 
+     * @param file the file to write the data to.
+     * @param size the size of the data that will be put.
+     * @throws IOException if the file could not be opened or sized.
+     * @throws SecurityException if a security manager exists and denies read
+     *             or write access to the file
+     */
+    public MappedFileDataContainer(File file, long size)
+        throws IOException, SecurityException
+    {
+        this(file);
+        randomAccessFile.setLength(size);
+        this.size = size;
+    }
+
+    /**
+     * Specific method to retrieve the File associated with this container
+     * 
+     * @return the File object, used to store the data
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @param offset the offset in the file to read from.
+     * @return a view on the read window, positioned at offset.
+     * @throws IOException if the window could not be mapped.
+     */
+    private ByteBuffer readWindow(long offset) throws IOException
+    {
+        if (readWindow == null || offset < readWindowStart ||
+            offset >= readWindowStart + readWindow.capacity())
+        {
+            readWindowStart = offset;
+            readWindow = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    offset, Math.min(WINDOWBYTES, size - offset));
+        }
+        ByteBuffer window = readWindow.duplicate();
+        window.position((int) (offset - readWindowStart));
+        return window;
+    }
+
+    /**
+     * @param offset the offset in the file to write at, before the end of
+     *            the file.
+     * @return a view on the write window, positioned at offset.
+     * @throws IOException if the window could not be mapped.
+     */
+    private ByteBuffer writeWindow(long offset) throws IOException
+    {
+        if (writeWindow == null || offset < writeWindowStart ||
+            offset >= writeWindowStart + writeWindow.capacity())
+        {
+            writeWindowStart = offset;
+            writeWindow = fileChannel.map(FileChannel.MapMode.READ_WRITE,
+                    offset, Math.min(WINDOWBYTES, size - offset));
+        }
+        ByteBuffer window = writeWindow.duplicate();
+        window.position((int) (offset - writeWindowStart));
+        return window;
+    }
+
+    private void read(long offset, byte[] dst, int dstOffset, int length)
+        throws IOException
+    {
+        while (length > 0)
+        {
+            ByteBuffer window = readWindow(offset);
+            int chunk = Math.min(length, window.remaining());
+            window.get(dst, dstOffset, chunk);
+            offset += chunk;
+            dstOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void write(long offset, ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining() && offset < size)
+        {
+            ByteBuffer window = writeWindow(offset);
+            int chunk = Math.min(src.remaining(), window.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + chunk);
+            window.put(part);
+            src.position(src.position() + chunk);
+            offset += chunk;
+        }
+        while (src.hasRemaining())
+        {							/* beyond the end, append */
+            int result = fileChannel.write(src, offset);
+            if (result <= 0)
+                throw new IOException("Unable to write to " + file);
+            offset += result;
+            size = Math.max(size, offset);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#size()
+     */
+    @Override
+    public long size()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#currentReadOffset()
+     */
+    @Override
+    public long currentReadOffset()
+    {
+        lock.lock();
+        try
+        {
+            return currentReadOffset;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#hasDataToRead()
+     */
+    @Override
+    public boolean hasDataToRead()
+    {
+        lock.lock();
+        try
+        {
+            return currentReadOffset < size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte[])
+     */
+    @Override
+    public void put(long startingIndex, byte[] dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        lock.lock();
+        try
+        {
+            write(startingIndex, ByteBuffer.wrap(dataToPut));
+            currentWriteOffset = startingIndex + dataToPut.length;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        lock.lock();
+        try
+        {
+            long length = dataToPut.remaining();
+            write(startingIndex, dataToPut);
+            currentWriteOffset = startingIndex + length;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(byte)
+     */
+    @Override
+    public void put(byte byteToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        lock.lock();
+        try
+        {
+            put(currentWriteOffset++, byteToPut);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, byte)
+     */
+    @Override
+    public void put(long startingIndex, byte byteToPut)
+        throws NotEnoughStorageException, IOException
+    {
+        lock.lock();
+        try
+        {
+            if (startingIndex < size)
+                writeWindow(startingIndex).put(byteToPut);
+            else
+                write(startingIndex, ByteBuffer.wrap(new byte[] { byteToPut }));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(long, long)
+     */
+    @Override
+    public ByteBuffer get(long offsetIndex, long size)
+        throws NotEnoughDataException, IllegalUseException, IOException
+    {
+        lock.lock();
+        try
+        {
+            if (size == ALLBYTES)
+                size = this.size - offsetIndex;
+            if (size > MAXIMUMNUMBERBYTES)
+                throw new IllegalUseException("Can't retrieve more than "
+                    + MAXIMUMNUMBERBYTES + "bytes to memory");
+            if (size < 0 || offsetIndex < 0)
+                throw new IllegalUseException("negative size or index");
+            if (offsetIndex + size > this.size)
+                throw new NotEnoughDataException();
+            byte[] data = new byte[(int) size];
+            read(offsetIndex, data, 0, data.length);
+            return ByteBuffer.wrap(data);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#get(byte[], int)
+     */
+    @Override
+    public int get(byte[] dst, int offset)
+        throws IndexOutOfBoundsException, IOException
+    {
+        if (offset > dst.length - 1)
+            throw new IndexOutOfBoundsException();
+        lock.lock();
+        try
+        {
+            int length =
+                (int) Math.min(dst.length - offset, size - currentReadOffset);
+            read(currentReadOffset, dst, offset, length);
+            currentReadOffset += length;
+            return length;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getSlice(int)
+     */
+    @Override
+    public ByteBuffer getSlice(int maxLength) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (currentReadOffset >= size)
+                return ByteBuffer.allocate(0);
+            ByteBuffer slice = readWindow(currentReadOffset);
+            int length = Math.min(maxLength, slice.remaining());
+            slice.limit(slice.position() + length);
+            currentReadOffset += length;
+            return slice;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#rewindRead(long)
+     */
+    @Override
+    public void rewindRead(long nrPositions)
+    {
+        lock.lock();
+        try
+        {
+            currentReadOffset -= nrPositions;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#dispose()
+     * 
+     * The mappings are released when they are garbage collected.
+     */
+    @Override
+    public void dispose()
+    {
+        lock.lock();
+        try
+        {
+            readWindow = null;
+            writeWindow = null;
+            fileChannel.close();
+            randomAccessFile.close();
+        }
+        catch (IOException e)
+        {
+        	logger.error(IOERR, e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
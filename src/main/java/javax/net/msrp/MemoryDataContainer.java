@@ -116,6 +116,27 @@ public class MemoryDataContainer
         }
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#put(long, java.nio.ByteBuffer)
+     */
+    @Override
+    public void put(long startingIndex, ByteBuffer dataToPut)
+        throws NotEnoughStorageException
+    {
+        int length = dataToPut.remaining();
+        try
+        {
+            byteBuffer.position((int) startingIndex);
+            byteBuffer.put(dataToPut);
+        }
+        catch (BufferOverflowException e)
+        {
+            throw new NotEnoughStorageException("Putting " + length +
+                " bytes of data starting in " + startingIndex +
+                " on a buffer with " + byteBuffer.capacity(), e);
+        }
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#put(byte)
      */
@@ -203,6 +224,19 @@ public class MemoryDataContainer
         return bytesToCopy;
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.DataContainer#getSlice(int)
+     */
+    @Override
+    public ByteBuffer getSlice(int maxLength)
+    {
+        ByteBuffer slice = byteBuffer.duplicate();
+        int length = Math.min(maxLength, byteBuffer.remaining());
+        slice.limit(slice.position() + length);
+        byteBuffer.position(byteBuffer.position() + length);
+        return slice;
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.DataContainer#rewindRead(long)
      */
@@ -16,6 +16,8 @@
  */
 package javax.net.msrp;
 
+import java.nio.ByteBuffer;
+
 import javax.net.msrp.events.MessageAbortedEvent;
 import javax.net.msrp.exceptions.*;
 import javax.net.msrp.utils.TextUtils;
@@ -128,6 +130,16 @@ public abstract class Message
      */
     protected Transaction lastSendTransaction = null;
 
+    /**
+     * Is this message accounted in the send queue of its session, resp. its
+     * connection?
+     * 
+     * @see Watermarks
+     */
+    protected boolean sessionQueued = false;
+
+    protected boolean connectionQueued = false;
+
     /**
      * Constructor used by the derived classes
      */
@@ -266,6 +278,49 @@ public abstract class Message
         }
     }
 
+    /**
+     * Retrieve the next maxLength (or less) DATA bytes as a buffer.
+     * 
+     * @param maxLength the maximum number of bytes to retrieve
+     * @return the buffer with the data, empty if there is no more
+     * @throws InternalErrorException when there was an internal error that lead
+     *             this operation to be an unsuccessful one
+     * @see DataContainer#getSlice(int)
+     */
+    public ByteBuffer getSlice(int maxLength) throws InternalErrorException
+    {
+        try
+        {
+            return dataContainer.getSlice(maxLength);
+        }
+        catch (Exception e)
+        {
+            throw new InternalErrorException(e);
+        }
+    }
+
+    /**
+     * Retrieve the next maxLength (or less) DATA bytes as a region of the file
+     * holding them.
+     * 
+     * @param maxLength the maximum number of bytes to retrieve
+     * @return the region or null if the data is not kept in a file
+     * @throws InternalErrorException when there was an internal error that lead
+     *             this operation to be an unsuccessful one
+     * @see DataContainer#getRegion(int)
+     */
+    FileRegion getRegion(int maxLength) throws InternalErrorException
+    {
+        try
+        {
+            return dataContainer.getRegion(maxLength);
+        }
+        catch (Exception e)
+        {
+            throw new InternalErrorException(e);
+        }
+    }
+
     /**
      * Convenience method to retrieve associated counter of this message
      * 
@@ -429,6 +484,15 @@ public abstract class Message
         return size == UNKNOWN ? "*" : Long.toString(size);
     }
 
+    /**
+     * @return the number of bytes this message accounts for in a send queue.
+     * @see Watermarks
+     */
+    long getQueuedSize()
+    {
+        return size < 0 ? 0 : size;
+    }
+
     /**
      * @return session this message is currently associated with.
      * @uml.property name="_session"
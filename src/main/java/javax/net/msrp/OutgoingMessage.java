@@ -57,13 +57,44 @@ public class OutgoingMessage
 		}
     }
 
+    /**
+     * Create a message to send the content of the given file.
+     * <P>
+     * Files of at least {@link Stack#getMappedFileBytes()} are read through a
+     * {@link MappedFileDataContainer}, others through a
+     * {@link FileDataContainer}.
+     * 
+     * @param contentType the content type of the file.
+     * @param file the file to send.
+     * @throws FileNotFoundException if the file could not be opened.
+     * @throws SecurityException if access to the file was denied.
+     */
     public OutgoingMessage(String contentType, File file)
             throws FileNotFoundException, SecurityException
     {
     	if (contentType == null || contentType.length() < 1)
     		throw new InvalidParameterException("Content-type must be specified");
         this.contentType = contentType;
-        dataContainer = new FileDataContainer(file);
+        long mappedFileBytes = Stack.getMappedFileBytes();
+        if (mappedFileBytes > 0 && file.length() >= mappedFileBytes)
+            dataContainer = new MappedFileDataContainer(file);
+        else
+            dataContainer = new FileDataContainer(file);
+        size = dataContainer.size();
+    }
+
+    /**
+     * Create a message to send the content of the given container.
+     * 
+     * @param contentType the content type of the data.
+     * @param dataContainer the container holding the data to send.
+     */
+    public OutgoingMessage(String contentType, DataContainer dataContainer)
+    {
+    	if (contentType == null || contentType.length() < 1)
+    		throw new InvalidParameterException("Content-type must be specified");
+        this.contentType = contentType;
+        this.dataContainer = dataContainer;
         size = dataContainer.size();
     }
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A batch of buffers that is written to a connection with a single gathering
+ * write.
+ * <p>
+ * Filled by the {@link TransactionManager} with buffers on the header, content
+ * and end-line bytes of the transactions to send, and drained by the
+ * {@link Connection}. Content kept in a file can be added as a
+ * {@link FileRegion} instead, that is transferred to the connection in between
+ * the gathering writes of the buffers around it.
+ * 
+ * @see TransactionManager#getDataToSend(OutputBatch)
+ */
+class OutputBatch
+{
+    private final ByteBuffer[] buffers;
+
+    /**
+     * The file regions in this batch, at the index of the (null) buffer they
+     * take the place of. null if this batch takes no regions.
+     */
+    private final FileRegion[] regions;
+
+    /**
+     * Maximum number of bytes to put in this batch.
+     */
+    private final int maxBytes;
+
+    /**
+     * Number of buffers in this batch.
+     */
+    private int count = 0;
+
+    /**
+     * Index of the first buffer that still has bytes to write.
+     */
+    private int first = 0;
+
+    /**
+     * Number of bytes put in this batch.
+     */
+    private int bytes = 0;
+
+    /**
+     * @param maxBuffers the maximum number of buffers in this batch
+     * @param maxBytes the maximum number of bytes in this batch
+     * @param fileRegions whether file regions can be added, i.e. the
+     *            connection writes the bytes to the socket as they are.
+     */
+    OutputBatch(int maxBuffers, int maxBytes, boolean fileRegions)
+    {
+        buffers = new ByteBuffer[maxBuffers];
+        regions = fileRegions ? new FileRegion[maxBuffers] : null;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Empty this batch, so it can be filled again.
+     */
+    void clear()
+    {
+        for (int i = 0; i < count; i++)
+        {
+            buffers[i] = null;
+            if (regions != null)
+                regions[i] = null;
+        }
+        count = 0;
+        first = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return true if no more buffers or bytes can be added.
+     */
+    boolean isFull()
+    {
+        return count == buffers.length || bytes >= maxBytes;
+    }
+
+    /**
+     * @return the number of bytes put in this batch.
+     */
+    int size()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes that can still be added.
+     */
+    int spaceRemaining()
+    {
+        return maxBytes - bytes;
+    }
+
+    /**
+     * Add the bytes between position and limit of the given buffer (if any)
+     * to this batch.
+     * 
+     * @param buffer the buffer to add.
+     */
+    void add(ByteBuffer buffer)
+    {
+        if (!buffer.hasRemaining())
+            return;
+        buffers[count++] = buffer;
+        bytes += buffer.remaining();
+    }
+
+    /**
+     * @return true if file regions can be added to this batch.
+     */
+    boolean acceptsRegions()
+    {
+        return regions != null;
+    }
+
+    /**
+     * Add the given file region (if not empty) to this batch.
+     * 
+     * @param region the region to add.
+     */
+    void add(FileRegion region)
+    {
+        if (region.remaining() == 0)
+            return;
+        regions[count++] = region;
+        bytes += region.remaining();
+    }
+
+    /**
+     * @return true if there are bytes in this batch that were not written yet.
+     */
+    boolean hasRemaining()
+    {
+        while (first < count && !hasRemaining(first))
+            first++;
+        return first < count;
+    }
+
+    private boolean hasRemaining(int index)
+    {
+        if (buffers[index] == null)
+            return regions[index].remaining() > 0;
+        return buffers[index].hasRemaining();
+    }
+
+    /**
+     * Write (as much as possible of) the remaining bytes to the given channel.
+     * Writes up to the next file region or transfers that region.
+     * 
+     * @param channel the channel to write to.
+     * @return the number of bytes written.
+     * @throws IOException if the write failed.
+     */
+    long writeTo(GatheringByteChannel channel) throws IOException
+    {
+        if (!hasRemaining())
+            return 0;
+        if (buffers[first] == null)
+            return regions[first].transferTo(channel);
+        int end = first + 1;
+        while (end < count && buffers[end] != null)
+            end++;
+        return channel.write(buffers, first, end - first);
+    }
+}
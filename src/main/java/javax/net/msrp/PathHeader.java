@@ -0,0 +1,216 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * The URIs of a received To-Path or From-Path, from left to right, kept as
+ * the bytes received.
+ * <P>
+ * The {@link URI}s are only made (and found valid) when asked for, through the
+ * {@link UriCache}; the session is found by the session-id bytes of the first
+ * URI:
+ * <pre>
+ * MSRP-URI = msrp-scheme "://" authority ["/" session-id] ";" transport
+ * </pre>
+ */
+class PathHeader
+{
+    private static final byte[] MSRP = { 'm', 's', 'r', 'p' };
+
+    private static final byte[] SEPARATOR = { ':', '/', '/' };
+
+    private final byte[] value;
+
+    /** Start and end of each URI in the value */
+    private final int[] starts;
+
+    private final int[] ends;
+
+    /**
+     * @param data the header bytes.
+     * @param offset where the value starts.
+     * @param limit where the value ends.
+     */
+    PathHeader(byte[] data, int offset, int limit)
+    {
+        value = new byte[limit - offset];
+        System.arraycopy(data, offset, value, 0, value.length);
+
+        int count = 0;
+        for (int i = 0; i < value.length; i++)
+            if (value[i] != ' ' && (i == 0 || value[i - 1] == ' '))
+                count++;
+        starts = new int[count];
+        ends = new int[count];
+        int i = 0;
+        for (int n = 0; n < count; n++)
+        {
+            while (value[i] == ' ')
+                i++;
+            starts[n] = i;
+            while (i < value.length && value[i] != ' ')
+                i++;
+            ends[n] = i;
+        }
+    }
+
+    /**
+     * @return the number of URIs in the path.
+     */
+    int size()
+    {
+        return starts.length;
+    }
+
+    /**
+     * @param index which URI.
+     * @return the URI as received.
+     */
+    String get(int index)
+    {
+        return new String(value, starts[index], ends[index] - starts[index],
+        				TextUtils.latin1);
+    }
+
+    /**
+     * @param index which URI.
+     * @return the URI.
+     * @throws URISyntaxException if not a valid URI.
+     */
+    URI getUri(int index) throws URISyntaxException
+    {
+        return UriCache.get(value, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @return the URIs, null if one of them is not valid.
+     */
+    URI[] getUris()
+    {
+        URI[] uris = new URI[starts.length];
+        try
+        {
+            for (int i = 0; i < uris.length; i++)
+                uris[i] = getUri(i);
+        }
+        catch (URISyntaxException e)
+        {
+            return null;
+        }
+        return uris;
+    }
+
+    /**
+     * Check that all URIs are valid.
+     *
+     * @throws URISyntaxException on the first one that is not.
+     */
+    void validate() throws URISyntaxException
+    {
+        for (int i = 0; i < starts.length; i++)
+            getUri(i);
+    }
+
+    /**
+     * Check the form of the URIs on their bytes, without parsing them: there
+     * is at least one, each of the msrp or msrps scheme and with a transport.
+     * Whether they are valid URIs is only known once asked for.
+     *
+     * @return true if well formed.
+     */
+    boolean isWellFormed()
+    {
+        if (starts.length == 0)
+            return false;
+        for (int n = 0; n < starts.length; n++)
+        {
+            int i = starts[n];
+            if (!startsWith(i, MSRP))
+                return false;
+            i += MSRP.length;
+            if (i < ends[n] && value[i] == 's')
+                i++;
+            if (!startsWith(i, SEPARATOR))
+                return false;
+            int transport = i + SEPARATOR.length;
+            while (transport < ends[n] && value[transport] != ';')
+                transport++;
+            if (transport >= ends[n] - 1)
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int at, byte[] prefix)
+    {
+        if (at + prefix.length > value.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (value[at + i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the session-id of the first URI, null if none.
+     */
+    ByteSlice getSessionId()
+    {
+        if (starts.length == 0)
+            return null;
+        return sessionId(value, starts[0], ends[0]);
+    }
+
+    /**
+     * @param uri an MSRP URI.
+     * @return the session-id of it, null if none.
+     */
+    static ByteSlice getSessionId(URI uri)
+    {
+        byte[] bytes = uri.toASCIIString().getBytes(TextUtils.usascii);
+        return sessionId(bytes, 0, bytes.length);
+    }
+
+    private static ByteSlice sessionId(byte[] data, int offset, int limit)
+    {
+        int i = offset;
+        while (i < limit - 2 &&
+               !(data[i] == ':' && data[i + 1] == '/' && data[i + 2] == '/'))
+            i++;
+        i += 3;							// skip the authority
+        while (i < limit && data[i] != '/')
+            i++;
+        int start = i + 1;
+        int end = start;
+        while (end < limit && data[end] != ';')
+            end++;
+        if (start >= limit || end == start)
+            return null;
+        return new ByteSlice(data, start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(value, TextUtils.latin1);
+    }
+}
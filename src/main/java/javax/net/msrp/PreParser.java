@@ -4,6 +4,7 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 import javax.net.msrp.exceptions.ParseException;
+import javax.net.msrp.utils.ByteScanner;
 import javax.net.msrp.utils.TextUtils;
 
 import org.slf4j.Logger;
@@ -35,6 +36,11 @@ class PreParser
 
     private short preState = 0;
 
+    /**
+     * The end-line of the transaction whose content-stuff is received.
+     */
+    private EndLineMatcher endLine = null;
+
     /**
      * Save the possible start of end-line.
      * Max size:
@@ -94,8 +100,15 @@ class PreParser
                 switch (preState)
                 {
                 case 0:
-                    if (data.get() == '\r')
+                    int cr = ByteScanner.indexOf(data.array(), data.position(),
+                                                 data.limit(), (byte) '\r');
+                    if (cr < 0)
+                        data.position(data.limit());
+                    else
+                    {
+                        data.position(cr + 1);
                         preState++;
+                    }
                     break;
                 case 1:
                     if (data.get() == '\n')
@@ -116,10 +129,12 @@ class PreParser
                         connection.parser(data.array(), indexProcessed,
                             data.position() - indexProcessed,
                             inContentStuff);
-                        if (connection.getCurrentIncomingTid() == null)
+                        endLine = connection.getEndLineMatcher();
+                        if (endLine == null)
                         	throw new ParseException(
                         					"no transaction found");
 
+                        endLine.reset();
                         indexProcessed = data.position();
                         inContentStuff = true;
                     }
@@ -129,94 +144,22 @@ class PreParser
             }
             else					// data, hunt for end-line
             {
-                switch (preState)
+                int found = endLine.find(data.array(), data.position(),
+                                         data.limit());
+                if (found < 0)
+                    data.position(data.limit());
+                else
                 {
-                case 0:
-                    if (data.get() == '\r')
-                        preState++;
-                    break;
-                case 1:
-                    if (data.get() == '\n')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                case 2:
-                case 3:
-                case 4:
-                case 5:
-                case 6:
-                case 7:
-                case 8:
-                    if (data.get() == '-')
-                        preState++;
-                    else
-                        reset(data);
-                    break;
-                default:
-                    if (preState >= 9)
-                    {
-                        if (connection.getCurrentIncomingTid() == null)
-                        	throw new ParseException(
-                        					"no transaction found");
-
-                        int tidSize = connection.getCurrentIncomingTid().length();
-                        if (tidSize == (preState - 9))
-                        {
-                            /*
-                             * End of Tx-id, look for valid continuation flag.
-                             */
-                            char incChar = (char) data.get();
-                            if (incChar == '+' || incChar == '$' ||
-                                incChar == '#')
-                            {
-                                preState++;
-                            }
-                            else
-                                reset(data);
-                        }
-                        else if ((preState - 9) > tidSize)
-                        {
-                            if ((preState - 9) == tidSize + 1)
-                            {		/* expect the CR here */
-                                if (data.get() == '\r')
-                                    preState++;
-                                else
-                                    reset(data);
-                            }
-                            else if ((preState - 9) == tidSize + 2)
-                            {		/* expect the LF here */
-                                if (data.get() == '\n')
-                                {
-                                    preState++;
-                                    /*
-                                     * body received so process all of the
-                                     * data we have so far excluding CRLF
-                                     * and "end-line" that later must be
-                                     * parsed as text.
-                                     */
-                                    data.position(data.position() - preState);
-                                    connection.parser(data.array(), indexProcessed,
-                                		data.position() - indexProcessed,
-                                		inContentStuff);
-                                    indexProcessed = data.position();
-                                    inContentStuff = false;
-                                    preState = 0;
-                                }
-                                else
-                                    reset(data);
-                            }
-                        }
-                        else
-                        {
-                        	if ((tidSize > (preState - 9)) &&
-                        		(data.get() == connection.getCurrentIncomingTid().charAt(preState - 9)))
-                        		preState++;
-                        	else
-                        		reset(data);
-                        }
-                    }				// end of default:
-                    break;
+                    /*
+                     * body received so process all of the data we have so
+                     * far excluding CRLF and "end-line" that later must be
+                     * parsed as text.
+                     */
+                    data.position(found - endLine.length());
+                    connection.parser(data.array(), indexProcessed,
+                        data.position() - indexProcessed, inContentStuff);
+                    indexProcessed = data.position();
+                    inContentStuff = false;
                 }
             }
         }							// while (data.hasRemaining())
@@ -226,18 +169,19 @@ class PreParser
          * content-stuff) to be wrapped to next scan.
          */
         int endOfData = data.position();
-        if (inContentStuff && preState != 0)
+        if (inContentStuff && endLine.getPartial() != 0)
         {
-            endOfData -= preState;		/* here we save the state */
+            int partial = endLine.getPartial();
+            endOfData -= partial;		/* here we save the state */
             try
             {
-                wrapBuffer.put(data.array(), endOfData, preState);
+                wrapBuffer.put(data.array(), endOfData, partial);
             }
             catch (BufferOverflowException e)
             {
             	logger.error(String.format(
         			"Error wrapping %d bytes (from[%d] to[%d])\nContent:[%s]",
-        			preState, endOfData, data.position(),
+        			partial, endOfData, data.position(),
                     new String(data.array(), TextUtils.utf8).substring(endOfData, data.position())
     			));
                 throw e;
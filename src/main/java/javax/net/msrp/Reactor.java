@@ -0,0 +1,270 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.msrp.exceptions.ConnectionLostException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking I/O reactor for {@link Connection}s.
+ * <P>
+ * Instead of running a read and a write thread for every connection, the
+ * reactor owns a small, fixed pool of event loops, each with its own
+ * {@link Selector}. Every connection handed to the reactor is registered on
+ * one of the loops (round-robin) and is from then on only serviced by that
+ * loop's thread: incoming data is read and fed to the connection's
+ * {@link PreParser}, outgoing data is fetched from its
+ * {@link TransactionManager} when the socket becomes writable.
+ * <P>
+ * The reactor is enabled with {@link Stack#setReactorThreads(int)}.
+ *
+ * @see Connection#registerWith(EventLoop, Selector)
+ */
+class Reactor
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(Reactor.class);
+
+    private final EventLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Create and start a reactor.
+     *
+     * @param nrLoops the number of event loops (and threads) to run.
+     * @throws IOException if a selector could not be opened.
+     */
+    Reactor(int nrLoops) throws IOException
+    {
+        if (nrLoops < 1)
+            throw new IllegalArgumentException(
+                "A reactor needs at least one event loop");
+        loops = new EventLoop[nrLoops];
+        for (int i = 0; i < nrLoops; i++)
+        {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        logger.debug("Started reactor with " + nrLoops + " event loop(s)");
+    }
+
+    /**
+     * @return the number of event loops of this reactor.
+     */
+    int size()
+    {
+        return loops.length;
+    }
+
+    /**
+     * Stop the event loops and close their selectors, waiting for their
+     * threads to end. The connections still registered are no longer
+     * serviced.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop() throws InterruptedException
+    {
+        for (EventLoop loop : loops)
+            loop.stop();
+        for (EventLoop loop : loops)
+            loop.thread.join();
+        logger.debug("Stopped reactor");
+    }
+
+    /**
+     * Hand the given (connected) connection over to one of the event loops.
+     *
+     * @param connection the connection to service.
+     */
+    void register(Connection connection)
+    {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+                        % loops.length;
+        loops[index].register(connection);
+    }
+
+    /**
+     * One selector and the thread that runs it.
+     * <P>
+     * All selection key manipulation is done on the loop thread itself; other
+     * threads hand their requests over as tasks.
+     */
+    static class EventLoop
+        implements Runnable
+    {
+        private final Selector selector;
+
+        private final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * Read buffer shared by all connections of this loop, the pre-parser
+         * consumes its content before the next read takes place.
+         */
+        private final ByteBuffer readBuffer =
+            ByteBuffer.wrap(new byte[Connection.OUTPUTBUFFERLENGTH]);
+
+        private final Thread thread;
+
+        private volatile boolean stopped = false;
+
+        private EventLoop(int index) throws IOException
+        {
+            selector = Selector.open();
+            thread = new Thread(this, "MSRP reactor event loop " + index);
+            thread.setDaemon(true);
+        }
+
+        private void start()
+        {
+            thread.start();
+        }
+
+        /* the loop ends and closes its selector */
+        private void stop()
+        {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        /**
+         * @return true when called from this loop's own thread.
+         */
+        boolean inEventLoop()
+        {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Run the given task on the loop thread.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            if (!inEventLoop())
+                selector.wakeup();
+        }
+
+        private void register(final Connection connection)
+        {
+            execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        connection.registerWith(EventLoop.this, selector);
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error("Unable to register " + connection
+                            + " with the reactor", e);
+                    }
+                }
+            });
+        }
+
+        private void runTasks()
+        {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Reactor task failed", e);
+                }
+            }
+        }
+
+        public void run()
+        {
+            while (!stopped)
+            {
+                try
+                {
+                    runTasks();
+                    selector.select();
+                    Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        process(key);
+                    }
+                }
+                catch (IOException e)
+                {
+                    logger.error("Reactor select failed", e);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Unexpected error in reactor event loop", e);
+                }
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Closing reactor selector failed", e);
+            }
+        }
+
+        private void process(SelectionKey key)
+        {
+            Connection connection = (Connection) key.attachment();
+            try
+            {
+                if (key.isValid() && key.isReadable())
+                    connection.readReady(readBuffer);
+                if (key.isValid() && key.isWritable())
+                    connection.writeReady();
+            }
+            catch (CancelledKeyException e)
+            {
+                /* connection was closed in the meantime */;
+            }
+            catch (ConnectionLostException cle)
+            {
+                key.cancel();
+                connection.close();
+                connection.notifyConnectionLoss(cle);
+            }
+        }
+    }
+}
@@ -86,10 +86,13 @@ public abstract class ReportMechanism
 	        outgoingMessage.lastCallSentData =
 	            outgoingMessage.getDataContainer().currentReadOffset();
 
-        // TODO call the connection prioritizer method so far we will only check
-        // to see if message is complete and account it on the session's sent
-        // messages, if the connectionprioritizer is called the next lines
-        // should be removed:
+        TransactionManager manager = session.getTransactionManager();
+        ConnectionPrioritizer prioritizer =
+            manager == null ? null : manager.getPrioritizer();
+        if (prioritizer != null)
+            prioritizer.accountSentBytes(session, outgoingMessage,
+                numberBytesSent);
+
         // Store the sent message based on the success report
         if (outgoingMessage.wantSuccessReport())
             session.addSentOrSendingMessage(outgoingMessage);
@@ -16,7 +16,7 @@
  */
 package javax.net.msrp;
 
-import java.net.URI;
+import java.nio.ByteBuffer;
 
 import javax.net.msrp.exceptions.IllegalUseException;
 import javax.net.msrp.exceptions.ImplementationException;
@@ -76,10 +76,10 @@ public class ReportTransaction
 
         header.append("MSRP ").append(tID).append(" REPORT\r\nTo-Path:");
 
-        URI[] toPathURIs = transaction.getFromPath();
-        for (int i = 0; i < toPathURIs.length; i++)
+        PathHeader toPath = transaction.fromPath;
+        for (int i = 0; i < toPath.size(); i++)
         {
-            header.append(" ").append(toPathURIs[i]);
+            header.append(" ").append(toPath.get(i));
         }
         header	.append("\r\nFrom-Path: ").append(message.getSession().getURI())
         		.append("\r\nMessage-ID: ").append(message.getMessageID());
@@ -150,6 +150,28 @@ public class ReportTransaction
         return bytesCopied;
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.Transaction#getDataSlice(int)
+     */
+    @Override
+    public ByteBuffer getDataSlice(int maxLength)
+        throws ImplementationException
+    {
+        if (interrupted)
+            throw new ImplementationException(
+        			"Message interrupted, should be retrieving endline");
+        return getHeaderSlice(maxLength);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.Transaction#getDataRegion(int)
+     */
+    @Override
+    FileRegion getDataRegion(int maxLength)
+    {
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.Transaction#hasData()
      */
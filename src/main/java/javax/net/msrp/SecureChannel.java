@@ -0,0 +1,518 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS over a socket channel, for msrps connections.
+ * <p>
+ * Works with a blocking channel (read and write thread per connection) as
+ * well as with a non-blocking one serviced by the {@link Reactor}. The
+ * handshake is driven by reading; writes wait for it to finish on a blocking
+ * channel and write nothing on a non-blocking one.
+ * <p>
+ * The network and application buffers are taken from the {@link BufferPool}
+ * and returned to it on close.
+ * 
+ * @see Stack#setSSLContext(javax.net.ssl.SSLContext)
+ */
+class SecureChannel
+    implements ByteChannel, GatheringByteChannel
+{
+    /** The logger associated with this class */
+    private static final Logger logger =
+        LoggerFactory.getLogger(SecureChannel.class);
+
+    private static final ByteBuffer[] NOTHING =
+        new ByteBuffer[] { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    /**
+     * Received data not unwrapped yet (filling).
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Unwrapped data not read yet (draining).
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * Wrapped data not written yet (draining).
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Guards unwrapping and the inbound buffers.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    /**
+     * Guards wrapping and the outbound buffer.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Condition handshaken = writeLock.newCondition();
+
+    private volatile boolean handshakeDone = false;
+
+    private volatile boolean handshakeNews = false;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param channel the connected socket channel.
+     * @param engine the engine to use, in client or server mode.
+     * @throws SSLException if the handshake could not be started.
+     */
+    SecureChannel(SocketChannel channel, SSLEngine engine)
+        throws SSLException
+    {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = BufferPool.acquire(session.getPacketBufferSize());
+        appIn = BufferPool.acquire(session.getApplicationBufferSize());
+        appIn.flip();
+        netOut = BufferPool.acquire(session.getPacketBufferSize());
+        netOut.flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * @return the TLS session of this channel.
+     */
+    SSLSession getSession()
+    {
+        return engine.getSession();
+    }
+
+    /**
+     * @return true once the (first) handshake finished.
+     */
+    boolean isHandshakeDone()
+    {
+        return handshakeDone;
+    }
+
+    /**
+     * Reactor mode: whether a handshake finished since the last call, and so
+     * writes that were held back can go ahead.
+     * 
+     * @return true once for every finished handshake.
+     */
+    boolean takeHandshakeNews()
+    {
+        if (!handshakeNews)
+            return false;
+        handshakeNews = false;
+        return true;
+    }
+
+    /**
+     * @return true if wrapped data is waiting for the socket.
+     */
+    boolean hasPendingOutput()
+    {
+        writeLock.lock();
+        try
+        {
+            return netOut != null && netOut.hasRemaining();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+     */
+    public int read(ByteBuffer dst) throws IOException
+    {
+        readLock.lock();
+        try
+        {
+            while (true)
+            {
+                checkOpen();
+                if (appIn.hasRemaining())
+                    return transfer(appIn, dst);
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_WRAP)
+                {
+                    if (!handshake())
+                        return 0;
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_TASK)
+                {
+                    runTasks();
+                    continue;
+                }
+                SSLEngineResult result;
+                netIn.flip();
+                appIn.clear();
+                try
+                {
+                    result = engine.unwrap(netIn, appIn);
+                }
+                finally
+                {
+                    netIn.compact();
+                    appIn.flip();
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+                    handshakeFinished();
+                switch (result.getStatus())
+                {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining())
+                        netIn = enlarge(netIn,
+                                    engine.getSession().getPacketBufferSize());
+                    int readNrBytes = channel.read(netIn);
+                    if (readNrBytes < 0)
+                    {
+                        closeInbound();
+                        return -1;
+                    }
+                    if (readNrBytes == 0)
+                        return 0;
+                    break;
+                case BUFFER_OVERFLOW:		// appIn is empty, just replace it
+                    int size = engine.getSession().getApplicationBufferSize();
+                    BufferPool.release(appIn);
+                    appIn = BufferPool.acquire(size > appIn.capacity() ?
+                                size : 2 * appIn.capacity());
+                    appIn.flip();
+                    break;
+                case CLOSED:
+                    if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                        handshake();		// answer the close_notify
+                    return -1;
+                default:
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Wrap and write what the handshake needs to send.
+     * 
+     * @return false if wrapped data could not be written yet (non-blocking).
+     * @throws IOException on channel or TLS errors.
+     */
+    boolean handshake() throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            checkOpen();
+            while (flush())
+            {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK)
+                    runTasks();
+                else if (status != HandshakeStatus.NEED_WRAP ||
+                         wrap(NOTHING, 0, 1).getStatus() ==
+                             SSLEngineResult.Status.CLOSED)
+                    return flush();
+            }
+            return false;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+     */
+    public int write(ByteBuffer src) throws IOException
+    {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])
+     */
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[], int, int)
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            checkOpen();
+            if (!flush())
+                return 0;
+            while (!handshakeDone)
+            {
+                if (!channel.isBlocking())
+                    return 0;
+                try
+                {
+                    handshaken.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException(e.getMessage());
+                }
+                checkOpen();
+            }
+            long written = 0;
+            while (hasRemaining(srcs, offset, length))
+            {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    throw new ClosedChannelException();
+                written += result.bytesConsumed();
+                if (!flush())
+                    break;
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+                    runTasks();
+                else if (result.bytesConsumed() == 0 &&
+                    result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP)
+                    break;			// renegotiating, reading has to go first
+            }
+            return written;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    public boolean isOpen()
+    {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Send a close_notify (when possible without waiting), close the socket
+     * and return the buffers to the pool.
+     * 
+     * @see java.nio.channels.Channel#close()
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        engine.closeOutbound();
+        try
+        {
+            if (writeLock.tryLock())
+            {
+                try
+                {
+                    if (flush())
+                    {
+                        wrap(NOTHING, 0, 1);
+                        flush();
+                    }
+                }
+                finally
+                {
+                    writeLock.unlock();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.debug("Unable to send close_notify: " + e.getMessage());
+        }
+        finally
+        {
+            channel.close();
+        }
+        readLock.lock();
+        writeLock.lock();
+        try
+        {
+            handshaken.signalAll();
+            BufferPool.release(netIn);
+            BufferPool.release(appIn);
+            BufferPool.release(netOut);
+            netIn = appIn = netOut = null;
+        }
+        finally
+        {
+            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException
+    {
+        if (closed)
+            throw new ClosedChannelException();
+    }
+
+    /**
+     * Wrap into the (empty) outbound buffer. Call with the write lock held.
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length)
+        throws SSLException
+    {
+        while (true)
+        {
+            SSLEngineResult result;
+            netOut.clear();
+            try
+            {
+                result = engine.wrap(srcs, offset, length, netOut);
+            }
+            finally
+            {
+                netOut.flip();
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+                handshakeFinished();
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+                return result;
+            int size = engine.getSession().getPacketBufferSize();
+            BufferPool.release(netOut);
+            netOut = BufferPool.acquire(size > netOut.capacity() ?
+                        size : 2 * netOut.capacity());
+        }
+    }
+
+    /**
+     * Write the outbound buffer. Call with the write lock held.
+     * 
+     * @return false if not all could be written (non-blocking).
+     */
+    private boolean flush() throws IOException
+    {
+        while (netOut.hasRemaining())
+        {
+            if (channel.write(netOut) == 0 && !channel.isBlocking())
+                return false;
+        }
+        return true;
+    }
+
+    private void handshakeFinished()
+    {
+        writeLock.lock();
+        try
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("TLS handshake finished: " +
+                    engine.getSession().getProtocol() + ", " +
+                    engine.getSession().getCipherSuite());
+            handshakeDone = true;
+            handshakeNews = true;
+            handshaken.signalAll();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    private void closeInbound()
+    {
+        try
+        {
+            engine.closeInbound();
+        }
+        catch (SSLException e)
+        {
+            logger.debug("Connection closed without close_notify: " +
+                e.getMessage());
+        }
+    }
+
+    /**
+     * @return a larger buffer (filling) with the content of the given one,
+     *         which is returned to the pool.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size)
+    {
+        ByteBuffer larger = BufferPool.acquire(
+            size > buffer.capacity() ? size : 2 * buffer.capacity());
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.release(buffer);
+        return larger;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst)
+    {
+        int size = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + size);
+        dst.put(src);
+        src.limit(limit);
+        return size;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset,
+        int length)
+    {
+        for (int i = offset; i < offset + length; i++)
+            if (srcs[i].hasRemaining())
+                return true;
+        return false;
+    }
+}
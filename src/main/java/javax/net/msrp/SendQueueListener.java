@@ -0,0 +1,41 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.EventListener;
+
+/**
+ * Callback interface for the flow control of the send queue of a session.
+ *
+ * @see Session#setSendQueueListener(SendQueueListener)
+ * @see Watermarks
+ */
+public interface SendQueueListener
+    extends EventListener
+{
+    /**
+     * Signal that the send queue of the session (and that of its connection)
+     * drained below its low watermark after having been full, messages
+     * can be sent again without blocking or failing.
+     * <p>
+     * Called from the thread writing the connection: do not block here.
+     *
+     * @param session the session that can send again.
+     * @see Session#isWritable()
+     */
+    public void sendQueueDrained(Session session);
+}
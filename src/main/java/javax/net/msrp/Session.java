@@ -24,6 +24,11 @@ import java.net.URI;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.msrp.events.*;
 import javax.net.msrp.exceptions.*;
@@ -102,6 +107,31 @@ public class Session
      */
     private ArrayList<Message> sendQueue = new ArrayList<Message>();
 
+    /**
+     * Guards the queue of messages to send, that any thread may add to. Held
+     * while handing the messages to the transaction manager, so that they
+     * are queued there in the same order.
+     */
+    private final ReentrantLock queueLock = new ReentrantLock();
+
+    /**
+     * Accounts the messages queued on this session against its watermarks.
+     */
+    private FlowControl flowControl =
+        new FlowControl(Stack.getSessionWatermarks());
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private ChunkingPolicy chunkingPolicy =
+        Stack.getChunkingPolicy().newInstance();
+
+    private SendQueueListener sendQueueListener;
+
+    /**
+     * Was this session seen full since it last drained?
+     */
+    private final AtomicBoolean full = new AtomicBoolean(false);
+
     /**
      * stores sent/being sent messages (by message-ID) on request of the Success-Report field.
      * @uml.property name="_messagesSent"
@@ -133,7 +163,7 @@ public class Session
      * Connection will be established once a call to {@link #setToPath(ArrayList)}
      * defines the target-list. 
      * 
-     * @param isSecure	Is it a secure connection or not (use TLS - not implemented yet)?
+     * @param isSecure	Is it a secure connection or not (use TLS, msrps)?
      * @param isRelay	is this a relaying session?
      * @param address	the address to use as local endpoint.
      * @throws InternalErrorException if any error ocurred. More info about the
@@ -153,7 +183,7 @@ public class Session
         this.isRelay = isRelay;
         try
         {
-            connection = new Connection(address);
+            connection = new Connection(address, isSecure);
 
             // Generate new URI and add to list of connection-URIs.
             uri = connection.generateNewURI();
@@ -175,7 +205,7 @@ public class Session
      * <br>
      * Messages will be queued until the destination contacts this session.
      * 
-     * @param isSecure	Is it a secure connection or not (use TLS - not implemented yet)?
+     * @param isSecure	Is it a secure connection or not (use TLS, msrps)?
      * @param isRelay	is this a relaying session?
      * @param toUri		the destination URI that will contact this session.
      * @param address	the address to use as local endpoint.
@@ -196,7 +226,7 @@ public class Session
         this.isRelay = isRelay;
         try
         {
-            connection = Stack.getConnectionsInstance(address);
+            connection = Stack.getConnectionsInstance(address, isSecure);
             uri = ((Connections) connection).generateAndStartNewUri();
             stack.addConnection(uri, connection);
         }
@@ -300,6 +330,113 @@ public class Session
         }
     }
 
+    /**
+     * Bound the send queue of this session.
+     * 
+     * @param watermarks the watermarks to apply, {@link Watermarks#NONE} for
+     * 			an unbounded queue.
+     * @see Stack#setSessionWatermarks(Watermarks)
+     */
+    public void setWatermarks(Watermarks watermarks)
+    {
+        if (watermarks == null)
+            throw new IllegalArgumentException("No watermarks");
+        flowControl.setWatermarks(watermarks);
+        checkDrained();
+    }
+
+    /**
+     * @return the watermarks of the send queue of this session.
+     */
+    public Watermarks getWatermarks()
+    {
+        return flowControl.getWatermarks();
+    }
+
+    /**
+     * Set what sending a message does while the send queue of this session,
+     * or that of its connection, is full.
+     * <br>
+     * Note: do not send blocking from a listener when the connections are
+     * serviced by a reactor; the queue cannot drain while its thread waits.
+     * 
+     * @param policy block (default), fail or queue anyway.
+     * @see #isWritable()
+     */
+    public void setOverflowPolicy(OverflowPolicy policy)
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("No overflow policy");
+        overflowPolicy = policy;
+    }
+
+    /**
+     * @return what sending a message does while the send queue is full.
+     */
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set how the messages sent from now on are split into chunks.
+     * 
+     * @param policy the chunking policy, {@link ChunkingPolicy#NONE} to send
+     * 			each message in a single SEND.
+     * @see Stack#setChunkingPolicy(ChunkingPolicy)
+     */
+    public void setChunkingPolicy(ChunkingPolicy policy)
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("No chunking policy");
+        chunkingPolicy = policy;
+    }
+
+    /**
+     * @return how the messages are split into chunks.
+     */
+    public ChunkingPolicy getChunkingPolicy()
+    {
+        return chunkingPolicy;
+    }
+
+    /** Set a listener to be told when a full send queue drained.
+     * 
+     * @param listener the listener, null to remove it.
+     */
+    public void setSendQueueListener(SendQueueListener listener)
+    {
+        sendQueueListener = listener;
+    }
+
+    /**
+     * @return false while the send queue of this session, or that of its
+     * 			connection, is full.
+     * @see Watermarks
+     */
+    public boolean isWritable()
+    {
+        TransactionManager tm = txManager;
+        return flowControl.isWritable() &&
+               (tm == null || tm.getFlowControl().isWritable());
+    }
+
+    /**
+     * Enable or disable Nagle's algorithm on the connection of this session
+     * (shared with the other sessions on it, if any).
+     * 
+     * @param noDelay true to set TCP_NODELAY.
+     * @throws IOException if the option could not be set.
+     * @throws IllegalStateException when this session has no connection yet.
+     * @see Stack#setTcpNoDelay(boolean)
+     */
+    public void setTcpNoDelay(boolean noDelay) throws IOException
+    {
+        if (connection == null)
+            throw new IllegalStateException(this + " has no connection");
+        connection.setTcpNoDelay(noDelay);
+    }
+
     /**
      * @deprecated, use {@link #setToPath(ArrayList)}, instead
      */
@@ -322,6 +459,113 @@ public class Session
      * @see #create(boolean, boolean, InetAddress)
      */
     public void setToPath(ArrayList<URI> uris) throws IOException
+    {
+        addToUris(uris);
+        if (!usePooledConnection())
+        {
+            connection.addEndPoint(getNextURI(), localAddress);
+            stack.getConnectionPool().add(this, getNextURI(), localAddress,
+            							  connection);
+        }
+        activate();
+    }
+
+    /**
+     * Adds the given destination URI's and establish the connection according
+     * RFC, without waiting for the connection.
+     * <br>
+     * This call should follow the creation of a {@link Session}. Messages can
+     * be sent right away, they are queued until the connection is established.
+     * Cancelling the returned future does not stop the connect.
+     * 
+     * @param uris the to-path to use.
+     * @return the future of this session, done once connected or, with the
+     * 			{@link IOException} as cause, when the connection failed.
+     * 
+     * @throws IllegalArgumentException if the given URI's are not MSRP URIs
+     * @throws RuntimeException when called twice.
+     * @see Stack#setConnectTimeout(int)
+     */
+    public Future<Session> setToPathAsync(ArrayList<URI> uris)
+    {
+        addToUris(uris);
+        final ConnectFuture future = new ConnectFuture();
+        try
+        {
+            if (usePooledConnection())
+            {
+                activate();
+                future.succeed(this);
+                return future;
+            }
+            Stack.getConnector().connect(connection, getNextURI(),
+                new Connector.Listener()
+                {
+                    public void connected(Connection connection)
+                    {
+                        if (stack == null)	// torn down in the meantime
+                        {
+                            connection.close();
+                            future.fail(new IOException("Session torn down"));
+                            return;
+                        }
+                        try
+                        {
+                            connection.start(getNextURI(), localAddress);
+                        }
+                        catch (IOException e)
+                        {
+                            future.fail(e);
+                            return;
+                        }
+                        stack.getConnectionPool().add(Session.this,
+                            getNextURI(), localAddress, connection);
+                        activate();
+                        future.succeed(Session.this);
+                    }
+
+                    public void failed(Connection connection, IOException cause)
+                    {
+                        future.fail(cause);
+                    }
+                });
+        }
+        catch (IOException e)
+        {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Future of an asynchronous {@link #setToPathAsync(ArrayList)}.
+     */
+    private static class ConnectFuture
+        extends FutureTask<Session>
+    {
+        private ConnectFuture()
+        {
+            super(new Callable<Session>()
+            {
+                public Session call()
+                {
+                    return null;		// never run, completed by the connector
+                }
+            });
+        }
+
+        private void succeed(Session session)
+        {
+            set(session);
+        }
+
+        private void fail(Throwable cause)
+        {
+            setException(cause);
+        }
+    }
+
+    private void addToUris(ArrayList<URI> uris)
     {
     	if (!toUris.isEmpty())			// sanity check
     		throw new RuntimeException("Cannot set To-path twice");
@@ -332,16 +576,49 @@ public class Session
         	else
         		throw new IllegalArgumentException("Invalid To-URI: " + uri);
         }
-        connection.addEndPoint(getNextURI(), localAddress);
+    }
 
+    /**
+     * Use a pooled connection to the peer, when there is one with room for
+     * this session or a pre-warmed one.
+     * 
+     * @return true if this session now uses a pooled connection.
+     * @throws IOException if a pre-warmed connection could not be started.
+     * @see ConnectionPool
+     */
+    private boolean usePooledConnection() throws IOException
+    {
+        ConnectionPool pool = stack.getConnectionPool();
+        Connection pooled = pool.attach(this, getNextURI(), localAddress);
+        if (pooled == null)
+        {
+            pooled = pool.takeIdle(getNextURI(), localAddress);
+            if (pooled == null)
+                return false;
+            pooled.start(getNextURI(), localAddress);
+            pool.add(this, getNextURI(), localAddress, pooled);
+        }
+        connection.close();				// drop our own, unconnected one
+        connection = pooled;
+        stack.addConnection(uri, connection);
+        logger.debug(this + " uses pooled connection " +
+        			connection.getLocalURI());
+        return true;
+    }
+
+    /**
+     * Start sending over the (now established) connection.
+     */
+    private void activate()
+    {
         txManager = connection.getTransactionManager();
-        txManager.addSession(this);
         txManager.initialize(this);
 
         stack.addActiveSession(this);
+        stack.getConnectionPool().prewarm(getNextURI(), localAddress, isSecure);
 
         logger.trace(this + " added "+ toUris.size() +" toPaths with URI[0]="
-        				+ uris.get(0).toString());
+        				+ toUris.get(0).toString());
     }
 
     /** send a bodiless message (keep-alive).
@@ -420,12 +697,92 @@ public class Session
 		if (message.hasData())
 			endComposing();
 		if (message.contentType != null)
+		{
+			admit(message);
 	        addMessageToSend(message);
+		}
 		else
 	        addMessageOnTop(message);
 		return message;
 	}
 
+	/**
+	 * Account the given message in the send queue, applying the overflow
+	 * policy when it is full.
+	 * 
+	 * @param message the message to queue.
+	 * @throws SendQueueFullException when full and set to fail, or when
+	 * 			interrupted while blocked; the message is then not queued.
+	 */
+	private void admit(Message message)
+	{
+		if (!isWritable())
+		{
+			full.set(true);
+			switch (overflowPolicy)
+			{
+			case FAIL:
+				throw new SendQueueFullException(this + " send queue is full");
+			case BLOCK:
+				try
+				{
+					flowControl.awaitWritable();
+					TransactionManager tm = txManager;
+					if (tm != null)
+						tm.getFlowControl().awaitWritable();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new SendQueueFullException(this +
+						" interrupted waiting for its send queue to drain", e);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		synchronized (message)
+		{
+			if (message.sessionQueued)
+				return;
+			message.sessionQueued = true;
+		}
+		if (!flowControl.add(message.getQueuedSize()))
+			full.set(true);
+	}
+
+	/**
+	 * The given message left the send queue of this session.
+	 * 
+	 * @param message the message sent, aborted or discarded.
+	 */
+	protected void messageDequeued(Message message)
+	{
+		synchronized (message)
+		{
+			if (!message.sessionQueued)
+				return;
+			message.sessionQueued = false;
+		}
+		flowControl.release(message.getQueuedSize());
+		checkDrained();
+	}
+
+	/**
+	 * Trigger the {@link SendQueueListener#sendQueueDrained(Session)}
+	 * callback, when the send queue was full and is writable again.
+	 */
+	protected void checkDrained()
+	{
+		if (full.get() && isWritable() && full.compareAndSet(true, false))
+		{
+			SendQueueListener listener = sendQueueListener;
+			if (listener != null)
+				listener.sendQueueDrained(this);
+		}
+	}
+
 	/**
 	 * Reply ok to a NICKNAME request.
 	 * @param request the originating request (transaction)
@@ -611,25 +968,41 @@ public class Session
 		// clear local resources
 		toUris = null;
 
-		if (sendQueue != null)
+		queueLock.lock();
+		try
 		{
-			for (Message msg : sendQueue) {
-				msg.discard();
+			if (sendQueue != null)
+			{
+				for (Message msg : sendQueue) {
+					msg.discard();
+				}
+				sendQueue = null;
 			}
-			sendQueue = null;
 		}
+		finally
+		{
+			queueLock.unlock();
+		}
+		flowControl.close();
+		sendQueueListener = null;
 
 		if (txManager != null)
 		{
 			txManager.removeSession(this);
 			txManager = null;
 		}
-		// FIXME: (javax.net.msrp-31) allow connection reuse by sessions.
 		if (connection != null)
 		{
-			connection.close();
-			if (stack != null)
-			    stack.removeConnection(connection);
+			/* a connection shared with other sessions stays open */
+			if (stack == null ||
+				stack.getConnectionPool().release(this, connection))
+			{
+				connection.close();
+				if (stack != null)
+				    stack.removeConnection(connection);
+			}
+			else
+				stack.removeConnection(uri);
 			connection = null;
 		}
 		if (stack != null)
@@ -711,11 +1084,18 @@ public class Session
      */
     private void addMessageOnTop(Message message)
     {
-        if (sendQueue != null)
+        queueLock.lock();
+        try
         {
-        	sendQueue.add(0, message);
-        	triggerSending();
+            if (sendQueue == null)
+                return;
+            sendQueue.add(0, message);
+        }
+        finally
+        {
+            queueLock.unlock();
         }
+        triggerSending();
     }
 
     /**
@@ -726,11 +1106,18 @@ public class Session
      */
     private void addMessageToSend(Message message)
     {
-        if (sendQueue != null)
+        queueLock.lock();
+        try
         {
+            if (sendQueue == null)
+                return;
             sendQueue.add(message);
-            triggerSending();
         }
+        finally
+        {
+            queueLock.unlock();
+        }
+        triggerSending();
     }
 
 	/**
@@ -738,10 +1125,20 @@ public class Session
 	 */
 	private void triggerSending()
 	{
-		if (txManager != null)
+		TransactionManager manager = txManager;
+		if (manager != null)
 		{
-			while (hasMessagesToSend())
-				txManager.generateTransactionsToSend(getMessageToSend());
+			queueLock.lock();
+			try
+			{
+				Message message;
+				while ((message = getMessageToSend()) != null)
+					manager.generateTransactionsToSend(message);
+			}
+			finally
+			{
+				queueLock.unlock();
+			}
 		}
 	}
 
@@ -750,7 +1147,15 @@ public class Session
      */
     public boolean hasMessagesToSend()
     {
-        return (sendQueue != null) && (!sendQueue.isEmpty());
+        queueLock.lock();
+        try
+        {
+            return (sendQueue != null) && (!sendQueue.isEmpty());
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
     }
 
     /**
@@ -760,9 +1165,17 @@ public class Session
      */
     public Message getMessageToSend()
     {
-    	if (sendQueue == null || sendQueue.isEmpty())
-    		return null;
-    	return sendQueue.remove(0);
+        queueLock.lock();
+        try
+        {
+            if (sendQueue == null || sendQueue.isEmpty())
+                return null;
+            return sendQueue.remove(0);
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
     }
 
     /**
@@ -793,8 +1206,18 @@ public class Session
      */
     protected void delMessageToSend(Message message)
     {
-        if (sendQueue != null)
-        	sendQueue.remove(message);
+        boolean removed;
+        queueLock.lock();
+        try
+        {
+            removed = sendQueue != null && sendQueue.remove(message);
+        }
+        finally
+        {
+            queueLock.unlock();
+        }
+        if (removed)
+        	messageDequeued(message);
     }
 
     /**
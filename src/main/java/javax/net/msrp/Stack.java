@@ -16,16 +16,20 @@
  */
 package javax.net.msrp;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.URI;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.UUID;
 
 import javax.net.msrp.exceptions.*;
+import javax.net.msrp.utils.IdGenerator;
+import javax.net.ssl.SSLContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,12 +56,151 @@ public class Stack implements Observer {
 	 */
 	private static int shortMessageBytes = 1024 * 1024;
 
+	/**
+	 * Number of reactor event loops servicing the connections
+	 * (0 = every connection runs its own read and write thread; default).
+	 */
+	private static int reactorThreads = 0;
+
+	/**
+	 * The reactor, created when the first connection is started in reactor mode.
+	 */
+	private static Reactor reactor = null;
+
+	/**
+	 * Run connection and accept loops on virtual threads (when the JVM has them).
+	 */
+	private static boolean virtualThreads = false;
+
+	/**
+	 * Write outgoing data with gathering writes instead of copying it into
+	 * the output array of the connection first.
+	 */
+	private static boolean gatheringWrites = false;
+
+	/**
+	 * Time the write cycle waits for more data to coalesce into one write, in
+	 * microseconds (0 = no waiting; default).
+	 */
+	private static int coalesceMicros = 0;
+
+	/**
+	 * Number of bytes after which a coalesced write goes out right away.
+	 */
+	private static int coalesceBytes = 16 * 1024;
+
+	/**
+	 * Disable Nagle's algorithm on new connections?
+	 */
+	private static boolean tcpNoDelay = false;
+
+	/**
+	 * Minimum size of the files that are sent through a memory mapped
+	 * container (0 = never; default).
+	 */
+	private static long mappedFileBytes = 0;
+
+	/**
+	 * Maximum number of received file bytes queued for storing by the
+	 * write-behind stage of a connection (0 = store while reading; default).
+	 */
+	private static int writeBehindBytes = 0;
+
+	/**
+	 * TLS context of secure (msrps) connections, the default one when not set.
+	 */
+	private static SSLContext sslContext = null;
+
+	/**
+	 * Maximum number of sessions sharing an outgoing connection (1 = none).
+	 */
+	private static int maxSessionsPerConnection = 1;
+
+	/**
+	 * Time to wait for outgoing connections to be established, in
+	 * milliseconds (0 = no limit; default).
+	 */
+	private static int connectTimeout = 0;
+
+	/**
+	 * Number of idle connections kept ready per peer (0 = none; default).
+	 */
+	private static int prewarmedConnections = 0;
+
+	/**
+	 * Time pre-warmed connections are kept idle, in milliseconds (0 = no
+	 * limit).
+	 */
+	private static int idleConnectionTimeout = 60000;
+
+	/**
+	 * Default watermarks of the send queue of new sessions.
+	 */
+	private static Watermarks sessionWatermarks = Watermarks.NONE;
+
+	/**
+	 * Watermarks of the send queue of new connections.
+	 */
+	private static Watermarks connectionWatermarks = Watermarks.NONE;
+
+	/**
+	 * Default chunking of the messages of new sessions.
+	 */
+	private static ChunkingPolicy chunkingPolicy = ChunkingPolicy.NONE;
+
+	/**
+	 * Shares the connections between their sessions, null to send in the
+	 * order queued.
+	 */
+	private static ConnectionPrioritizer connectionPrioritizer = null;
+
+	/**
+	 * Time to wait for the response to a SEND request, in milliseconds
+	 * (0 = no limit). RFC 4975 suggests 30 seconds.
+	 */
+	private static int responseTimeout = 30000;
+
+	/**
+	 * The connector, created on the first asynchronous connect.
+	 */
+	private static Connector connector = null;
+
+	/**
+	 * The wheel timing out transactions, created on the first one sent.
+	 */
+	private static volatile TimerWheel timerWheel = null;
+
+	/*
+	 * Thread.ofVirtual().name(..).unstarted(..), looked up reflectively as the
+	 * stack is built for JVMs without virtual threads. null when unavailable.
+	 */
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderUnstarted;
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+	}
+
 	/**
 	 * Stores all {@link Connections} objects mapped to the address they are bound to.
 	 */
 	private static Hashtable<InetAddress, Connections> addressConnections =
 						new Hashtable<InetAddress, Connections>();
 
+	/**
+	 * The TLS (msrps) {@link Connections} objects by the address they are bound to.
+	 */
+	private static Hashtable<InetAddress, Connections> secureAddressConnections =
+						new Hashtable<InetAddress, Connections>();
+
 	private Hashtable<URI, Connection> localUriConnections;
 
 	private Hashtable<URI, Connection> sessionConnections;
@@ -67,7 +210,13 @@ public class Stack implements Observer {
 	 */
 	private Hashtable<URI, Session> activeSessions;
 
+	/**
+	 * The outgoing connections that sessions can share.
+	 */
+	private ConnectionPool connectionPool;
+
 	protected Stack() {
+		connectionPool = new ConnectionPool();
 		localUriConnections = new Hashtable<URI, Connection>();
 		sessionConnections = new Hashtable<URI, Connection>();
 		activeSessions = new Hashtable<URI, Session>();
@@ -119,15 +268,572 @@ public class Stack implements Observer {
 		return shortMessageBytes;
 	}
 
+	/**
+	 * Run connections on a reactor: a pool of event loops (one selector and
+	 * thread each) that service all connections with non-blocking I/O,
+	 * instead of a read and a write thread per connection.
+	 * <P>
+	 * Only affects connections started after the call. The reactor is created
+	 * with the number of loops set at the time of its first use, later calls
+	 * with another non-zero number do not resize it.
+	 *
+	 * @param threads number of event loops, 0 to disable the reactor (default).
+	 */
+	public static void setReactorThreads(int threads) {
+		if (threads < 0)
+			throw new IllegalArgumentException("Negative number of threads");
+		reactorThreads = threads;
+	}
+
+	/**
+	 * @see #setReactorThreads(int)
+	 *
+	 * @return the number of reactor event loops, 0 if the reactor is disabled.
+	 */
+	public static int getReactorThreads() {
+		return reactorThreads;
+	}
+
+	/**
+	 * @return the reactor to start connections on or null when connections
+	 * 			run on their own threads.
+	 * @throws IOException when the reactor could not be created.
+	 */
+	synchronized static Reactor getReactor() throws IOException {
+		if (reactorThreads == 0)
+			return null;
+		if (reactor == null)
+			reactor = new Reactor(reactorThreads);
+		return reactor;
+	}
+
+	/**
+	 * Run the read and write cycles of connections and the accept loops of
+	 * {@link Connections} on virtual threads instead of platform threads.
+	 * <P>
+	 * Keeps the blocking I/O model while making a thread per connection cheap.
+	 * Ignored (with a warning) when the JVM does not support virtual threads.
+	 * Only affects threads started after the call.
+	 *
+	 * @param enable true to use virtual threads, false for platform threads
+	 * 			(default).
+	 */
+	public static void setVirtualThreads(boolean enable) {
+		if (enable && ofVirtual == null)
+			logger.warn("Virtual threads are not supported by this JVM, " +
+					"using platform threads");
+		virtualThreads = enable;
+	}
+
+	/**
+	 * @see #setVirtualThreads(boolean)
+	 *
+	 * @return true when new I/O threads will be virtual threads.
+	 */
+	public static boolean isVirtualThreads() {
+		return virtualThreads && ofVirtual != null;
+	}
+
+	/**
+	 * Create (but not start) a thread for connection I/O, virtual or platform
+	 * according to {@link #setVirtualThreads(boolean)}.
+	 *
+	 * @param group thread group of a platform thread, null for the current one.
+	 * 			Virtual threads have no group of their own.
+	 * @param task	what the thread should run.
+	 * @param name	name of the thread.
+	 * @return the new, unstarted thread.
+	 */
+	static Thread newThread(ThreadGroup group, Runnable task, String name) {
+		if (isVirtualThreads()) {
+			try {
+				Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+				return (Thread) builderUnstarted.invoke(builder, task);
+			} catch (Exception e) {
+				logger.warn("Unable to create a virtual thread, " +
+						"using a platform thread", e);
+			}
+		}
+		return new Thread(group, task, name);
+	}
+
+	/**
+	 * Frame outgoing data into batches of buffers on the header, content and
+	 * end-line bytes that are written with one gathering write each, instead
+	 * of copying all of it into a 2 KB output array per write.
+	 * <P>
+	 * Cuts copies and system calls when sending large messages. Sent bytes
+	 * are accounted per batch (up to 64 KB), so send status updates are less
+	 * fine grained. Only affects connections started after the call.
+	 *
+	 * @param enable true to use gathering writes, false to copy (default).
+	 */
+	public static void setGatheringWrites(boolean enable) {
+		gatheringWrites = enable;
+	}
+
+	/**
+	 * @see #setGatheringWrites(boolean)
+	 *
+	 * @return true when new connections use gathering writes.
+	 */
+	public static boolean isGatheringWrites() {
+		return gatheringWrites;
+	}
+
+	/**
+	 * Coalesce small transactions (responses, REPORTs and short SENDs) into
+	 * fewer writes.
+	 * <P>
+	 * When less than {@link #getCoalesceBytes()} bytes are ready to be
+	 * written, the write cycle waits up to the given time for more to be
+	 * queued before writing them all at once. Trades latency for fewer
+	 * system calls and TCP segments. Only affects connections started after
+	 * the call; connections serviced by the reactor always write all that is
+	 * ready per event and do not wait.
+	 *
+	 * @param micros the maximum time to hold back data, in microseconds, 0 to
+	 * 			write as soon as data is ready (default).
+	 * @see #setCoalesceBytes(int)
+	 * @see #setTcpNoDelay(boolean)
+	 */
+	public static void setCoalesceMicros(int micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Negative time");
+		coalesceMicros = micros;
+	}
+
+	/**
+	 * @see #setCoalesceMicros(int)
+	 *
+	 * @return the maximum time to hold back data, in microseconds.
+	 */
+	public static int getCoalesceMicros() {
+		return coalesceMicros;
+	}
+
+	/**
+	 * @param bytes the number of bytes after which coalesced data is written
+	 * 			without waiting any longer (default 16 KB).
+	 * @see #setCoalesceMicros(int)
+	 */
+	public static void setCoalesceBytes(int bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("Invalid size: " + bytes);
+		coalesceBytes = bytes;
+	}
+
+	/**
+	 * @see #setCoalesceBytes(int)
+	 *
+	 * @return the number of bytes after which coalesced data is written.
+	 */
+	public static int getCoalesceBytes() {
+		return coalesceBytes;
+	}
+
+	/**
+	 * Disable Nagle's algorithm (TCP_NODELAY) on new connections, so that
+	 * small writes are not held back waiting for acknowledgements of earlier
+	 * ones. Mostly useful together with write coalescing.
+	 *
+	 * @param noDelay true to set TCP_NODELAY, false to leave the system
+	 * 			default (default).
+	 * @see Session#setTcpNoDelay(boolean)
+	 * @see #setCoalesceMicros(int)
+	 */
+	public static void setTcpNoDelay(boolean noDelay) {
+		tcpNoDelay = noDelay;
+	}
+
+	/**
+	 * @see #setTcpNoDelay(boolean)
+	 *
+	 * @return true when TCP_NODELAY is set on new connections.
+	 */
+	public static boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Send files of at least the given size through a
+	 * {@link MappedFileDataContainer} instead of a {@link FileDataContainer}.
+	 * <P>
+	 * Applies to messages created with
+	 * {@link OutgoingMessage#OutgoingMessage(String, java.io.File)}.
+	 *
+	 * @param bytes the minimum file size to map, 0 to never map (default).
+	 */
+	public static void setMappedFileBytes(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Negative file size");
+		mappedFileBytes = bytes;
+	}
+
+	/**
+	 * @see #setMappedFileBytes(long)
+	 *
+	 * @return the minimum size of files sent through a mapped container, 0 if
+	 * 			files are never mapped.
+	 */
+	public static long getMappedFileBytes() {
+		return mappedFileBytes;
+	}
+
+	/**
+	 * Store data received for file backed containers on a write-behind thread
+	 * per connection instead of on the thread reading the connection.
+	 * <P>
+	 * Reading stops while the given number of bytes waits to be stored.
+	 * Responses, reports and received message events for a transaction follow
+	 * the storing of its data; stored means handed to the container (and so
+	 * to the operating system), not synced to disk.
+	 *
+	 * @param bytes the maximum number of queued bytes per connection, 0 to
+	 * 			store while reading (default).
+	 * @see FileDataContainer
+	 * @see MappedFileDataContainer
+	 */
+	public static void setWriteBehindBytes(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Negative queue size");
+		writeBehindBytes = bytes;
+	}
+
+	/**
+	 * @see #setWriteBehindBytes(int)
+	 *
+	 * @return the maximum number of bytes queued per connection for storing,
+	 * 			0 if data is stored while reading.
+	 */
+	public static int getWriteBehindBytes() {
+		return writeBehindBytes;
+	}
+
+	/**
+	 * Set the TLS context used by secure sessions (msrps).
+	 * <P>
+	 * It supplies the key material of both sides of a connection. Its client
+	 * session cache lets reconnects to a peer resume the TLS session of an
+	 * earlier connection instead of doing a full handshake, so keep one
+	 * context for the life of the application.
+	 *
+	 * @param context the context to use, null for the default one.
+	 * @see Session#create(boolean, boolean, InetAddress)
+	 * @see SSLContext#getClientSessionContext()
+	 */
+	public static synchronized void setSSLContext(SSLContext context) {
+		sslContext = context;
+	}
+
+	/**
+	 * @see #setSSLContext(SSLContext)
+	 *
+	 * @return the TLS context used by secure sessions.
+	 * @throws NoSuchAlgorithmException if none was set and the default one
+	 * 			is not available.
+	 */
+	public static synchronized SSLContext getSSLContext()
+			throws NoSuchAlgorithmException {
+		if (sslContext == null)
+			sslContext = SSLContext.getDefault();
+		return sslContext;
+	}
+
+	/**
+	 * Let sessions to the same peer share an outgoing connection.
+	 * <P>
+	 * When set above 1, {@link Session#setToPath(java.util.ArrayList)} uses
+	 * an established connection to the authority (and over the local address)
+	 * of the first To-Path URI while it has fewer than the given number of
+	 * sessions, instead of connecting. A shared connection is closed with its
+	 * last session.
+	 *
+	 * @param sessions the maximum number of sessions per connection, 1 to not
+	 * 			share connections (default).
+	 */
+	public static void setMaxSessionsPerConnection(int sessions) {
+		if (sessions < 1)
+			throw new IllegalArgumentException("Need at least one session");
+		maxSessionsPerConnection = sessions;
+	}
+
+	/**
+	 * @see #setMaxSessionsPerConnection(int)
+	 *
+	 * @return the maximum number of sessions sharing an outgoing connection.
+	 */
+	public static int getMaxSessionsPerConnection() {
+		return maxSessionsPerConnection;
+	}
+
+	/**
+	 * Limit the time spent establishing outgoing connections.
+	 *
+	 * @param millis the connect timeout in milliseconds, 0 for no limit other
+	 * 			than the one of the operating system (default).
+	 * @see Session#setToPath(java.util.ArrayList)
+	 * @see Session#setToPathAsync(java.util.ArrayList)
+	 */
+	public static void setConnectTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Negative timeout");
+		connectTimeout = millis;
+	}
+
+	/**
+	 * @see #setConnectTimeout(int)
+	 *
+	 * @return the connect timeout in milliseconds, 0 if there is none.
+	 */
+	public static int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Limit the time to wait for the response to a SEND request.
+	 * <P>
+	 * When no response came in time, the transaction is dropped and the
+	 * message aborted, as if a 408 response was received.
+	 *
+	 * @param millis the response timeout in milliseconds, 0 for no limit.
+	 * 			The default is 30 seconds.
+	 * @see MessageAbortedEvent
+	 */
+	public static void setResponseTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Negative timeout");
+		responseTimeout = millis;
+	}
+
+	/**
+	 * @see #setResponseTimeout(int)
+	 *
+	 * @return the response timeout in milliseconds, 0 if there is none.
+	 */
+	public static int getResponseTimeout() {
+		return responseTimeout;
+	}
+
+	/**
+	 * Keep connections ready for the peers that sessions connected to.
+	 * <P>
+	 * Once a session connected to a peer (authority of its first To-Path
+	 * URI), this many extra connections to that peer are opened in the
+	 * background and kept idle. The next sessions to that peer take one of
+	 * these instead of connecting, after which it is replaced.
+	 *
+	 * @param connections the number of idle connections per peer, 0 to not
+	 * 			pre-warm connections (default).
+	 */
+	public static void setPrewarmedConnections(int connections) {
+		if (connections < 0)
+			throw new IllegalArgumentException("Negative number of connections");
+		prewarmedConnections = connections;
+	}
+
+	/**
+	 * @see #setPrewarmedConnections(int)
+	 *
+	 * @return the number of idle connections kept per peer.
+	 */
+	public static int getPrewarmedConnections() {
+		return prewarmedConnections;
+	}
+
+	/**
+	 * Limit the time pre-warmed connections are kept idle.
+	 * <P>
+	 * A pre-warmed connection that no session took in that time is closed.
+	 *
+	 * @param millis the idle timeout in milliseconds, 0 for no limit. The
+	 * 			default is 60 seconds.
+	 * @see #setPrewarmedConnections(int)
+	 */
+	public static void setIdleConnectionTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Negative timeout");
+		idleConnectionTimeout = millis;
+	}
+
+	/**
+	 * @see #setIdleConnectionTimeout(int)
+	 *
+	 * @return the idle timeout in milliseconds, 0 if there is none.
+	 */
+	public static int getIdleConnectionTimeout() {
+		return idleConnectionTimeout;
+	}
+
+	/**
+	 * Bound the send queue of new sessions.
+	 * <P>
+	 * Once full, sending on a session blocks, fails or just signals, depending
+	 * on its {@link OverflowPolicy}.
+	 *
+	 * @param watermarks the default watermarks of new sessions,
+	 * 			{@link Watermarks#NONE} for unbounded queues (default).
+	 * @see Session#setWatermarks(Watermarks)
+	 * @see Session#setOverflowPolicy(OverflowPolicy)
+	 */
+	public static void setSessionWatermarks(Watermarks watermarks) {
+		if (watermarks == null)
+			throw new IllegalArgumentException("No watermarks");
+		sessionWatermarks = watermarks;
+	}
+
+	/**
+	 * @see #setSessionWatermarks(Watermarks)
+	 *
+	 * @return the default watermarks of the send queue of new sessions.
+	 */
+	public static Watermarks getSessionWatermarks() {
+		return sessionWatermarks;
+	}
+
+	/**
+	 * Bound the send queue of new connections, shared by the sessions on it.
+	 * <P>
+	 * A session on a full connection behaves as if its own queue was full.
+	 *
+	 * @param watermarks the watermarks of new connections,
+	 * 			{@link Watermarks#NONE} for unbounded queues (default).
+	 * @see #setMaxSessionsPerConnection(int)
+	 */
+	public static void setConnectionWatermarks(Watermarks watermarks) {
+		if (watermarks == null)
+			throw new IllegalArgumentException("No watermarks");
+		connectionWatermarks = watermarks;
+	}
+
+	/**
+	 * @see #setConnectionWatermarks(Watermarks)
+	 *
+	 * @return the watermarks of the send queue of new connections.
+	 */
+	public static Watermarks getConnectionWatermarks() {
+		return connectionWatermarks;
+	}
+
+	/**
+	 * Split the messages of new sessions into chunks.
+	 *
+	 * @param policy the default chunking policy of new sessions,
+	 * 			{@link ChunkingPolicy#NONE} to send each message in a single
+	 * 			SEND (default). Each new session gets
+	 * 			{@link ChunkingPolicy#newInstance()}, its own copy of a policy
+	 * 			that keeps state.
+	 * @see Session#setChunkingPolicy(ChunkingPolicy)
+	 */
+	public static void setChunkingPolicy(ChunkingPolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException("No chunking policy");
+		chunkingPolicy = policy;
+	}
+
+	/**
+	 * @see #setChunkingPolicy(ChunkingPolicy)
+	 *
+	 * @return the default chunking policy of new sessions.
+	 */
+	public static ChunkingPolicy getChunkingPolicy() {
+		return chunkingPolicy;
+	}
+
+	/**
+	 * Share each connection between the sessions using it.
+	 * <P>
+	 * Only matters for connections shared by sessions, the prioritizer decides
+	 * which session's message is sent next and when one being sent is
+	 * interrupted for another.
+	 *
+	 * @param prioritizer the prioritizer of which each connection makes its
+	 * 			own, null to send the messages in the order they were queued
+	 * 			(default).
+	 * @see ConnectionPrioritizer#newInstance()
+	 * @see #setMaxSessionsPerConnection(int)
+	 * @see DeficitRoundRobin
+	 * @see WeightedFairQueueing
+	 * @see StrictPriority
+	 */
+	public static void setConnectionPrioritizer(
+			ConnectionPrioritizer prioritizer) {
+		connectionPrioritizer = prioritizer;
+	}
+
+	/**
+	 * @see #setConnectionPrioritizer(ConnectionPrioritizer)
+	 *
+	 * @return the prioritizer of the connections, null if none.
+	 */
+	public static ConnectionPrioritizer getConnectionPrioritizer() {
+		return connectionPrioritizer;
+	}
+
+	/**
+	 * @return the connector that establishes connections asynchronously.
+	 * @throws IOException when the connector could not be created.
+	 */
+	synchronized static Connector getConnector() throws IOException {
+		if (connector == null)
+			connector = new Connector();
+		return connector;
+	}
+
+	/**
+	 * @return the timer wheel shared by all transactions of the stack, ticking
+	 * 			every 100 milliseconds.
+	 */
+	static TimerWheel getTimerWheel() {
+		TimerWheel wheel = timerWheel;
+		if (wheel == null) {
+			synchronized (Stack.class) {
+				wheel = timerWheel;
+				if (wheel == null)
+					timerWheel = wheel = new TimerWheel(100, 512);
+			}
+		}
+		return wheel;
+	}
+
+	/**
+	 * Stop the background threads of the stack and wait for them to end: the
+	 * event loops of the reactor (closing their selectors), the connector
+	 * (failing the connects pending) and the timer wheel, that times out
+	 * responses and idle connections.
+	 * <P>
+	 * Call when done with the stack, after tearing down its sessions:
+	 * connections left on the reactor are no longer serviced. Used again,
+	 * the stack starts new threads as needed; the timer wheel thread also
+	 * ends by itself when nothing is to be timed out.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public static void shutdown() throws InterruptedException {
+		Reactor stoppedReactor;
+		Connector stoppedConnector;
+		synchronized (Stack.class) {
+			stoppedReactor = reactor;
+			reactor = null;
+			stoppedConnector = connector;
+			connector = null;
+		}
+		if (stoppedReactor != null)
+			stoppedReactor.stop();
+		if (stoppedConnector != null)
+			stoppedConnector.stop();
+		TimerWheel wheel = timerWheel;
+		if (wheel != null)
+			wheel.stop();
+	}
+
 	/**
 	 * Generate a new unique message-ID
 	 * 
 	 * @return the generated message-ID
 	 */
 	public static String generateMessageID() {
-		UUID id = UUID.randomUUID();
-		return 	Long.toHexString(id.getMostSignificantBits()) +
-				Long.toHexString(id.getLeastSignificantBits());
+		return IdGenerator.MESSAGE.next();
 	}
 
 	/**
@@ -138,12 +844,28 @@ public class Stack implements Observer {
 	 */
 	synchronized protected static Connections getConnectionsInstance(InetAddress address)
 	{
-		Connections toReturn = addressConnections.get(address);
+		return getConnectionsInstance(address, false);
+	}
+
+	/**
+	 * @param address
+	 *            the ip address to bind to
+	 * @param secure
+	 *            accept TLS (msrps) connections?
+	 *
+	 * @return a {@link Connections} instance bound to the given address.
+	 */
+	synchronized protected static Connections getConnectionsInstance(
+			InetAddress address, boolean secure)
+	{
+		Hashtable<InetAddress, Connections> connections =
+				secure ? secureAddressConnections : addressConnections;
+		Connections toReturn = connections.get(address);
 		if (toReturn != null)
 			return toReturn;
 
-		toReturn = new Connections(address);
-		addressConnections.put(address, toReturn);
+		toReturn = new Connections(address, secure);
+		connections.put(address, toReturn);
 		return toReturn;
 	}
 
@@ -262,6 +984,23 @@ public class Stack implements Observer {
 		return null;
 	}
 
+	/**
+	 * Removes the connection-association of the given session URI.
+	 *
+	 * @param uri the URI of the session.
+	 */
+	protected void removeConnection(URI uri)
+	{
+		sessionConnections.remove(uri);
+	}
+
+	/**
+	 * @return the pool of outgoing connections that sessions can share.
+	 */
+	protected ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
 	/**
 	 * Removes the connection-association with the session URI.
      *
@@ -0,0 +1,212 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import javax.net.msrp.utils.TextUtils;
+
+/**
+ * Recognises the start line of an MSRP transaction directly on the received
+ * bytes, as (RFC 4975):
+ * <pre>
+ * req-start  = pMSRP SP transact-id SP method CRLF
+ * resp-start = pMSRP SP transact-id SP status-code [SP comment] CRLF
+ * </pre>
+ * The parts are kept as offsets in the given buffer, only the ones asked for
+ * are turned into strings.
+ */
+class StartLine
+{
+    private static final byte[] PMSRP = { 'M', 'S', 'R', 'P', ' ' };
+
+    /** transact-id = ident = ALPHANUM 3*31ident-char */
+    private static final int MINTIDLENGTH = 4;
+
+    private static final int MAXTIDLENGTH = 32;
+
+    private static final int MAXMETHODLENGTH = 20;
+
+    /** The methods recognised, the other types are no methods. */
+    private static final TransactionType[] METHODS = {
+        TransactionType.SEND, TransactionType.REPORT, TransactionType.NICKNAME
+    };
+
+    private final byte[] data;
+
+    private int tidStart;
+
+    private int tidEnd;
+
+    /** Method (request) or comment (response) */
+    private int restStart;
+
+    private int restEnd;
+
+    /** The status code, -1 for a request */
+    private int status = -1;
+
+    private int end;
+
+    private StartLine(byte[] data)
+    {
+        this.data = data;
+    }
+
+    /**
+     * Parse a start line at the given offset.
+     * 
+     * @param data the received bytes.
+     * @param offset where the start line should begin.
+     * @param limit the end of the received bytes.
+     * @return the start line found, null if the bytes from offset on do not
+     * 			begin with a (complete) start line.
+     */
+    static StartLine parse(byte[] data, int offset, int limit)
+    {
+        if (limit - offset < PMSRP.length)
+            return null;
+        int i = offset;
+        for (byte b : PMSRP)
+            if (data[i++] != b)
+                return null;
+
+        StartLine line = new StartLine(data);
+        line.tidStart = i;
+        if (i >= limit || !isAlnum(data[i]))
+            return null;
+        for (i++; i < limit && isIdentChar(data[i]); i++)
+            ;
+        int tidLength = i - line.tidStart;
+        if (tidLength < MINTIDLENGTH || tidLength > MAXTIDLENGTH ||
+            i >= limit || data[i] != ' ')
+            return null;
+        line.tidEnd = i++;
+
+        if (i + 3 <= limit && isDigit(data[i]) && isDigit(data[i + 1]) &&
+            isDigit(data[i + 2]))
+        {								// response
+            line.status = (data[i] - '0') * 100 + (data[i + 1] - '0') * 10 +
+                          (data[i + 2] - '0');
+            i += 3;
+            line.restStart = i;
+            while (i < limit && data[i] != '\r' && data[i] != '\n')
+                i++;
+        }
+        else
+        {								// request
+            line.restStart = i;
+            while (i < limit && data[i] >= 'A' && data[i] <= 'Z')
+                i++;
+            int methodLength = i - line.restStart;
+            if (methodLength < 1 || methodLength > MAXMETHODLENGTH)
+                return null;
+        }
+        line.restEnd = i;
+        if (i + 2 > limit || data[i] != '\r' || data[i + 1] != '\n')
+            return null;
+        line.end = i + 2;
+        return line;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlnum(byte b)
+    {
+        return isDigit(b) || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+    }
+
+    /** ident-char = ALPHANUM / "." / "-" / "+" / "%" / "=" */
+    private static boolean isIdentChar(byte b)
+    {
+        return isAlnum(b) ||
+               b == '.' || b == '-' || b == '+' || b == '%' || b == '=';
+    }
+
+    /**
+     * @return true for a request, false for a response.
+     */
+    boolean isRequest()
+    {
+        return status < 0;
+    }
+
+    /**
+     * @return the transaction id.
+     */
+    String getTid()
+    {
+        return new String(data, tidStart, tidEnd - tidStart, TextUtils.usascii);
+    }
+
+    /**
+     * @return the method of a request, as given.
+     */
+    String getMethod()
+    {
+        return new String(data, restStart, restEnd - restStart,
+                          TextUtils.usascii);
+    }
+
+    /**
+     * @return the type of transaction the request method stands for,
+     * 			{@link TransactionType#UNSUPPORTED} for an unknown method.
+     */
+    TransactionType getType()
+    {
+        int length = restEnd - restStart;
+        for (TransactionType type : METHODS)
+        {
+            String name = type.name();
+            if (name.length() != length)
+                continue;
+            int i = 0;
+            while (i < length && data[restStart + i] == name.charAt(i))
+                i++;
+            if (i == length)
+                return type;
+        }
+        return TransactionType.UNSUPPORTED;
+    }
+
+    /**
+     * @return the status code of a response.
+     */
+    int getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return what follows the status code of a response, up to the CRLF
+     * 			(including the separating space).
+     */
+    String getComment()
+    {
+        return new String(data, restStart, restEnd - restStart,
+                          TextUtils.utf8);
+    }
+
+    /**
+     * @return the offset right after the CRLF ending the start line.
+     */
+    int getEnd()
+    {
+        return end;
+    }
+}
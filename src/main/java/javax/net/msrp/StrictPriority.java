@@ -0,0 +1,109 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Strict priority: the session of highest priority with messages queued is
+ * always served first, the message of a session being sent is interrupted as
+ * soon as one of higher priority has a message queued. Sessions of the same
+ * priority are served in the order their messages were queued.
+ * <P>
+ * Lower priorities get nothing while higher ones keep the connection busy.
+ */
+public class StrictPriority
+    extends ConnectionPrioritizer
+{
+    /** Shared with the instances made of this one */
+    private final ConcurrentHashMap<Session, Integer> priorities;
+
+    public StrictPriority()
+    {
+        this(new ConcurrentHashMap<Session, Integer>());
+    }
+
+    private StrictPriority(ConcurrentHashMap<Session, Integer> priorities)
+    {
+        this.priorities = priorities;
+    }
+
+    /**
+     * @return a prioritizer of the same priorities, priorities set on either
+     *            one apply to both.
+     */
+    @Override
+    public ConnectionPrioritizer newInstance()
+    {
+        return new StrictPriority(priorities);
+    }
+
+    /**
+     * @param session the session.
+     * @param priority its priority, higher first, 0 by default.
+     */
+    public void setPriority(Session session, int priority)
+    {
+        priorities.put(session, priority);
+    }
+
+    /**
+     * @param session the session.
+     * @return its priority.
+     */
+    public int getPriority(Session session)
+    {
+        Integer priority = priorities.get(session);
+        return priority == null ? 0 : priority.intValue();
+    }
+
+    @Override
+    protected Session nextSession(Collection<Session> sessions)
+    {
+        Session next = null;
+        int highest = Integer.MIN_VALUE;
+        for (Session session : sessions)
+        {
+            int priority = getPriority(session);
+            if (next == null || priority > highest)
+            {
+                highest = priority;
+                next = session;
+            }
+        }
+        return next;
+    }
+
+    @Override
+    protected boolean shouldSwap(Collection<Session> sessions,
+        Session session, Message message)
+    {
+        int priority = getPriority(session);
+        for (Session other : sessions)
+            if (getPriority(other) > priority)
+                return true;
+        return false;
+    }
+
+    @Override
+    protected synchronized void removeSession(Session session)
+    {
+        super.removeSession(session);
+        priorities.remove(session);
+    }
+}
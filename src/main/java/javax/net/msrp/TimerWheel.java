@@ -0,0 +1,353 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel (Varghese and Lauck): each timeout is put in one of a
+ * ring of buckets by its deadline, a thread moves over the ring one bucket per
+ * tick and fires the timeouts due in the bucket. Scheduling and cancelling
+ * take constant time whatever the number of timeouts pending, a timeout fires
+ * up to one tick late.
+ * <P>
+ * Timeouts scheduled and cancelled are handed to the wheel thread through
+ * (lock-free) queues, only that thread touches the buckets. The thread is
+ * started with the first timeout scheduled, and ends once none is pending or
+ * when {@link #stop() stopped}.
+ *
+ * @see Stack#getTimerWheel()
+ */
+class TimerWheel
+    implements Runnable
+{
+    private static final Logger logger =
+        LoggerFactory.getLogger(TimerWheel.class);
+
+    /** Timeouts moved to the buckets per tick, at most */
+    private static final int MAXTRANSFERS = 100000;
+
+    private static final int PENDING = 0;
+
+    private static final int CANCELLED = 1;
+
+    private static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    class Timeout
+    {
+        private final Runnable task;
+
+        /** In milliseconds since the start of the wheel */
+        private final long deadline;
+
+        /** Number of turns of the wheel to wait still */
+        private long rounds;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        private Bucket bucket;
+
+        volatile int state = PENDING;
+
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout, if not fired yet.
+         *
+         * @return false when fired or cancelled before.
+         */
+        boolean cancel()
+        {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                return false;
+            pending.decrementAndGet();
+            cancelled.offer(this);
+            return true;
+        }
+
+        /**
+         * @return true when cancelled.
+         */
+        boolean isCancelled()
+        {
+            return state == CANCELLED;
+        }
+
+        /**
+         * @return true when fired.
+         */
+        boolean isExpired()
+        {
+            return state == EXPIRED;
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts.
+     */
+    private static class Bucket
+    {
+        private Timeout head;
+
+        private Timeout tail;
+
+        private void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            if (head == null)
+                head = tail = timeout;
+            else
+            {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private Timeout remove(Timeout timeout)
+        {
+            Timeout next = timeout.next;
+            if (timeout.previous != null)
+                timeout.previous.next = next;
+            if (next != null)
+                next.previous = timeout.previous;
+            if (timeout == head)
+                head = next;
+            if (timeout == tail)
+                tail = timeout.previous;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickMillis;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long start = System.nanoTime();
+
+    /** Number of ticks done */
+    private long tick = 0;
+
+    private final ConcurrentLinkedQueue<Timeout> scheduled =
+        new ConcurrentLinkedQueue<Timeout>();
+
+    private final ConcurrentLinkedQueue<Timeout> cancelled =
+        new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private Thread thread = null;
+
+    /**
+     * @param tickMillis the time one bucket covers, in milliseconds.
+     * @param buckets the number of buckets, rounded up to a power of 2.
+     */
+    TimerWheel(long tickMillis, int buckets)
+    {
+        if (tickMillis <= 0 || buckets <= 0)
+            throw new IllegalArgumentException("Invalid timer wheel");
+        this.tickMillis = tickMillis;
+        int size = 1;
+        while (size < buckets)
+            size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task what to run on the wheel thread, it should not block.
+     * @param delayMillis when to run it, in milliseconds from now.
+     * @return the timeout, to cancel.
+     */
+    Timeout schedule(Runnable task, long delayMillis)
+    {
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Timeout timeout = new Timeout(task, now + Math.max(0, delayMillis));
+        pending.incrementAndGet();
+        scheduled.offer(timeout);
+        synchronized (this)
+        {
+            if (thread == null)
+            {
+                thread = new Thread(this, "MSRP timer wheel");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts scheduled, not fired nor cancelled.
+     */
+    int getPending()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Stop the wheel thread and wait for it to end. The timeouts pending stay
+     * scheduled: they fire (late) if the wheel is started again by scheduling
+     * another.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop() throws InterruptedException
+    {
+        Thread running;
+        synchronized (this)
+        {
+            running = thread;
+            if (running == null)
+                return;
+            running.interrupt();
+        }
+        running.join();
+    }
+
+    /**
+     * @return true while the wheel thread runs.
+     */
+    synchronized boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    /**
+     * End the wheel thread, unless a timeout is pending.
+     *
+     * @param force end it anyway.
+     * @return true if ended.
+     */
+    private synchronized boolean end(boolean force)
+    {
+        if (!force && pending.get() > 0)
+            return false;
+        thread = null;
+        return true;
+    }
+
+    /*
+     * Started again after a while, the first ticks catch up with the time
+     * not running, without sleeping.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            long deadline = (tick + 1) * tickMillis;
+            long sleep;
+            while ((sleep = deadline - TimeUnit.NANOSECONDS.toMillis(
+                                        System.nanoTime() - start)) > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException e)
+                {
+                    logger.debug("Timer wheel stopped.");
+                    end(true);
+                    return;
+                }
+            }
+            transferScheduled();
+            removeCancelled();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+            if (end(false))
+                return;
+        }
+    }
+
+    private void transferScheduled()
+    {
+        Timeout timeout;
+        for (int i = 0; i < MAXTRANSFERS && (timeout = scheduled.poll()) != null;
+                i++)
+        {
+            if (timeout.state != PENDING)
+                continue;
+            long ticks = timeout.deadline / tickMillis;
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled()
+    {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null)
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+    }
+
+    private void expire(Bucket bucket)
+    {
+        Timeout timeout = bucket.head;
+        while (timeout != null)
+        {
+            if (timeout.rounds > 0)
+            {
+                timeout.rounds--;
+                timeout = timeout.next;
+                continue;
+            }
+            Timeout next = bucket.remove(timeout);
+            if (STATE.compareAndSet(timeout, PENDING, EXPIRED))
+            {
+                pending.decrementAndGet();
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Error running timeout task", t);
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -17,12 +17,12 @@
 package javax.net.msrp;
 
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.net.msrp.exceptions.*;
+import javax.net.msrp.utils.ByteScanner;
 import javax.net.msrp.utils.TextUtils;
 
 import org.slf4j.Logger;
@@ -61,13 +61,13 @@ public class Transaction
      * the From-Path parsed to the Transaction containing the associated
      * From-Path URIs from left to right in growing index order.
      */
-    protected URI[] fromPath;
+    protected PathHeader fromPath;
 
     /**
      * the To-Path parsed to the Transaction containing the associated To-Path
      * URIs from left to right in a growing index order
      */
-    protected URI[] toPath = null;
+    protected PathHeader toPath = null;
 
     /**
      * the message associated with this transaction
@@ -163,7 +163,7 @@ public class Transaction
      * Maximum number of bytes allowed for the header data strings
      * (to prevent a DoS by memory exhaustion)
      */
-    private static final int MAXHEADERBYTES = 3024;
+    static final int MAXHEADERBYTES = 3024;
 
     private static final int ALLBYTES = 0;
 
@@ -224,7 +224,31 @@ public class Transaction
 
     private String nickname = null;
 
-    private StringBuffer headerBuffer = new StringBuffer();
+    /** The received header bytes, allocated on first use */
+    private byte[] headerBuffer = null;
+
+    private int headerLength = 0;
+
+    /** Watches the outgoing content for the end-line */
+    private EndLineGuard endLineGuard = null;
+
+    /** Message offset of the first content byte of this (outgoing) chunk */
+    private long chunkStart = 0;
+
+    /** Message offset the chunk ends at, 0 for the end of the message */
+    private long chunkEnd = 0;
+
+    /** When the chunk was sent (System.nanoTime()), 0 if not yet */
+    long sentAt = 0;
+
+    /** Number of content bytes the chunk was sent with */
+    long chunkSent = 0;
+
+    /** The timeout of the response to this SEND, null if none scheduled */
+    volatile TimerWheel.Timeout responseTimeout = null;
+
+    /** Is all of the header data in the headerBuffer? */
+    private boolean headerBufferComplete = false;
 
     /**
      * if this is a valid transaction or if it has any problem with it assume
@@ -363,6 +387,11 @@ public class Transaction
 	         * being sent:
 	         */
 	        long firstByteChunk = ((OutgoingMessage) message).getSentBytes() + 1;
+	        chunkStart = firstByteChunk - 1;
+	        long chunkSize = session.getChunkingPolicy()
+	        					.nextChunkSize((OutgoingMessage) message);
+	        if (chunkSize > 0)
+	            chunkEnd = chunkStart + chunkSize;
 	        /*
 	         * Currently all transactions are interruptible, solving Issue #25
 	         * if ((message.getSize() - ((OutgoingMessage)message).getSize()) >
@@ -460,6 +489,34 @@ public class Transaction
         return toReturn.toString();
     }
 
+    /**
+     * Put the remaining bytes of the given buffer on the container of the
+     * message, block by block of the report granularity, accounting each
+     * stored block.
+     * 
+     * @param start where the data starts in the message.
+     * @param data the received body data, its position is left at its limit.
+     * @throws Exception if the container could not store the data.
+     * @see ReportMechanism#countReceivedBodyBlock(Message, Transaction, long,
+     *      int)
+     */
+    void storeBody(long start, ByteBuffer data) throws Exception
+    {
+        int blockSize = message.getReportMechanism().getTriggerGranularity();
+        int end = data.limit();
+
+        while (data.position() < end)
+        {
+            int size2Copy = Math.min(blockSize, end - data.position());
+            data.limit(data.position() + size2Copy);
+            message.getDataContainer().put(start, data);
+            data.position(data.limit());
+            message.getReportMechanism().countReceivedBodyBlock(
+            		message, this, start, size2Copy);
+            start += size2Copy;
+        }
+    }
+
     /**
      * Parse the data, identify the header and fill the body.
      * Also it should find errors on received data and generate a 400 response
@@ -485,7 +542,6 @@ public class Transaction
     {
         if (!inContentStuff)
         {
-            String toParse = new String(incData, offset, length, TextUtils.utf8);
             /*
              * if the transaction is marked as complete or invalid, calls to
              * this method will do nothing
@@ -496,53 +552,43 @@ public class Transaction
                 throw new ImplementationException(
                     "Error: trying to parse data to a complete transaction!");
 
-            int i = 0;
-            while (i < toParse.length())
+            int i = offset;
+            int end = offset + length;
+            if (!headerComplete)
             {
-                if (!headerComplete)
+                try
                 {
-                    try
+                    while (i < end && !headerBufferComplete)
                     {
-                        int j;
-                        while (i < toParse.length() && !isHeaderBufferComplete())
-                        {
-                        	j = toParse.indexOf("\r\n", i);
-                        	if (j == -1) {
-                                addHeaderBuffer(toParse.substring(i));
-                                i = toParse.length();
-                        	} else {
-                        		addHeaderBuffer(toParse.substring(i, j + 2));
-                        		i = j + 2;
-                        	}
-                        }
-                        if (isHeaderBufferComplete())
-                        {
-                            recognizeHeader();
-                            proccessHeader();
-                            headerComplete = true;
-                            logger.trace(this + " parsed header");
-                        }
+                        int j = ByteScanner.indexOfCrlf(incData, i, end);
+                        j = j < 0 ? end : j + 2;	// up to a CRLF or the end
+                        addHeaderBuffer(incData, i, j - i);
+                        i = j;
                     }
-                    catch (Exception e)
+                    if (headerBufferComplete)
                     {
-                        validTransaction = false;
-                        logger.warn(this +
-                        		" parse exception, returning without parsing", e);
-                        return;
+                        recognizeHeader();
+                        proccessHeader();
+                        headerComplete = true;
+                        logger.trace(this + " parsed header");
                     }
-                }						// if (!headercomplete)
-                if (headerComplete)
+                }
+                catch (Exception e)
                 {
-                    if (!isValid())
-                        logger.warn(this + " parsed invalid.");
-                    int moreData = toParse.length() - i;
-                    if (moreData > 0)
-                    	logger.warn(this +
-                    			" parsed header but have more data, is preparser ok?");
-                    break;
+                    validTransaction = false;
+                    logger.warn(this +
+                    		" parse exception, returning without parsing", e);
+                    return;
                 }
-            } // while
-
+            }							// if (!headercomplete)
+            if (headerComplete)
+            {
+                if (!isValid())
+                    logger.warn(this + " parsed invalid.");
+                if (end > i)
+                	logger.warn(this +
+                			" parsed header but have more data, is preparser ok?");
+            }
         } // if (!inContentStuff)
         else
         {
@@ -571,27 +617,19 @@ public class Transaction
                      */
                     long start =
                     		(byteRange[CHUNKSTARTBYTEINDEX] - 1) + realChunkSize;
-                    int blockSize =
-                    		message.getReportMechanism().getTriggerGranularity();
-                    data = new byte[blockSize];
-                    int size2Copy = blockSize;
+                    int size = incBuffer.remaining();
 
                     logger.trace(this + " parsing body, starting " + start +
-                            ", size " + incBuffer.remaining());
-                    
-                    while (incBuffer.hasRemaining())
-                    {
-                        if (blockSize > incBuffer.remaining()) {
-                        	size2Copy = incBuffer.remaining();
-                            data = new byte[size2Copy];
-                        }
-                        incBuffer.get(data);
-                        message.getDataContainer().put(start, data);
-                        realChunkSize += size2Copy;
-                        message.getReportMechanism().countReceivedBodyBlock(
-                        		message, this, start, size2Copy);
-                        start += size2Copy;
-                    }
+                            ", size " + size);
+
+                    WriteBehind writeBehind =
+                    		transactionManager.getConnection().getWriteBehind();
+                    if (writeBehind != null &&
+                        WriteBehind.handles(message.getDataContainer()))
+                        writeBehind.store(this, start, incBuffer);
+                    else				// straight from the read buffer
+                        storeBody(start, incBuffer);
+                    realChunkSize += size;
                 }
                 else
                 {
@@ -702,25 +740,26 @@ public class Transaction
                 message.gotAborted(this);
             }
         }
-        String aux = headerBuffer.toString();
-        headerBytes = aux.getBytes(TextUtils.utf8);
+        headerBytes = new byte[headerLength];
+        if (headerLength > 0)
+            System.arraycopy(headerBuffer, 0, headerBytes, 0, headerLength);
         completeTransaction = true;
     }
 
     /**
-     * @return the toPath
+     * @return the toPath, null if not (validly) received.
      */
     public URI[] getToPath()
     {
-        return toPath;
+        return toPath == null ? null : toPath.getUris();
     }
 
     /**
-     * @return the fromPath
+     * @return the fromPath, null if not (validly) received.
      */
     public URI[] getFromPath()
     {
-        return fromPath;
+        return fromPath == null ? null : fromPath.getUris();
     }
 
     /**
@@ -884,9 +923,14 @@ public class Transaction
             {
                 hasContentStuff = true;
 
-                int chunk = message.get(outData, offset);
+                int chunk = limitContent(message.get(outData, offset));
+                chunk = guardContent(chunk,
+                                getEndLineGuard().scan(outData, offset, chunk));
                 bytesCopied += chunk;
                 offset += chunk;
+                endChunk();
+                if (interrupted)
+                    break;
                 continue;
 
             }
@@ -897,6 +941,182 @@ public class Transaction
         return bytesCopied;
     }
 
+    /**
+     * Gathering counterpart of {@link #getData(byte[], int)}: returns the next
+     * DATA (header or content, excluding end-line) bytes as a buffer instead
+     * of copying them into an array.
+     * 
+     * @param maxLength the maximum number of bytes to return
+     * @return the next piece of data, empty if there is none left
+     * @throws ImplementationException if this function was called when the
+     *             end-line should be retrieved instead
+     * @throws InternalErrorException if something went wrong while trying to
+     *             get this data
+     */
+    public ByteBuffer getDataSlice(int maxLength)
+        throws ImplementationException, InternalErrorException
+    {
+        if (interrupted || readIndex[ENDLINE] > 0)
+        {
+            throw new ImplementationException("Called Transaction." +
+            		"getDataSlice() when it should've been getEndLineSlice()");
+        }
+        if (readIndex[HEADER] < headerBytes.length)
+            return getHeaderSlice(maxLength);
+        if (message.hasData())
+        {
+            hasContentStuff = true;
+            ByteBuffer slice = message.getSlice(chunkRemaining(maxLength));
+            int length = slice.remaining();
+            slice.limit(slice.position() +
+                guardContent(length, getEndLineGuard().scan(slice)));
+            endChunk();
+            return slice;
+        }
+        return ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Returns the next content bytes as a region of the file they are kept in,
+     * to be transferred to the connection without reading them into the JVM.
+     * 
+     * @param maxLength the maximum number of bytes to return
+     * @return the region or null if the header was not fully retrieved yet,
+     *         there is no content left or the content is not kept in a file
+     *         (use {@link #getDataSlice(int)} then)
+     * @throws InternalErrorException if something went wrong while trying to
+     *             get this data
+     */
+    FileRegion getDataRegion(int maxLength)
+        throws ImplementationException, InternalErrorException
+    {
+        if (interrupted || readIndex[HEADER] < headerBytes.length ||
+            !message.hasData())
+            return null;
+        FileRegion region = message.getRegion(chunkRemaining(maxLength));
+        if (region != null)
+        {
+            hasContentStuff = true;
+            int length = (int) region.remaining();
+            region.shrink(length - guardContent(length,
+                            getEndLineGuard().scan(region.getContent())));
+            endChunk();
+        }
+        return region;
+    }
+
+    /**
+     * @param maxLength the number of content bytes wanted.
+     * @return the number of them left in the chunk.
+     */
+    private int chunkRemaining(int maxLength)
+    {
+        if (chunkEnd == 0)
+            return maxLength;
+        return (int) Math.min(maxLength,
+                    chunkEnd - ((OutgoingMessage) message).getSentBytes());
+    }
+
+    /**
+     * Give back to the data container the content just taken beyond the end
+     * of the chunk.
+     * 
+     * @param taken the number of content bytes taken from the container
+     * @return the number of them in the chunk
+     */
+    private int limitContent(int taken)
+    {
+        long beyond = chunkEnd == 0 ? 0 :
+            ((OutgoingMessage) message).getSentBytes() - chunkEnd;
+        if (beyond <= 0)
+            return taken;
+        message.getDataContainer().rewindRead(beyond);
+        return taken - (int) beyond;
+    }
+
+    /**
+     * End this transaction once the content of its chunk was taken, the rest
+     * of the message to be sent in the next one.
+     * 
+     * @throws ImplementationException if this transaction cannot be
+     *             interrupted
+     */
+    private void endChunk() throws ImplementationException
+    {
+        if (interrupted || chunkEnd == 0 || !message.hasData() ||
+            ((OutgoingMessage) message).getSentBytes() < chunkEnd)
+            return;
+        try
+        {
+            interrupt();
+        }
+        catch (IllegalUseException e)
+        {
+            throw new ImplementationException(e);
+        }
+    }
+
+    /**
+     * Note the time this chunk was sent at and its number of content bytes.
+     */
+    void markSent()
+    {
+        sentAt = System.nanoTime();
+        if (message instanceof OutgoingMessage)
+            chunkSent = ((OutgoingMessage) message).getSentBytes() - chunkStart;
+    }
+
+    private EndLineGuard getEndLineGuard()
+    {
+        if (endLineGuard == null)
+            endLineGuard = new EndLineGuard(tID);
+        return endLineGuard;
+    }
+
+    /**
+     * Cut the content just taken before the end-line found in it: the rest is
+     * left in the data container and this transaction is interrupted, to
+     * be continued by the next one.
+     * 
+     * @param taken the number of content bytes taken from the container
+     * @param sendable the number of those that can be sent
+     * @return the number of bytes to send
+     * @throws ImplementationException if this transaction cannot be
+     *             interrupted
+     */
+    private int guardContent(int taken, int sendable)
+        throws ImplementationException
+    {
+        if (sendable < taken)
+        {
+            logger.debug(this + " found end-line in content, interrupting");
+            message.getDataContainer().rewindRead(taken - sendable);
+            try
+            {
+                interrupt();
+            }
+            catch (IllegalUseException e)
+            {
+                throw new ImplementationException(e);
+            }
+        }
+        return sendable;
+    }
+
+    /**
+     * @param maxLength the maximum number of bytes to return
+     * @return a buffer on the next (not yet retrieved) header bytes
+     */
+    protected ByteBuffer getHeaderSlice(int maxLength)
+    {
+        int length = (int) Math.min(maxLength,
+        							headerBytes.length - readIndex[HEADER]);
+        ByteBuffer slice =
+            ByteBuffer.wrap(headerBytes, (int) readIndex[HEADER], length);
+        readIndex[HEADER] += length;
+        return slice;
+    }
+
     /**
      * Gets a byte for the end of transaction line
      * 
@@ -946,8 +1166,24 @@ public class Transaction
     		else
     			return i;
     	}
-    	return 0;
+    	return data.length - offset;		/* filled up to the end */
     }
+    /**
+     * Gathering counterpart of {@link #getEndLine(byte[], int)}.
+     * 
+     * @return a buffer with the remaining end-line bytes (including the CRLF
+     *         that separates it from the content), empty if there are none.
+     * @throws InternalErrorException if the end-line bytes could not be gotten
+     */
+    protected ByteBuffer getEndLineSlice() throws InternalErrorException
+    {
+        byte[] endLine = new byte[tID.length() + 12];
+        int length = 0;
+        while (hasEndLine())
+            endLine[length++] = getEndLineByte();
+        return ByteBuffer.wrap(endLine, 0, length);
+    }
+
     /**
      * Asserts if a transaction is interruptible or not.
      * 
@@ -1075,41 +1311,6 @@ public class Transaction
         return false;
     }
 
-    /**
-     * Rewind positions on the read offsets of this transaction.
-     * <p>
-     * It's main purpose it's to allow the transaction manager to
-     * rewind the data prior to interrupting the transaction when an end-line
-     * is found on the content of the transaction.
-     * 
-     * @param numberPositionsToRewind the number of positions to rewind on this
-     *            transaction.
-     * @throws IllegalUseException if this method was called to do for instance
-     *             a rewind on a response
-     */
-    protected void rewind(int numberPositionsToRewind)
-        throws IllegalUseException
-    {
-        /* make sure we aren't trying to rewind a response */
-        if (hasResponse())
-            throw new IllegalUseException("Trying to rewind a response");
-
-        /* make sure we aren't trying to rewind on the header: */
-        if (readIndex[HEADER] < headerBytes.length)
-            throw new IllegalUseException("Trying to rewind the header");
-
-        /*
-         * No sense in rewinding if it doesn't have any data
-         */
-        if (!hasContentStuff)
-            throw new IllegalUseException("Trying to rewind empty transaction");
-        /*
-         * rewinds the given nr of positions in the data container
-         */
-        DataContainer dataContainer = message.getDataContainer();
-        dataContainer.rewindRead(numberPositionsToRewind);
-    }
-
     /**
      * @return the transactionType
      */
@@ -1227,46 +1428,77 @@ public class Transaction
      * the maximum limit of bytes. In that case an Exception is
      * thrown
      * 
-     * @param toAdd the string to add to the buffer used for storage of
-     *            complete lines for analyzing posteriorly
+     * @param data the bytes holding the data to add to the buffer used for
+     *            storage of complete lines for analyzing posteriorly
+     * @param offset where the data to add starts
+     * @param length the number of bytes to add
      * @throws InvalidHeaderException if too many bytes would be passed with the
-     *             addition of toAdd
+     *             addition of the data
      */
-    private void addHeaderBuffer(String toAdd) throws InvalidHeaderException
+    private void addHeaderBuffer(byte[] data, int offset, int length)
+        throws InvalidHeaderException
     {
-    	int len = toAdd.length() + headerBuffer.length();
+    	int len = length + headerLength;
 
     	if ( len > MAXHEADERBYTES)
             throw new InvalidHeaderException("Trying to parse a line of "
                 + len + " bytes when the limit is " + MAXHEADERBYTES);
-        else
-            headerBuffer.append(toAdd);
+        if (headerBuffer == null || headerBuffer.length < len)
+        {
+            byte[] newBuffer = new byte[Math.min(MAXHEADERBYTES,
+                                        Math.max(len, 2 * headerLength + 256))];
+            if (headerLength > 0)
+                System.arraycopy(headerBuffer, 0, newBuffer, 0, headerLength);
+            headerBuffer = newBuffer;
+        }
+        System.arraycopy(data, offset, headerBuffer, headerLength, length);
+        int scanned = Math.max(0, headerLength - 3);
+        headerLength = len;
+        headerBufferComplete = isHeaderBufferComplete(scanned);
     }
 
-    private static Pattern endOfHeaderWithoutContent =
-            Pattern.compile(
-                "^To-Path: .{10,}\r\nFrom-Path: .{10,}\r\n", Pattern.DOTALL);
+    private static final byte[] TOPATH = { 'T','o','-','P','a','t','h',':',' ' };
 
-    private static Pattern endOfHeaderWithContent =
-            Pattern.compile(".*(\r\n){2}.*", Pattern.DOTALL);
+    private static final byte[] FROMPATH =
+        { '\r','\n','F','r','o','m','-','P','a','t','h',':',' ' };
 
     /** Has headerBuffer all of the header data?
+     * @param scanned the bytes already looked at for an empty line
      * @return true if headerBuffer has all of header-data
      */
-    private boolean isHeaderBufferComplete()
+    private boolean isHeaderBufferComplete(int scanned)
     {
     	/*
 	     * in case of incoming response the header
 	     * ends with the from-paths last uri and CRLF
     	 */
-        Matcher isHeaderComplete;
         if (isIncomingResponse())
-            isHeaderComplete = endOfHeaderWithoutContent.matcher(headerBuffer);
-        else
-	        /* In case of a transaction with 'content-stuff' */
-	        isHeaderComplete = endOfHeaderWithContent.matcher(headerBuffer);
+        {
+            if (headerLength < TOPATH.length + 10 + FROMPATH.length + 12 ||
+                headerBuffer[headerLength - 2] != '\r' ||
+                headerBuffer[headerLength - 1] != '\n' ||
+                !regionEquals(0, TOPATH))
+                return false;
+            for (int i = TOPATH.length + 10;
+                 i <= headerLength - FROMPATH.length - 12; i++)
+                if (regionEquals(i, FROMPATH))
+                    return true;
+            return false;
+        }
+        /* In case of a transaction with 'content-stuff' */
+        for (int i = scanned; i <= headerLength - 4; i++)
+            if (headerBuffer[i] == '\r' && headerBuffer[i + 1] == '\n' &&
+                headerBuffer[i + 2] == '\r' && headerBuffer[i + 3] == '\n')
+                return true;
+        return false;
+    }
 
-        return isHeaderComplete.matches();
+    private boolean regionEquals(int offset, byte[] expected)
+    {
+        for (int i = 0; i < expected.length; i++)
+            if (headerBuffer[offset + i] != expected[i])
+                return false;
+        return true;
     }
 
     /**
@@ -1342,17 +1574,32 @@ public class Transaction
                 e.printStackTrace();
             }
         }
-        Session relatedSession =
-        		transactionManager.associatedSession((getToPath())[0]);
+        Session relatedSession = transactionManager.associatedSession(toPath);
         if (relatedSession == null)
         {
             // No session associated, go see if there is one in the list of
         	// yet to be validated Connections
+            Connection connection = transactionManager.getConnection();
             Connections connectionsInstance =
-                Stack.getConnectionsInstance(
-                		transactionManager.getConnection().getLocalAddress());
-            relatedSession =
-                connectionsInstance.sessionToIdentify((getToPath())[0]);
+                Stack.getConnectionsInstance(connection.getLocalAddress(),
+                							 connection.isSecure());
+            URI[] toUris = getToPath();
+            if (toUris == null)
+            {
+                try
+                {
+                    transactionManager.generateResponse(this,
+                        ResponseCode.RC400, "Invalid To-Path");
+                }
+                catch (IllegalUseException e)
+                {
+                    logger.error(this + " generating response: " +
+                                ResponseCode.toString(ResponseCode.RC400), e);
+                }
+                return;
+            }
+            URI toUri = toUris[0];
+            relatedSession = connectionsInstance.sessionToIdentify(toUri);
             if (relatedSession == null)
             {
                 /*
@@ -1364,7 +1611,7 @@ public class Transaction
                  * - or this session doesn't exist at all (give a 481 response)
                  */
             	int rspCode;
-                if (stack.isActive((getToPath())[0]))
+                if (stack.isActive(toUri))
                 	rspCode = ResponseCode.RC506;
             	else
             		rspCode = ResponseCode.RC481;
@@ -1380,7 +1627,7 @@ public class Transaction
             }
             else
             {							/* session found */
-                if (stack.isActive((getToPath())[0]))
+                if (stack.isActive(toUri))
                 {
                     /*
                      * but also with another, then give the r506 response and
@@ -1535,92 +1782,42 @@ public class Transaction
         }
     }
 
-    private static Pattern asciiPattern = Pattern.compile("\\p{ASCII}+");
-
-    private static Pattern headers = Pattern.compile(
-                    "(^To-Path:) (.{10,})(\r\n)(From-Path:) (.{10,})(\r\n)(\\p{ASCII}*)",
-                    Pattern.CASE_INSENSITIVE);
-
-    private static Pattern messageIDPattern = Pattern.compile(
-                    "(.*)(Message-ID:) (\\p{Alnum}(\\p{Alnum}|\\.|\\-|\\+|\\%|\\=){3,31})(\r\n)(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern byteRangePattern = Pattern.compile(
-                    "(.*)(Byte-Range:) (\\p{Digit}+)-(\\p{Digit}+|\\*)/(\\p{Digit}+|\\*)(\r\n)(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern contentTypePattern = Pattern.compile(
-                    "(.*)(Content-Type:) ([^/]{1,30}/[^;\r\n]{1,30})(;.*)?\r\n(.*)",
-                    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern fReportPattern = Pattern.compile(
-	                "(.*)(Failure-Report:) ([^\r\n]*)(\r\n)(.*)",
-	                Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern sReportPattern = Pattern.compile(
-		    		"(.*)(Success-Report:) ([^\r\n]*)(\r\n)(.*)",
-		            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern nicknamePattern = Pattern.compile(
-		            "(.*)(Use-Nickname:) +\"([^\"]+)\"[^\r\n]*\r\n(.*)",
-		            Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
-    private static Pattern statusPattern = Pattern.compile(
-	                "(.*)(Status:) (\\p{Digit}{3}) (\\p{Digit}{3})([^\r\n]*)\r\n(.*)",
-	                Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
-
     /**
      * will recognise the headers stored on headerBuffer, initialise all of the
      * variables related to the header and check for violations of the
      * protocol
+     * <P>
+     * The header lines are walked once, each one is handled according to its
+     * name; a header given more than once counts with its last valid value.
      * 
      * @throws InvalidHeaderException if it's found that the header is invalid
      *             for some reason
      */
     private void recognizeHeader() throws InvalidHeaderException
     {
-    	Matcher matcher;
-
-    	// If the characters aren't all ascii send an invalid header
-        matcher = asciiPattern.matcher(headerBuffer);
-        if (!matcher.matches())
-            throw new InvalidHeaderException(
-                "Error, non-ascii characters contained in the header");
+        HeaderTokenizer header =
+            new HeaderTokenizer(headerBuffer, 0, headerLength);
 
         // headers = To-Path CRLF From-Path CRLF 1*( header CRLF )
-        matcher = headers.matcher(headerBuffer);
-        if (!matcher.matches())
-        {
-            throw new InvalidHeaderException(
-                "Transaction doesn't have valid to/from-path headers."
-                    + " Transaction: " + transactionType
-                    + " headerBuffer: " + headerBuffer);
-        }
+        if (!header.next() ||
+            header.getName() != HeaderTokenizer.Name.TO_PATH ||
+            header.getValueLength() < 10)
+            throw invalidPaths();
         try
         {
-            String[] toPaths = matcher.group(2).split(" +");
-            URI[] toPath = new URI[toPaths.length];
-            int i =0;
-            for (String path : toPaths) {
-            	toPath[i] = URI.create(path);
-            	i++;
-            }
-            setToPath(toPath);
+            setToPath(header.getPath());
         }
         catch (Exception e)
         {
             throw new InvalidHeaderException("Problem parsing to-path(s)", e);
         }
+        if (!header.next() ||
+            header.getName() != HeaderTokenizer.Name.FROM_PATH ||
+            header.getValueLength() < 10)
+            throw invalidPaths();
         try
         {
-            String[] fromPaths = matcher.group(5).split(" +");
-            URI[] fromPath = new URI[fromPaths.length];
-            int i = 0;
-            for (String path : fromPaths) {
-            	fromPath[i] = URI.create(path);
-            	i++;
-            }
-            setFromPath(fromPath);
+            setFromPath(header.getPath());
         }
         catch (Exception e)
         {
@@ -1628,65 +1825,86 @@ public class Transaction
         }
         // If we are receiving a response the processing ends here
         if (isIncomingResponse())
+        {
+            while (header.next())		// only check the remaining lines
+                ;
             return;
-        switch (transactionType)		// Method specific headers
+        }
+        boolean hasMessageID = false;
+        boolean hasNickname = false;
+        long[] range = new long[3];
+        String value;
+        while (header.next())
         {
-        case REPORT:
-            /* Report request specific headers: */
-            /* 'Status:' processing */
-            matcher = statusPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            {
-                String namespace = matcher.group(3);
-                String statusCode = matcher.group(4);
-                String comment = matcher.group(5);
-                statusHeader =
-                    new StatusHeader(namespace, statusCode, comment);
-            }
-            /* $FALL-THROUGH$: to shared headers */
-        case SEND:
-            /* Message-ID processing: */
-            matcher = messageIDPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            {
-                messageID = matcher.group(3);
-            }
-            else
-                throw new InvalidHeaderException("MessageID not found");
-
-            /* Byte-Range processing: */
-            matcher = byteRangePattern.matcher(headerBuffer);
-            if (matcher.matches())
+            HeaderTokenizer.Name name = header.getName();
+            if (name == null)
+                continue;
+            switch (transactionType)	// Method specific headers
             {
-                byteRange[0] = Integer.parseInt(matcher.group(3));
-                if (matcher.group(4).equals("*"))
-                    byteRange[1] = UNKNOWN;
-                else
-                    byteRange[1] = Integer.parseInt(matcher.group(4));
-                if (matcher.group(5).equals("*"))
-                    totalMessageBytes = UNKNOWN;
-                else
-                    totalMessageBytes = Integer.parseInt(matcher.group(5));
+            case REPORT:
+            case SEND:
+                break;
+            case NICKNAME:
+                if (name == HeaderTokenizer.Name.USE_NICKNAME)
+                {
+                    value = header.getNickname();
+                    if (value != null)
+                    {
+                        nickname = value;
+                        hasNickname = true;
+                    }
+                }
+                else if (name == HeaderTokenizer.Name.FAILURE_REPORT)
+                    logger.warn(this + " failure report included in NICKNAME request, ignoring...");
+                else if (name == HeaderTokenizer.Name.SUCCESS_REPORT)
+                    logger.warn(this + " success report included in NICKNAME request, ignoring...");
+                continue;
+            default:					/* nothing to do (yet) */
+                continue;
             }
-            matcher = contentTypePattern.matcher(headerBuffer);
-            if (matcher.matches())
-                this.contentType = matcher.group(3);
-
-            /* Report processing: */
-            matcher = fReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
+            switch (name)				// SEND and REPORT headers
             {
-            	String value = matcher.group(3).trim().toLowerCase();
-            	if (value.matches("yes|no|partial"))
+            case STATUS:
+                /* Report request specific headers: */
+                if (transactionType == TransactionType.REPORT)
+                {
+                    StatusHeader status = header.getStatus();
+                    if (status != null)
+                        statusHeader = status;
+                }
+                break;
+            case MESSAGE_ID:
+                value = header.getMessageId();
+                if (value != null)
+                {
+                    messageID = value;
+                    hasMessageID = true;
+                }
+                break;
+            case BYTE_RANGE:
+                if (header.getByteRange(range, UNKNOWN))
+                {
+                    byteRange[0] = range[0];
+                    byteRange[1] = range[1];
+                    totalMessageBytes = range[2];
+                }
+                break;
+            case CONTENT_TYPE:
+                value = header.getContentType();
+                if (value != null)
+                    this.contentType = value;
+                break;
+            case FAILURE_REPORT:
+            	value = header.getValue().trim().toLowerCase();
+            	if (value.equals("yes") || value.equals("no") ||
+            		value.equals("partial"))
             		failureReport = value;
             	else
 	                logger.warn(this + " failure-Report invalid value found: " +
 	                			value);
-            }
-            matcher = sReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            {
-            	String value = matcher.group(3).trim().toLowerCase();
+                break;
+            case SUCCESS_REPORT:
+            	value = header.getValue().trim().toLowerCase();
             	if (value.equals("yes"))
             			successReport = true;
             	else if (value.equals("no"))
@@ -1694,42 +1912,46 @@ public class Transaction
             	else
 	                logger.warn(this + " success-Report invalid value found: " +
 	                			value);
+                break;
+            default:
+                break;
             }
-            break;
-        case NICKNAME:
-            matcher = nicknamePattern.matcher(headerBuffer);
-            if (matcher.matches())
-                nickname = matcher.group(3);
-            else
-                throw new InvalidHeaderException("Nickname not found");
-            matcher = fReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            	logger.warn(this + " failure report included in NICKNAME request, ignoring...");
-            matcher = sReportPattern.matcher(headerBuffer);
-            if (matcher.matches())
-            	logger.warn(this + " success report included in NICKNAME request, ignoring...");
-        	break;
-        case UNSUPPORTED:
-        	/* nothing to do (yet) */
-            break;
-		default:
-			break;
         }
+        if ((transactionType == TransactionType.SEND ||
+             transactionType == TransactionType.REPORT) && !hasMessageID)
+            throw new InvalidHeaderException("MessageID not found");
+        if (transactionType == TransactionType.NICKNAME && !hasNickname)
+            throw new InvalidHeaderException("Nickname not found");
+    }
+
+    private InvalidHeaderException invalidPaths()
+    {
+        return new InvalidHeaderException(
+            "Transaction doesn't have valid to/from-path headers."
+                + " Transaction: " + transactionType + " headerBuffer: "
+                + (headerBuffer == null ? "" : new String(headerBuffer, 0,
+                                            headerLength, TextUtils.latin1)));
     }
 
     /**
-     * @param toPath the toPath to set
+     * @param toPath the toPath to set, its URIs parsed when first used.
+     * @throws URISyntaxException if one of the paths is not an MSRP URI.
      */
-    private void setToPath(URI[] toPath)
+    private void setToPath(PathHeader toPath) throws URISyntaxException
     {
+        if (!toPath.isWellFormed())
+            throw new URISyntaxException(toPath.toString(), "Not MSRP URIs");
         this.toPath = toPath;
     }
 
     /**
-     * @param fromPath the fromPath to set
+     * @param fromPath the fromPath to set, its URIs parsed when first used.
+     * @throws URISyntaxException if one of the paths is not an MSRP URI.
      */
-    private void setFromPath(URI[] fromPath)
+    private void setFromPath(PathHeader fromPath) throws URISyntaxException
     {
+        if (!fromPath.isWellFormed())
+            throw new URISyntaxException(fromPath.toString(), "Not MSRP URIs");
         this.fromPath = fromPath;
     }
 }
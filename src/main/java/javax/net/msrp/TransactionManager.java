@@ -17,12 +17,17 @@
 package javax.net.msrp;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.msrp.events.MessageAbortedEvent;
 import javax.net.msrp.exceptions.*;
@@ -60,18 +65,86 @@ public class TransactionManager
     private byte counter = 0;
 
     /**
+     * The transactions to send, queued by any thread without locking and
+     * taken by the write thread.
+     * 
      * @uml.property name="_transactions"
      * @uml.associationEnd multiplicity="(0 -1)"
      *                     inverse="_transactionManager:javax.net.msrp.Transaction"
      */
-    private Vector<Transaction> transactionsToSend =
-        new Vector<Transaction>();
+    private final ConcurrentLinkedQueue<Transaction> transactionsToSend =
+        new ConcurrentLinkedQueue<Transaction>();
+
+    /**
+     * The responses and REPORTs to send, taken before the transactions above.
+     */
+    private final ConcurrentLinkedQueue<Transaction> priorityToSend =
+        new ConcurrentLinkedQueue<Transaction>();
+
+    /** The transaction taken from the queues and being sent */
+    private volatile Transaction sending = null;
+
+    /**
+     * With a prioritizer, the transactions to send moved from the queue
+     * above to one per session, the sessions in the order they queued them.
+     * Guarded by the send lock.
+     */
+    private final LinkedHashMap<Session, ArrayDeque<Transaction>> sessionQueues =
+        new LinkedHashMap<Session, ArrayDeque<Transaction>>();
 
-    private HashMap<String, Transaction> existingTransactions =
-        new HashMap<String, Transaction>();
+    /** The number of transactions in the session queues */
+    private volatile int sessionQueued = 0;
 
-    private HashMap<URI, Session> associatedSessions =
-        new HashMap<URI, Session>();
+    /** The prioritizer of the stack the one of this connection was made of */
+    private ConnectionPrioritizer stackPrioritizer = null;
+
+    /**
+     * The prioritizer of this connection, its own instance of that of the
+     * stack.
+     * 
+     * @see ConnectionPrioritizer#newInstance()
+     */
+    private volatile ConnectionPrioritizer prioritizer = null;
+
+    /**
+     * The SENDs sent, to match their responses. Each is evicted at the
+     * response timeout of the stack.
+     */
+    private ConcurrentHashMap<String, Transaction> existingTransactions =
+        new ConcurrentHashMap<String, Transaction>();
+
+    /**
+     * The associated sessions, added and removed while the connection runs
+     * and looked up by its read and write threads.
+     */
+    private final ConcurrentHashMap<URI, Session> associatedSessions =
+        new ConcurrentHashMap<URI, Session>();
+
+    /** The associated sessions by the bytes of their session-id */
+    private final ConcurrentHashMap<ByteSlice, Session> sessionIds =
+        new ConcurrentHashMap<ByteSlice, Session>();
+
+    /**
+     * Guards the existing transactions and the accounting of the messages
+     * queued.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Guards the transaction being sent: held by the write thread while it
+     * takes the data to send and when aborting or interrupting messages, not
+     * when queueing. An explicit lock rather than a monitor, so that the
+     * (file) I/O done while holding it in {@link #getDataToSend(byte[])} does
+     * not pin a virtual thread to its carrier.
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * Accounts the messages in the send queue against the connection
+     * watermarks.
+     */
+    private final FlowControl flowControl =
+        new FlowControl(Stack.getConnectionWatermarks());
 
     /**
      * Variable used so that some method can behave in a different way for
@@ -177,7 +250,14 @@ public class TransactionManager
      */
     private Session getAssociatedSession(Transaction transaction)
     {
-        return Stack.getInstance().getSession((transaction.getToPath())[0]);
+        Session session = associatedSession(transaction.toPath);
+        if (session == null)
+        {
+            URI[] toPath = transaction.getToPath();
+            if (toPath != null)
+                session = Stack.getInstance().getSession(toPath[0]);
+        }
+        return session;
     }
 
     /**
@@ -337,11 +417,11 @@ public class TransactionManager
 
     /**
      * 
-     * @return the new Transaction ID generated randomly and making sure that it
-     *         doesn't exist on the existingTransactions that is the list of
-     *         existing transactions that this transaction manager manages. It
-     *         may return also a preset transaction ID for debug and test
-     *         purposes.
+     * @return the new Transaction ID generated randomly, long enough not to
+     *         collide with the existing transactions that this transaction
+     *         manager manages. It may return also a preset transaction ID for
+     *         debug and test purposes.
+     * @see IdGenerator#TRANSACTION
      */
     protected String generateNewTID()
     {
@@ -356,13 +436,7 @@ public class TransactionManager
             presetTID = null;
             return tidToReturn;
         }
-        byte[] tid = new byte[8];
-        String newTID;
-        do {
-        	TextUtils.generateRandom(tid);
-            newTID = new String(tid, TextUtils.utf8);
-        } while (existingTransactions.containsKey(newTID));
-        return newTID;
+        return IdGenerator.TRANSACTION.next();
     }
 
     @Override
@@ -436,6 +510,10 @@ public class TransactionManager
      */
     private void processResponse(TransactionResponse response)
     {
+        if (response.responseCode == ResponseCode.RC200 &&
+            response.response2Type == TransactionType.SEND)
+            chunkAnswered(response);
+        responseMatched(response);
     	if (response.response2Type == TransactionType.NICKNAME)
     	{
 			response.getMessage().getSession().triggerReceivedNickResult(response);
@@ -463,17 +541,56 @@ public class TransactionManager
         }
     }
 
+    /**
+     * Tell the chunking policy of the session how long the response to a
+     * chunk took.
+     * 
+     * @param response the 200 response to a SEND.
+     */
+    private void chunkAnswered(TransactionResponse response)
+    {
+        Transaction tx = existingTransactions.get(response.getTID());
+        Message message = response.getMessage();
+        if (tx == null || tx.sentAt == 0 ||
+            !(message instanceof OutgoingMessage) ||
+            message.getSession() == null)
+            return;
+        message.getSession().getChunkingPolicy().responseReceived(
+            (OutgoingMessage) message, tx.chunkSent,
+            System.nanoTime() - tx.sentAt);
+    }
+
+    /**
+     * The response to a transaction arrived: stop awaiting it and evict the
+     * transaction, so that it no longer holds on to its message.
+     * 
+     * @param response the response received.
+     */
+    private void responseMatched(TransactionResponse response)
+    {
+        Transaction tx = existingTransactions.remove(response.getTID());
+        if (tx == null)
+            return;
+        TimerWheel.Timeout timeout = tx.responseTimeout;
+        if (timeout != null)
+            timeout.cancel();
+    }
+
     /**
      * Method used by an incoming Transaction to retrieve the session associated
      * with it
      * 
-     * @param uriSession
-     * @return the session associated with uriSession or null if there is no
-     *         such session by that uri associated with this object
+     * @param toPath the To-Path of the transaction, its first URI has the
+     * 			session-id of the session.
+     * @return the session associated with the session-id or null if there is
+     *         no such session associated with this object
      */
-    protected Session associatedSession(URI uriSession)
+    protected Session associatedSession(PathHeader toPath)
     {
-        return associatedSessions.get(uriSession);
+        ByteSlice id = toPath == null ? null : toPath.getSessionId();
+        if (id == null)
+            return null;
+        return sessionIds.get(id);
     }
 
     /**
@@ -487,20 +604,35 @@ public class TransactionManager
     protected void addSession(Session session)
     {
         associatedSessions.put(session.getURI(), session);
+        ByteSlice id = sessionId(session);
+        if (id != null)
+            sessionIds.put(id, session);
         session.setTransactionManager(this);
     }
 
     protected void removeSession(Session session) {
     	associatedSessions.remove(session.getURI());
+        ConnectionPrioritizer prioritizer = this.prioritizer;
+        if (prioritizer != null)
+            prioritizer.removeSession(session);
+        ByteSlice id = sessionId(session);
+        if (id != null)
+            sessionIds.remove(id, session);
+    }
+
+    private static ByteSlice sessionId(Session session)
+    {
+        URI uri = session.getURI();
+        return uri == null ? null : PathHeader.getSessionId(uri);
     }
 
     /**
-     * @return a Collection of the sessions associated with this transaction
+     * @return a copy of the sessions associated with this transaction
      *         manager
      */
     protected Collection<Session> getAssociatedSessions()
     {
-        return associatedSessions.values();
+        return new ArrayList<Session>(associatedSessions.values());
     }
 
     /**
@@ -540,248 +672,344 @@ public class TransactionManager
 	        newTransaction = new Transaction((OutgoingMessage) validated, this);
     	} catch (Exception e) {
     		logger.error("Error validating message to send, ignoring. Reason: ", e);
+    		messageDequeued(messageToSend);
     		return;
     	}
-        synchronized(this)
+        lock.lock();
+        try
         {
-	        // TODO: possibly split the message into several transactions
 	        /* Add transaction to known list of existing transactions,
 	         * used to generate unique TIDs in the connection and to
 	         * be used when a response to a transaction is received.
 	         */
 	        existingTransactions.put(newTransaction.getTID(), newTransaction);
 
+	        /* account a new message, not the rest of an interrupted one */
+	        if (messageToSend.contentType != null)
+	        {
+	            boolean queued;
+	            synchronized (messageToSend)
+	            {
+	                queued = messageToSend.connectionQueued;
+	                messageToSend.connectionQueued = true;
+	            }
+	            if (!queued)
+	                flowControl.add(messageToSend.getQueuedSize());
+	        }
+
 	        // change the reference to the lastSendTransaction of the message
 	        messageToSend.setLastSendTransaction(newTransaction);
 
-	        addTransactionToSend(newTransaction, UNIMPORTANT);
         }
+        finally
+        {
+            lock.unlock();
+        }
+        addTransactionToSend(newTransaction, transactionsToSend);
     }
 
-    private static final int UNIMPORTANT = -1;
-
     /**
-     * Adds the given transaction to the queue of transactions to send and wakes
+     * Adds the given transaction to a queue of transactions to send and wakes
      * up the write thread of the associated connection
      * 
-     * @param Transaction transactionToSend
-     * @param positionIndex the position in which to add the transaction, if -1
-     *            (UNIMPORTANT) just run an .add
+     * @param transaction the transaction to send
+     * @param queue the queue to add it to
      */
-    private void addTransactionToSend(Transaction transaction, int positionIndex)
+    private void addTransactionToSend(Transaction transaction,
+        ConcurrentLinkedQueue<Transaction> queue)
     {
-        if (positionIndex != UNIMPORTANT)
-            transactionsToSend.add(positionIndex, transaction);
-        else
-            transactionsToSend.add(transaction);
+        queue.offer(transaction);
         connection.notifyWriteThread();
     }
 
+    /**
+     * Take the transaction to send (next), the responses and REPORTs first.
+     * A transaction being sent is interrupted when these are waiting.
+     * Called by the write thread, holding the send lock.
+     * 
+     * @return the transaction to send, null if none.
+     */
+    private Transaction nextTransactionToSend()
+    {
+        ConnectionPrioritizer prioritizer = currentPrioritizer();
+        Transaction t = sending;
+        if (t != null)
+        {
+            if (t.isInterruptible() && !t.interrupted && t.hasSentData() &&
+                (!priorityToSend.isEmpty() || shouldSwap(prioritizer, t)))
+            {
+                try
+                {
+                    t.interrupt();
+                }
+                catch (IllegalUseException e)
+                {
+                    logger.error(this + " interrupting " + t, e);
+                }
+            }
+            return t;
+        }
+        t = priorityToSend.poll();
+        if (t == null)
+            t = prioritizer == null && sessionQueued == 0 ?
+                    transactionsToSend.poll() : nextPrioritized(prioritizer);
+        sending = t;
+        return t;
+    }
+
+    /**
+     * @return the prioritizer of this connection, null if none.
+     */
+    protected ConnectionPrioritizer getPrioritizer()
+    {
+        return prioritizer;
+    }
+
+    /**
+     * Make the prioritizer of this connection anew when that of the stack was
+     * changed. Called holding the send lock.
+     * 
+     * @return the prioritizer of this connection, null if none.
+     */
+    private ConnectionPrioritizer currentPrioritizer()
+    {
+        ConnectionPrioritizer stack = Stack.getConnectionPrioritizer();
+        if (stack != stackPrioritizer)
+        {
+            prioritizer = stack == null ? null : stack.newInstance();
+            stackPrioritizer = stack;
+        }
+        return prioritizer;
+    }
+
+    /**
+     * Move the transactions queued meanwhile to the queues of their sessions.
+     * Called holding the send lock.
+     */
+    private void queueBySession()
+    {
+        Transaction t;
+        while ((t = transactionsToSend.poll()) != null)
+        {
+            Session session = t.getMessage().getSession();
+            ArrayDeque<Transaction> queue = sessionQueues.get(session);
+            if (queue == null)
+            {
+                queue = new ArrayDeque<Transaction>();
+                sessionQueues.put(session, queue);
+            }
+            queue.add(t);
+            sessionQueued++;
+        }
+    }
+
+    /**
+     * @param prioritizer the prioritizer of the connection, null if none.
+     * @param t the transaction being sent.
+     * @return true if it is to be interrupted for that of another session.
+     */
+    private boolean shouldSwap(ConnectionPrioritizer prioritizer,
+    						   Transaction t)
+    {
+        Message message = t.getMessage();
+        if (prioritizer == null || message == null ||
+            message.getSession() == null)
+            return false;
+        queueBySession();
+        if (sessionQueues.isEmpty())
+            return false;
+        return prioritizer.shouldSwap(sessionQueues.keySet(),
+                                      message.getSession(), message);
+    }
+
+    /**
+     * @param prioritizer the prioritizer of the connection, null to serve the
+     * 			sessions in turn (it was just removed).
+     * @return the first transaction queued of the session it chose.
+     */
+    private Transaction nextPrioritized(ConnectionPrioritizer prioritizer)
+    {
+        queueBySession();
+        if (sessionQueues.isEmpty())
+            return null;
+        Session next = prioritizer == null ? null :
+                            prioritizer.nextSession(sessionQueues.keySet());
+        if (next == null || !sessionQueues.containsKey(next))
+            next = sessionQueues.keySet().iterator().next();
+        ArrayDeque<Transaction> queue = sessionQueues.get(next);
+        Transaction t = queue.poll();
+        if (queue.isEmpty())
+            sessionQueues.remove(next);
+        sessionQueued--;
+        return t;
+    }
+
+    /**
+     * Remove the given transaction from the queue of its session.
+     * 
+     * @param tx the transaction.
+     * @return true if it was queued there.
+     */
+    private boolean removeFromSessionQueue(Transaction tx)
+    {
+        Message message = tx.getMessage();
+        ArrayDeque<Transaction> queue =
+            message == null ? null : sessionQueues.get(message.getSession());
+        if (queue == null || !queue.remove(tx))
+            return false;
+        if (queue.isEmpty())
+            sessionQueues.remove(message.getSession());
+        sessionQueued--;
+        return true;
+    }
+
     /**
      * Remove this transaction from the send queue.
      * In case this is an interrupted transaction, generate and queue the rest.
      * @param tx the transaction to remove.
      */
     private void removeTransactionToSend(Transaction tx) {
-		if (transactionsToSend.remove(tx))
+		if (tx == sending)
 		{
-			if (tx.interrupted && !tx.isAborted())
-			{
-				generateTransactionsToSend(tx.getMessage());
-			}
+			sending = null;
+			awaitResponse(tx);
+		}
+		else if (!removeFromSessionQueue(tx) && !transactionsToSend.remove(tx) &&
+				 !priorityToSend.remove(tx))
+			return;
+		if (tx.interrupted && !tx.isAborted())
+		{
+			generateTransactionsToSend(tx.getMessage());
+		}
+		else if (tx.getTransactionType() == TransactionType.SEND)
+		{
+			messageDequeued(tx.getMessage());
 		}
     }
 
     /**
-     * Checks the transaction queue for existing transactions to be sent
+     * Time out the response to the given transaction, just sent, in the
+     * response timeout of the stack. A SEND no response is sent to
+     * (Failure-Report: no) is evicted at once; the others when their
+     * response arrives or at the timeout.
      * 
-     * @return true if this transaction manager has data on queue to send and
-     *         false otherwise
+     * @param tx the transaction sent.
+     * @see Stack#setResponseTimeout(int)
      */
-    protected boolean hasDataToSend()
+    private void awaitResponse(final Transaction tx)
     {
-         return !transactionsToSend.isEmpty();
+        if (tx.getTransactionType() != TransactionType.SEND)
+            return;
+        tx.markSent();
+        Message message = tx.getMessage();
+        if (message != null &&
+            message.getFailureReport().equalsIgnoreCase(Message.NO))
+        {
+            existingTransactions.remove(tx.getTID(), tx);
+            return;
+        }
+        int timeout = Stack.getResponseTimeout();
+        if (timeout == 0)
+            return;
+        tx.responseTimeout = Stack.getTimerWheel().schedule(new Runnable()
+            {
+                public void run()
+                {
+                    responseTimedOut(tx);
+                }
+            }, timeout);
+        if (!existingTransactions.containsKey(tx.getTID()))
+            tx.responseTimeout.cancel();	/* answered meanwhile */
     }
 
     /**
-     * Class used to validate the outgoing data to what concerns the transaction
-     * id validation.
-     * 
-     * This class gives the needed methods to check if there is an end-line on
-     * the body of the transaction currently being sent or not.
-     * 
-     * As written in RFC 4975: " If the request contains a body, the sender MUST
-     * ensure that the end- line (seven hyphens, the transaction identifier, and
-     * a continuation flag) is not present in the body. [...] Some
-     * implementations may choose to scan for the closing sequence as they send
-     * the body, and if it is encountered, simply interrupt the chunk at that
-     * point and start a new transaction with a different transaction identifier
-     * to carry the rest of the body."
-     * 
-     * The approach of interrupting the ongoing transaction and create a new one
-     * was the one chosen and implemented by this library
-     * 
-     * @author Jo�o Andr� Pereira Antunes
+     * The response timeout of the given transaction expired: evict it and,
+     * when it was not answered but a response was asked for, abort its
+     * message as if a 408 response was received.
      * 
+     * @param tx the transaction sent.
      */
-    class OutgoingDataValidator
+    private void responseTimedOut(Transaction tx)
     {
-
-        /**
-         * This variable is true if the end-line was found and false otherwise.
-         * Calls to the dataHasEndLine reset this variable to false.
-         * 
-         * @see #dataHasEndLine()
-         */
-        private boolean foundEndLine = false;
-
-        /**
-         * It contains the number of bytes we should rewind the read offsets of
-         * the transaction
-         */
-        private int toRewind = 0;
-
-        /**
-         * Variable used to store the transaction ID that this class is using to
-         * look for the end-line
-         */
-        private String transactionID = null;
-
-        /**
-         * Variable used by the method parse to assert in which state the parser
-         * is so that we can save the state of this state machine between calls
-         */
-        private short state = 0;
-
-        /**
-         * Assert if the data we have so far contains the end-line
-         * 
-         * @return true if the data parsed so far has the end-line, false otherwise
-         * 
-         *         NOTE: This method resets the hasEndLine variable so by doing
-         *         two consecutive calls to this method the result of the second
-         *         can never be true.
-         * @see #foundEndLine
-         */
-        private boolean dataHasEndLine()
+        if (!existingTransactions.remove(tx.getTID(), tx) || tx.hasResponse())
+            return;
+        Message message = tx.getMessage();
+        Session session = message == null ? null : message.getSession();
+        if (session == null || session.getTransactionManager() != this ||
+            message.wasAborted() ||
+            !message.getFailureReport().equalsIgnoreCase(Message.YES))
+            return;
+        logger.warn(this + " no response to " + tx + " in time, aborting " +
+            message);
+        TransactionResponse response;
+        try
         {
-            boolean auxBoolean = foundEndLine;
-            foundEndLine = false;
-            return auxBoolean;
+            response = new TransactionResponse(tx, ResponseCode.RC408,
+                "No response in time", Direction.IN);
+            message.abort(MessageAbortedEvent.CONTINUATIONFLAG, null);
         }
-
-        /**
-         * Method used to initialize this class
-         * 
-         * @param transactionId the transaction id to be used in the search of
-         *            the end-line
-         */
-        private void init(String transactionId)
+        catch (IllegalUseException e)
         {
-            this.transactionID = transactionId;
+            logger.error(this + " exception caught aborting message "
+                + message, e);
+            return;
         }
-
-        /**
-         * Method used to reset the outgoingValidator. After this method future
-         * calls to the parse won't parse anything before a call to the init
-         * method is done
-         * 
-         */
-        private void reset()
+        catch (InternalErrorException e)
         {
-            this.transactionID = null;
+            logger.error(this + " exception caught aborting message "
+                + message, e);
+            return;
         }
+        message.fireMessageAbortedEvent(ResponseCode.RC408, null, response);
+    }
 
-        /**
-         * This method is used to parse the data to be searched for the end line
-         * characters
-         * 
-         * @param outputData the data to be parsed and searched for the end line
-         *            string
-         * @param length how many bytes of the outputData vector should be
-         *            searched
-         * @throws ImplementationException if it was detected that this method
-         *             was used in an incorrect way
-         */
-        private void parse(byte[] outputData, int length)
-            throws ImplementationException
+    /**
+     * The given message left the send queue: account for it in that of the
+     * connection and of its session.
+     * Sessions waiting for the connection to drain are told when it did.
+     * 
+     * @param message the message sent or aborted.
+     */
+    private void messageDequeued(Message message)
+    {
+        if (message == null)
+            return;
+        boolean queued;
+        synchronized (message)
         {
-            if (transactionID == null)
-                return;
-
-            if (outputData.length < length)
-                throw new ImplementationException("method "
-                    + "called with argument length too big");
-            /*
-             * if we found already the end of line and haven't reset the value
-             * with a call to hasEndLine and we call the parse that generates an
-             * ImplementationException
-             */
-            if (foundEndLine)
-                throw new ImplementationException(
-                    "Error, bad use of the class "
-                        + "outgoingDataValidator on TransactionManager, after "
-                        + "calling parse a call should always be made "
-                        + "to the dataHasEndLine");
-            for (int i = 0; i < length; i++)
-            {
-                switch (state)
-                {
-                case 0:
-                    if (outputData[i] == '-')
-                        state++;
-                    break;
-
-                case 1: case 2: case 3: case 4: case 5: case 6:
-                    if (outputData[i] == '-')
-                        state++;
-                    else
-                        state = 0;
-                    break;
-
-                default:
-                    if (state >= 7)
-                    {
-                        if ((state - 7) < transactionID.length() &&
-                    		outputData[i] == transactionID.charAt(state - 7))
-                            state++;
-                        else if ((state - 7 >= transactionID.length() &&
-                        		 (outputData[i] == '$' || outputData[i] == '#' ||
-                        		  outputData[i] == '+')))
-                        {
-                            foundEndLine = true;
-                            toRewind = length - i + state;
-                            /*
-                             * if we had an end-line split by buffers we
-                             * rewind to the beginning of the data in this
-                             * buffer and then interrupt the transaction
-                             */
-                            if (toRewind > length)
-                                toRewind = length;
-                            state = 0;
-                            break;					/* exit the for */
-                        }
-                        else
-                            state = 0;
-                    }
-                    break;
-                }
-            }
+            queued = message.connectionQueued;
+            message.connectionQueued = false;
         }
-
-        /**
-         * Returns the number of positions we should rewind
-         * on the buffer and on the transaction's read offset before we
-         * interrupt the current transaction.
-         */
-        private int amount2Rewind()
+        if (queued && flowControl.release(message.getQueuedSize()))
         {
-            return toRewind;
+            for (Session session : associatedSessions.values())
+                session.checkDrained();
         }
+        Session session = message.getSession();
+        if (session != null)
+            session.messageDequeued(message);
     }
 
-    private OutgoingDataValidator outgoingDataValidator =
-        new OutgoingDataValidator();
+    /**
+     * @return the flow control of the send queue of this connection.
+     * @see Stack#setConnectionWatermarks(Watermarks)
+     */
+    protected FlowControl getFlowControl()
+    {
+        return flowControl;
+    }
+
+    /**
+     * Checks the transaction queue for existing transactions to be sent
+     * 
+     * @return true if this transaction manager has data on queue to send and
+     *         false otherwise
+     */
+    protected boolean hasDataToSend()
+    {
+         return sending != null || !priorityToSend.isEmpty() ||
+                 !transactionsToSend.isEmpty() || sessionQueued > 0;
+    }
 
     /**
      * Method used by the connection object to retrieve a byte array of data
@@ -791,7 +1019,7 @@ public class TransactionManager
      *  - 1 piggyback multiple transactions to send into the byte array.
      *  - 2 split large data over multiple byte-array blocks
      *  - 3 interrupt transactions that contain endline-data in the content
-     *  	(and split into multiple transactions, using the validator).
+     *  	(and split into multiple transactions, see {@link EndLineGuard}).
      * 
      * It is also at this level that the sending of bytes is accounted for
      * purposes of triggering the sendUpdateStatus and the prioritiser
@@ -802,14 +1030,30 @@ public class TransactionManager
      */
     protected int getDataToSend(byte[] outData) throws Exception
     {
-        int byteCounter = 0;
+        return getDataToSend(outData, 0);
+    }
+
+    /**
+     * Fill the given byte array with data to send, after what it already
+     * holds.
+     * 
+     * @param outData the byte array to fill with data to send
+     * @param offset the number of bytes already in outData
+     * @return the number of bytes added to outData
+     * @throws Exception if something went wrong retrieving the data.
+     * @see #getDataToSend(byte[])
+     */
+    protected int getDataToSend(byte[] outData, int offset) throws Exception
+    {
+        int byteCounter = offset;
         int bytesToAccount = 0;		/* Number of bytes per transaction sent */
 
-        synchronized (this) {
-	        while (byteCounter < outData.length && hasDataToSend())
+        sendLock.lock();
+        try {
+            Transaction t;
+	        while (byteCounter < outData.length &&
+	               (t = nextTransactionToSend()) != null)
 	        {
-	            Transaction t = transactionsToSend.get(0);
-	            outgoingDataValidator.init(t.getTID());
 
 	            boolean stopTransmission = false;
 	            while (byteCounter < outData.length && !stopTransmission)
@@ -825,28 +1069,6 @@ public class TransactionManager
 	                    // Let's check to see if we should transmit end of line
 	                    if (t.hasEndLine())
 	                    {
-	                        /*
-	                         * First time we get here we should check if the
-	                         * end-line was found, if it was we should rewind,
-	                         * interrupt transaction and set bytesToAccount
-	                         * back to appropriate positions including index i.
-	                         * We can also reset the outgoingDataValidator
-	                         * because we know the end-line won't
-	                         * appear again on content before the transaction
-	                         * finishes
-	                         */
-	                        outgoingDataValidator.parse(outData, byteCounter);
-	                        outgoingDataValidator.reset();
-	                        if (outgoingDataValidator.dataHasEndLine())
-	                        {
-	                            int rewindAmount =
-	                            		outgoingDataValidator.amount2Rewind();
-	                            t.rewind(rewindAmount);
-	                            t.interrupt();
-	                            byteCounter -= rewindAmount;
-	                            bytesToAccount -= rewindAmount;
-	                            continue;
-	                        }
 	                        int nrBytes = t.getEndLine(outData, byteCounter);
 	                        byteCounter += nrBytes;
 	                        bytesToAccount += nrBytes;
@@ -858,12 +1080,6 @@ public class TransactionManager
 	                         * transactions to send
 	                         */
 	                    	removeTransactionToSend(t);
-	                        /*
-	                         * we should also reset the outgoingDataValidator, so
-	                         * that future calls to the parser won't misjudge the
-	                         * correct end-line as an end-line on the body content.
-	                         */
-	                        outgoingDataValidator.reset();
 
 	                        stopTransmission = true; // get next transaction, if any
 	                    }
@@ -871,29 +1087,6 @@ public class TransactionManager
 	            }// end of transaction while
 	            stopTransmission = false;
 
-	            /*
-	             * the buffer is full or the transaction has been removed from
-	             * the list of transactions to send and if that was the case the
-	             * outgoingValidator won't make a false positive because it has been
-	             * reset
-	             */
-	            outgoingDataValidator.parse(outData, byteCounter);
-	            if (outgoingDataValidator.dataHasEndLine())
-	            {
-	                int rewindAmount =
-	                    outgoingDataValidator.amount2Rewind();
-	                t.rewind(rewindAmount);
-	                t.interrupt();
-	                byteCounter -= rewindAmount;
-	                bytesToAccount -= rewindAmount;
-
-                    int nrBytes = t.getEndLine(outData, byteCounter);
-                    byteCounter += nrBytes;
-                    bytesToAccount += nrBytes;
-
-	                removeTransactionToSend(t);
-	                outgoingDataValidator.reset();
-	            }
 	            /* 
 				 * account for the bytes sent from this transaction if they should
 	             * be accounted for
@@ -916,8 +1109,80 @@ public class TransactionManager
 	                }
 	            }
 	        }	// end of main while, the one that goes across transactions
+        } finally {
+            sendLock.unlock();
+        }
+        return byteCounter - offset;
+    }
+
+    /**
+     * Gathering counterpart of {@link #getDataToSend(byte[])}: fills the given
+     * batch with buffers on the header, content and end-line bytes to send,
+     * leaving the copying to the (gathering) write on the connection.
+     * <p>
+     * Content kept in a file goes in as a {@link FileRegion} when the batch
+     * takes those, after checking it through a mapping of the file.
+     * Content is checked for the end-line as it is taken from the message, a
+     * transaction containing it is cut short and interrupted.
+     * 
+     * @param batch the (cleared) batch to fill with data to send
+     * @throws Exception if something went wrong retrieving the data.
+     */
+    protected void getDataToSend(OutputBatch batch) throws Exception
+    {
+        int bytesToAccount = 0;		/* Number of bytes per transaction sent */
+
+        sendLock.lock();
+        try {
+            Transaction t;
+	        while (!batch.isFull() && (t = nextTransactionToSend()) != null)
+	        {
+
+	            boolean stopTransmission = false;
+	            while (!batch.isFull() && !stopTransmission)
+	            {
+	                FileRegion region = batch.acceptsRegions() ?
+	                	t.getDataRegion(batch.spaceRemaining()) : null;
+	                if (region != null)
+	                {
+	                    bytesToAccount += region.remaining();
+	                    batch.add(region);
+	                }
+	                else if (t.hasData())
+	                {
+	                    ByteBuffer data = t.getDataSlice(batch.spaceRemaining());
+	                    bytesToAccount += data.remaining();
+	                    batch.add(data);
+	                }
+	                else if (t.hasEndLine())
+	                {
+	                    ByteBuffer endLine = t.getEndLineSlice();
+	                    bytesToAccount += endLine.remaining();
+	                    batch.add(endLine);
+	                }
+	                else
+	                {
+	                    removeTransactionToSend(t);
+	                    stopTransmission = true; // get next transaction, if any
+	                }
+	            }
+	            if (!t.isIncomingResponse()
+	                && t.getTransactionType() == TransactionType.SEND
+	                && !t.hasResponse())
+	            {
+	                OutgoingMessage transactionMessage =
+	                    (OutgoingMessage) t.getMessage();
+	                if (transactionMessage != null)
+	                {
+	                    transactionMessage.getReportMechanism().countSentBodyBytes(
+	                        transactionMessage, bytesToAccount);
+	                    bytesToAccount = 0;
+	                }
+	            }
+	        }
+        } finally {
+            sendLock.unlock();
         }
-        return byteCounter;
     }
 
     /**
@@ -943,9 +1208,8 @@ public class TransactionManager
     }
 
     /**
-     * Inserts transaction to send at the first interruptible spot in the queue.
-     * Or appends it when a transaction is being processed and interrupts that
-     * transaction.
+     * Queues the transaction to send before any other SEND. A SEND being sent
+     * is interrupted by the write thread when it takes the next data.
      * 
      * It's responsible for appropriate queueing of REPORT and responses
      * 
@@ -964,39 +1228,38 @@ public class TransactionManager
             throw new IllegalUseException(" the addPriorityTransaction was" +
 	                " called with an invalid direction transaction, " +
 	                "direction: " + transaction.getDirection());
-        /*
-         * Make sure that this response doesn't put itself ahead of other
-         * priority transactions:
-         */
-        synchronized(this)
-        {
-	        for (int i = 0; i < transactionsToSend.size(); i++)
-	        {
-	            Transaction t = transactionsToSend.get(i);
-	            if (t.isInterruptible())
-	            {
-	                if (i == 0 && t.hasSentData()) {
-	                    addTransactionToSend(transaction, 1);
-		                t.interrupt();
-	                } else
-	                    addTransactionToSend(transaction, i);
-	                return;
-	            }
-	        }
-	        // No interruptible transactions to send, just add the one given.
-	        addTransactionToSend(transaction, UNIMPORTANT);
-        }
+        addTransactionToSend(transaction, priorityToSend);
     }
 
     public void interruptMessage(Message message) throws IllegalUseException
     {
-    	synchronized (this)
+    	sendLock.lock();
+    	try
     	{
-	        for (Transaction t : transactionsToSend)
+	        for (Transaction t : queuedToSend())
 	            if (t.getTransactionType() == TransactionType.SEND &&
 	                t.getMessage().equals(message) && t.isInterruptible())
                     t.interrupt();
     	}
+    	finally
+    	{
+    	    sendLock.unlock();
+    	}
+    }
+
+    /**
+     * @return the transaction being sent, followed by the SENDs queued.
+     */
+    private Collection<Transaction> queuedToSend()
+    {
+        ArrayList<Transaction> queued = new ArrayList<Transaction>();
+        Transaction t = sending;
+        if (t != null)
+            queued.add(t);
+        for (ArrayDeque<Transaction> queue : sessionQueues.values())
+            queued.addAll(queue);
+        queued.addAll(transactionsToSend);
+        return queued;
     }
 
     /**
@@ -1005,10 +1268,11 @@ public class TransactionManager
      */
     public void abortMessage(Message message)
     {
-    	synchronized(this)
+    	sendLock.lock();
+    	try
     	{
     		boolean first = true;
-    		for (Transaction t : transactionsToSend)
+    		for (Transaction t : queuedToSend())
 	            if (t.getTransactionType() == TransactionType.SEND &&
 	                t.getMessage().equals(message))
 	            {
@@ -1022,5 +1286,9 @@ public class TransactionManager
 	            		removeTransactionToSend(t);
 	            }
     	}
+    	finally
+    	{
+    	    sendLock.unlock();
+    	}
     }
 }
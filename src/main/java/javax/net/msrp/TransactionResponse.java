@@ -76,9 +76,9 @@ public class TransactionResponse
         	response.append(" ").append(comment);
 
         response.append("\r\nTo-Path: ").append(
-                transaction.fromPath[transaction.fromPath.length - 1])
+                transaction.fromPath.get(transaction.fromPath.size() - 1))
         		.append("\r\nFrom-Path: ").append(
-                transaction.toPath[transaction.toPath.length - 1])
+                transaction.toPath.get(transaction.toPath.size() - 1))
                 .append("\r\n-------").append(transaction.tID).append("$\r\n");
 
         this.fromPath = transaction.toPath;
@@ -129,6 +129,28 @@ public class TransactionResponse
         return lengthToTransfer;
     }
 
+    /* (non-Javadoc)
+     * @see javax.net.msrp.Transaction#getDataSlice(int)
+     */
+    @Override
+    public ByteBuffer getDataSlice(int maxLength)
+    {
+        ByteBuffer slice = content.duplicate();
+        int length = Math.min(maxLength, content.remaining());
+        slice.limit(slice.position() + length);
+        content.position(content.position() + length);
+        return slice;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.net.msrp.Transaction#getDataRegion(int)
+     */
+    @Override
+    FileRegion getDataRegion(int maxLength)
+    {
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see javax.net.msrp.Transaction#hasData()
      */
@@ -0,0 +1,115 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The MSRP URIs parsed from received paths, shared by all connections.
+ * <P>
+ * A session sees the same few paths in every transaction: each is parsed once
+ * and kept by its bytes, the least recently used ones are dropped beyond
+ * {@link #CAPACITY} entries. The URIs are spread by the hash of their bytes
+ * over stripes, each with a lock of its own, so that connections receiving at
+ * the same time seldom wait for each other.
+ */
+class UriCache
+{
+    /** Maximum number of URIs kept */
+    static final int CAPACITY = 1024;
+
+    /** Number of stripes, a power of 2 */
+    private static final int STRIPES = 16;
+
+    /**
+     * The URIs of one stripe, in the order of use. Guarded by itself.
+     */
+    private static class Stripe
+        extends LinkedHashMap<ByteSlice, URI>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Stripe()
+        {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteSlice, URI> eldest)
+        {
+            return size() > CAPACITY / STRIPES;
+        }
+    }
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static
+    {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private UriCache()
+    {
+        /* static only */;
+    }
+
+    /**
+     * @param data the received bytes.
+     * @param offset where the URI starts.
+     * @param length the number of bytes of the URI.
+     * @return the URI of these bytes.
+     * @throws URISyntaxException if the bytes are not a valid URI.
+     */
+    static URI get(byte[] data, int offset, int length)
+        throws URISyntaxException
+    {
+        ByteSlice probe = new ByteSlice(data, offset, length);
+        int hash = probe.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe)
+        {
+            URI uri = stripe.get(probe);
+            if (uri != null)
+                return uri;
+        }
+        ByteSlice key = probe.copy();
+        URI uri = new URI(key.toString());
+        synchronized (stripe)
+        {
+            stripe.put(key, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * @return the number of URIs kept.
+     */
+    static int size()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe)
+            {
+                size += stripe.size();
+            }
+        return size;
+    }
+}
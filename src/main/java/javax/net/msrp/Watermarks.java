@@ -0,0 +1,132 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+/**
+ * The high and low watermarks of a send queue, in bytes and in messages.
+ * <P>
+ * A queue is full once either of its high watermarks is reached and stays
+ * so until it drained to (or below) both its low watermarks again. A
+ * watermark of 0 means no limit.
+ * <P>
+ * Only messages with content are counted, with their size in bytes, from the
+ * moment they are given to the session until their last byte is written (or
+ * they are aborted). A message is accepted as long as the queue is not full,
+ * so a single message larger than the high watermark still goes through.
+ *
+ * @see Stack#setSessionWatermarks(Watermarks)
+ * @see Stack#setConnectionWatermarks(Watermarks)
+ * @see Session#setWatermarks(Watermarks)
+ */
+public class Watermarks
+{
+    /** No limits, the default. */
+    public static final Watermarks NONE = new Watermarks(0, 0, 0, 0);
+
+    private final long lowBytes;
+
+    private final long highBytes;
+
+    private final int lowMessages;
+
+    private final int highMessages;
+
+    /**
+     * @param lowBytes the number of queued bytes to drain to.
+     * @param highBytes the number of queued bytes at which the queue is full,
+     * 			0 for no byte limit.
+     * @param lowMessages the number of queued messages to drain to.
+     * @param highMessages the number of queued messages at which the queue is
+     * 			full, 0 for no message limit.
+     * @throws IllegalArgumentException on negative values or a low watermark
+     * 			above its high one.
+     */
+    public Watermarks(long lowBytes, long highBytes,
+                      int lowMessages, int highMessages)
+    {
+        if (lowBytes < 0 || highBytes < 0 || lowMessages < 0 || highMessages < 0)
+            throw new IllegalArgumentException("Negative watermark");
+        if ((highBytes > 0 && lowBytes > highBytes) ||
+            (highMessages > 0 && lowMessages > highMessages))
+            throw new IllegalArgumentException(
+                    "Low watermark above high watermark");
+        this.lowBytes = lowBytes;
+        this.highBytes = highBytes;
+        this.lowMessages = lowMessages;
+        this.highMessages = highMessages;
+    }
+
+    /**
+     * Watermarks on the number of queued bytes only.
+     *
+     * @param lowBytes the number of queued bytes to drain to.
+     * @param highBytes the number of queued bytes at which the queue is full.
+     */
+    public Watermarks(long lowBytes, long highBytes)
+    {
+        this(lowBytes, highBytes, 0, 0);
+    }
+
+    public long getLowBytes()
+    {
+        return lowBytes;
+    }
+
+    public long getHighBytes()
+    {
+        return highBytes;
+    }
+
+    public int getLowMessages()
+    {
+        return lowMessages;
+    }
+
+    public int getHighMessages()
+    {
+        return highMessages;
+    }
+
+    /**
+     * @param bytes the number of queued bytes.
+     * @param messages the number of queued messages.
+     * @return true if a queue holding these is full.
+     */
+    boolean isAbove(long bytes, int messages)
+    {
+        return (highBytes > 0 && bytes >= highBytes) ||
+               (highMessages > 0 && messages >= highMessages);
+    }
+
+    /**
+     * @param bytes the number of queued bytes.
+     * @param messages the number of queued messages.
+     * @return true if a full queue holding these has drained.
+     */
+    boolean isBelow(long bytes, int messages)
+    {
+        return (highBytes == 0 || bytes <= lowBytes) &&
+               (highMessages == 0 || messages <= lowMessages);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Watermarks[bytes %d/%d, messages %d/%d]",
+                lowBytes, highBytes, lowMessages, highMessages);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Weighted fair queueing: the connection is shared in proportion to the
+ * weights of the sessions with messages queued.
+ * <P>
+ * Each session has a virtual finish time, the bytes it sent divided by its
+ * weight; the session furthest behind is served next, and a session is
+ * swapped once it got a quantum (of weighted bytes) ahead of another. The
+ * virtual time follows the session being served, two quanta behind: a session
+ * that was idle starts there, with the credit of a quantum over the one served
+ * but not of all the time it sent nothing.
+ */
+public class WeightedFairQueueing
+    extends ConnectionPrioritizer
+{
+    /** The default quantum, in bytes */
+    public static final int QUANTUM = 16 * 1024;
+
+    private final int quantum;
+
+    /** Shared with the instances made of this one */
+    private final ConcurrentHashMap<Session, Integer> weights;
+
+    private final HashMap<Session, Double> finishTimes =
+        new HashMap<Session, Double>();
+
+    /** Two quanta behind the finish time of the session last served */
+    private double virtualTime = 0;
+
+    public WeightedFairQueueing()
+    {
+        this(QUANTUM);
+    }
+
+    /**
+     * @param quantum the number of bytes (for a weight of 1) a session sends
+     *            before the others may be served.
+     * @throws IllegalArgumentException if not positive.
+     */
+    public WeightedFairQueueing(int quantum)
+    {
+        this(quantum, new ConcurrentHashMap<Session, Integer>());
+        if (quantum <= 0)
+            throw new IllegalArgumentException("Invalid quantum");
+    }
+
+    private WeightedFairQueueing(int quantum,
+        ConcurrentHashMap<Session, Integer> weights)
+    {
+        this.quantum = quantum;
+        this.weights = weights;
+    }
+
+    /**
+     * @return a prioritizer of the same quantum and weights, weights set on
+     *            either one apply to both.
+     */
+    @Override
+    public ConnectionPrioritizer newInstance()
+    {
+        return new WeightedFairQueueing(quantum, weights);
+    }
+
+    /**
+     * @param session the session.
+     * @param weight its share of the connection relative to the other
+     *            sessions, 1 by default.
+     * @throws IllegalArgumentException if not positive.
+     */
+    public void setWeight(Session session, int weight)
+    {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Invalid weight");
+        weights.put(session, weight);
+    }
+
+    /**
+     * @param session the session.
+     * @return its weight.
+     */
+    public int getWeight(Session session)
+    {
+        Integer weight = weights.get(session);
+        return weight == null ? 1 : weight.intValue();
+    }
+
+    @Override
+    protected synchronized Session nextSession(Collection<Session> sessions)
+    {
+        Session next = null;
+        double earliest = Double.MAX_VALUE;
+        for (Session session : sessions)
+        {
+            double finish = finishTime(session);
+            if (finish < earliest)
+            {
+                earliest = finish;
+                next = session;
+            }
+        }
+        virtualTime = earliest;
+        return next;
+    }
+
+    @Override
+    protected synchronized boolean shouldSwap(Collection<Session> sessions,
+        Session session, Message message)
+    {
+        double limit = finishTime(session) - (double) quantum / getWeight(session);
+        for (Session other : sessions)
+            if (other != session && finishTime(other) < limit)
+                return true;
+        return false;
+    }
+
+    @Override
+    protected void sentBytes(Session session, OutgoingMessage message,
+        int numberBytesSent)
+    {
+        double finish = finishTime(session) +
+            (double) numberBytesSent / getWeight(session);
+        finishTimes.put(session, finish);
+        virtualTime = Math.max(virtualTime,
+            finish - 2.0 * quantum / getWeight(session));
+    }
+
+    @Override
+    protected synchronized void removeSession(Session session)
+    {
+        super.removeSession(session);
+        weights.remove(session);
+        finishTimes.remove(session);
+    }
+
+    /* the finish time of the session, caught up with the virtual time */
+    private double finishTime(Session session)
+    {
+        Double finish = finishTimes.get(session);
+        if (finish == null || finish.doubleValue() < virtualTime)
+        {
+            finishTimes.put(session, virtualTime);
+            return virtualTime;
+        }
+        return finish.doubleValue();
+    }
+}
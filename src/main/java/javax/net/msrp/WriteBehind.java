@@ -0,0 +1,321 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.msrp.exceptions.IllegalUseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind stage of a connection: stores received body data in file
+ * backed containers on a thread of its own, so that a slow disk does not
+ * stall the reading of the connection and the sessions using it.
+ * <p>
+ * Tasks run in the order they were queued. What the connection does with a
+ * received transaction after storing its data (accounting it, notifying the
+ * transaction manager) is queued behind the stores, so counters, reports and
+ * received message events only see data that is in the container.
+ * <p>
+ * The queue is bounded by the number of bytes it holds. Once these reach the
+ * maximum the connection stops reading until half of them are stored.
+ * 
+ * @see Stack#setWriteBehindBytes(int)
+ */
+class WriteBehind
+    implements Runnable
+{
+    /** The logger associated with this class */
+    private static final Logger logger =
+        LoggerFactory.getLogger(WriteBehind.class);
+
+    private static class Task
+    {
+        private final Runnable runnable;
+
+        private final int bytes;
+
+        private Task(Runnable runnable, int bytes)
+        {
+            this.runnable = runnable;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Connection connection;
+
+    private final int maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition taskQueued = lock.newCondition();
+
+    private final Condition drained = lock.newCondition();
+
+    private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+
+    /**
+     * Number of tasks queued or running.
+     */
+    private int pending = 0;
+
+    /**
+     * Number of data bytes queued and not yet stored.
+     */
+    private long queuedBytes = 0;
+
+    /**
+     * Reading was paused (reactor mode) until the queue drains.
+     */
+    private boolean readPaused = false;
+
+    private boolean closed = false;
+
+    private Thread writer = null;
+
+    /**
+     * @param connection the connection whose received data is stored.
+     * @param maxBytes number of queued bytes at which reading stops.
+     */
+    WriteBehind(Connection connection, int maxBytes)
+    {
+        this.connection = connection;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param container the container data is stored in.
+     * @return true if data for this container should be stored through
+     *         the write-behind stage.
+     */
+    static boolean handles(DataContainer container)
+    {
+        return container instanceof FileDataContainer ||
+               container instanceof MappedFileDataContainer;
+    }
+
+    /**
+     * Queue storing (a copy of) the remaining bytes of the given buffer as
+     * body data of the transaction, leaving the position of the buffer at its
+     * limit. The copy is in a pooled buffer, returned once stored.
+     * 
+     * @param transaction the transaction the data was received in.
+     * @param start where the data starts in the message.
+     * @param data the received data.
+     */
+    void store(final Transaction transaction, final long start,
+        ByteBuffer data)
+    {
+        final int length = data.remaining();
+        final ByteBuffer copy = BufferPool.acquireAtLeast(length);
+        copy.put(data);
+        copy.flip();
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    transaction.storeBody(start, copy);
+                }
+                catch (Exception e)
+                {
+                    logger.error(transaction +
+                        " exception while storing, generating 400 response", e);
+                    try
+                    {
+                        transaction.transactionManager.generateResponse(
+                            transaction, ResponseCode.RC400,
+                            "Storing exception: " + e.getMessage());
+                    }
+                    catch (IllegalUseException e2)
+                    {
+                        logger.error("Unable to generate response", e2);
+                    }
+                }
+                finally
+                {
+                    BufferPool.release(copy);
+                }
+            }
+        }, length);
+    }
+
+    /**
+     * Run the given task after the ones queued so far.
+     * 
+     * @param task the task to run.
+     */
+    void execute(Runnable task)
+    {
+        execute(task, 0);
+    }
+
+    private void execute(Runnable task, int bytes)
+    {
+        lock.lock();
+        try
+        {
+            tasks.add(new Task(task, bytes));
+            pending++;
+            queuedBytes += bytes;
+            if (writer == null)
+            {
+                writer = Stack.newThread(null, this, "Connection: " +
+                            connection.getLocalURI() + " write-behind");
+                writer.start();
+            }
+            taskQueued.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if there are tasks queued or running.
+     */
+    boolean isBusy()
+    {
+        lock.lock();
+        try
+        {
+            return pending > 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until there is room in the queue to read more data.
+     * 
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void awaitRoom() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (queuedBytes >= maxBytes && !closed)
+                drained.await();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reactor mode: when the queue is full, mark reading as paused. The
+     * connection is told to resume once the queue has drained.
+     * 
+     * @return true if reading should pause.
+     * @see Connection#resumeReading()
+     */
+    boolean pauseReadingIfFull()
+    {
+        lock.lock();
+        try
+        {
+            if (queuedBytes >= maxBytes && !closed)
+                readPaused = true;
+            return readPaused;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer, once the queued tasks are done.
+     */
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            taskQueued.signal();
+            drained.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            Task task;
+            lock.lock();
+            try
+            {
+                while (tasks.isEmpty() && !closed)
+                    taskQueued.awaitUninterruptibly();
+                task = tasks.poll();
+                if (task == null)
+                {
+                    writer = null;
+                    return;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            try
+            {
+                task.runnable.run();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Write-behind task failed", e);
+            }
+            boolean resume = false;
+            lock.lock();
+            try
+            {
+                pending--;
+                queuedBytes -= task.bytes;
+                if (queuedBytes <= maxBytes / 2)
+                {
+                    drained.signalAll();
+                    resume = readPaused;
+                    readPaused = false;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            if (resume)
+                connection.resumeReading();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp.exceptions;
+
+/**
+ * Thrown when a message is sent on a session whose send queue (or that of its
+ * connection) is full and whose overflow policy is to fail, or to block and
+ * the sending thread is interrupted while waiting.
+ * <p>
+ * Unchecked, like the {@link IllegalStateException} it extends, as it stems
+ * from sending faster than the connection drains rather than from an
+ * exceptional condition.
+ *
+ * @see javax.net.msrp.OverflowPolicy#FAIL
+ */
+@SuppressWarnings("serial")
+public class SendQueueFullException
+    extends IllegalStateException
+{
+    /**
+     * @param message the detail message.
+     */
+    public SendQueueFullException(String message)
+    {
+        super(message);
+    }
+
+    /**
+     * @param message the detail message.
+     * @param cause why the message could not be queued.
+     */
+    public SendQueueFullException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Locates bytes in received data eight at a time.
+ * <P>
+ * Each 8 bytes are read as one (little-endian) long and tested for the
+ * wanted byte with a few arithmetic operations on the whole word ("SIMD
+ * within a register"). Short ranges, and the bytes not filling a word, are
+ * scanned one by one.
+ */
+public class ByteScanner
+{
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /** Below this number of bytes, just loop */
+    private static final int MINWORDSCAN = 32;
+
+    private ByteScanner()
+    {
+        /* static only */;
+    }
+
+    /**
+     * Find the first occurrence of a byte.
+     *
+     * @param data the bytes to scan.
+     * @param from the first position to look at.
+     * @param to the position after the last one to look at.
+     * @param value the byte to find.
+     * @return the position of the first occurrence, -1 if not found.
+     */
+    public static int indexOf(byte[] data, int from, int to, byte value)
+    {
+        int i = from;
+        if (to - from >= MINWORDSCAN)
+        {
+            ByteBuffer words = ByteBuffer.wrap(data);
+            words.order(ByteOrder.LITTLE_ENDIAN);
+            long pattern = (value & 0xFFL) * ONES;
+            for (int last = to - 8; i <= last; i += 8)
+            {
+                long word = words.getLong(i) ^ pattern;
+                /*
+                 * The high bit is set on the bytes that are 0. A borrow may
+                 * also set it on bytes above a 0, the lowest one is exact.
+                 */
+                long found = (word - ONES) & ~word & HIGHS;
+                if (found != 0)
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++)
+            if (data[i] == value)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Find the first CRLF.
+     *
+     * @param data the bytes to scan.
+     * @param from the first position to look at.
+     * @param to the position after the last one to look at.
+     * @return the position of the CR, -1 if not found.
+     */
+    public static int indexOfCrlf(byte[] data, int from, int to)
+    {
+        int i = from;
+        while ((i = indexOf(data, i, to - 1, (byte) '\r')) >= 0)
+        {
+            if (data[i + 1] == '\n')
+                return i;
+            i++;
+        }
+        return -1;
+    }
+}
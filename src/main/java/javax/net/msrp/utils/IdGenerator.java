@@ -0,0 +1,225 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp.utils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates the random identifiers of the stack: transaction-ids, message-ids
+ * and the session-ids of local URIs, as alpha-numeric (base62) US-ASCII.
+ * <P>
+ * Each thread draws from generators of its own, nothing is shared nor
+ * locked. Session-ids and message-ids must not be guessable (RFC 4975 section
+ * 14.1): they come from a {@link SecureRandom} per thread. Transaction-ids
+ * only need to be unique, they come from a fast generator per thread
+ * (SplitMix64, seeded once from a SecureRandom) that has nothing to do with
+ * the secure one, so seeing them tells nothing about the other identifiers.
+ * Identifiers are long enough for collisions to be statistically impossible,
+ * they need not be checked against those in use.
+ */
+public class IdGenerator
+{
+    private static final byte[] BASE62 =
+        "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+            .getBytes(TextUtils.usascii);
+
+    /** log2(62) */
+    private static final double BITSPERCHAR = Math.log(62) / Math.log(2);
+
+    private static final SecureRandom seeder = new SecureRandom();
+
+    private static final ThreadLocal<long[]> state = new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                synchronized (seeder)
+                {
+                    return new long[] { seeder.nextLong() };
+                }
+            }
+        };
+
+    /*
+     * SHA1PRNG seeds itself on first use and then draws without a lock shared
+     * with other instances, unlike the default (native) one.
+     */
+    private static final ThreadLocal<SecureRandom> secureRandom =
+        new ThreadLocal<SecureRandom>()
+        {
+            @Override
+            protected SecureRandom initialValue()
+            {
+                try
+                {
+                    return SecureRandom.getInstance("SHA1PRNG");
+                }
+                catch (NoSuchAlgorithmException e)
+                {
+                    return new SecureRandom();
+                }
+            }
+        };
+
+    /** Transaction-ids, 64 bits */
+    public static final IdGenerator TRANSACTION = new IdGenerator(64, false);
+
+    /** Message-ids, 128 bits */
+    public static final IdGenerator MESSAGE = new IdGenerator(128);
+
+    /** Session-ids, the 80 bits RFC 4975 asks for */
+    public static final IdGenerator SESSION = new IdGenerator(80);
+
+    private final boolean secure;
+
+    private volatile int length;
+
+    /**
+     * @param bits the entropy of the identifiers.
+     * @see #setBits(int)
+     */
+    public IdGenerator(int bits)
+    {
+        this(bits, true);
+    }
+
+    /**
+     * @param bits the entropy of the identifiers.
+     * @param secure draw from a {@link SecureRandom}, for identifiers that
+     * 			must not be guessable.
+     * @see #setBits(int)
+     */
+    public IdGenerator(int bits, boolean secure)
+    {
+        this.secure = secure;
+        setBits(bits);
+    }
+
+    /**
+     * Set the entropy of the identifiers generated from now on.
+     *
+     * @param bits the number of random bits, rounded up to whole characters
+     * 			(of almost 6 bits each). MSRP identifiers are 4 to 32
+     * 			characters long.
+     * @throws IllegalArgumentException when out of these bounds.
+     */
+    public void setBits(int bits)
+    {
+        int chars = (int) Math.ceil(bits / BITSPERCHAR);
+        if (chars < 4 || chars > 32)
+            throw new IllegalArgumentException(
+                "Identifiers of " + bits + " bits not supported");
+        length = chars;
+    }
+
+    /**
+     * @return the number of random bits of the identifiers, at least the
+     * 			number set.
+     */
+    public int getBits()
+    {
+        return (int) (length * BITSPERCHAR);
+    }
+
+    /**
+     * @return the number of characters of the identifiers.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return true if the identifiers come from a {@link SecureRandom}.
+     */
+    public boolean isSecure()
+    {
+        return secure;
+    }
+
+    /**
+     * @return a new identifier.
+     */
+    public String next()
+    {
+        byte[] id = new byte[length];
+        if (secure)
+            fillSecure(id);
+        else
+            fill(id, 0, id.length);
+        return new String(id, TextUtils.usascii);
+    }
+
+    /**
+     * Fill with random alpha-numeric characters from the fast generator of
+     * the thread, not for identifiers that must not be guessable.
+     *
+     * @param id the array to fill.
+     * @param offset where to start.
+     * @param count the number of characters.
+     */
+    public static void fill(byte[] id, int offset, int count)
+    {
+        long[] s = state.get();
+        long bits = 0;
+        int left = 0;
+        int end = offset + count;
+        while (offset < end)
+        {
+            if (left < 6)
+            {
+                bits = splitMix(s);
+                left = 64;
+            }
+            int digit = (int) (bits & 0x3F);
+            bits >>>= 6;
+            left -= 6;
+            if (digit < 62)				// unbiased: drop 62 and 63
+                id[offset++] = BASE62[digit];
+        }
+    }
+
+    /* fill with characters from the secure generator of the thread */
+    private static void fillSecure(byte[] id)
+    {
+        SecureRandom random = secureRandom.get();
+        byte[] bytes = new byte[id.length + id.length / 8 + 1];
+        int next = bytes.length;
+        int offset = 0;
+        while (offset < id.length)
+        {
+            if (next == bytes.length)
+            {
+                random.nextBytes(bytes);
+                next = 0;
+            }
+            int digit = bytes[next++] & 0x3F;
+            if (digit < 62)				// unbiased: drop 62 and 63
+                id[offset++] = BASE62[digit];
+        }
+    }
+
+    /* next output of the SplitMix64 generator of the thread */
+    private static long splitMix(long[] s)
+    {
+        long z = (s[0] += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
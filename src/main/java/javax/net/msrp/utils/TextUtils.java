@@ -29,6 +29,8 @@ public class TextUtils
 
     public static Charset usascii = Charset.forName("US-ASCII");
     public static Charset utf8 = Charset.forName("UTF-8");
+    /** One char per byte: string offsets are byte offsets. */
+    public static Charset latin1 = Charset.forName("ISO-8859-1");
 
     public static Random randomGenerator = new Random();
 
@@ -38,29 +40,11 @@ public class TextUtils
      * @param byteArray the byte array that will contain the newly generated
      *            bytes. the number of generated bytes is given by the length of
      *            the byteArray
-     * 
+     * @see IdGenerator#fill(byte[], int, int)
      **/
     public static void generateRandom(byte[] byteArray)
     {
-        int i;
-        randomGenerator.nextBytes(byteArray);
-        for (i = 0; i < byteArray.length; i++)
-        {
-            if (byteArray[i] < 0)
-                byteArray[i] *= -1;
-
-            while (!((byteArray[i] >= 65 && byteArray[i] <= 90)
-                || (byteArray[i] >= 97 && byteArray[i] <= 122) || (byteArray[i] <= 57 && byteArray[i] >= 48)))
-            {
-
-                if (byteArray[i] > 122)
-                    byteArray[i] -= randomGenerator.nextInt(byteArray[i]);
-                if (byteArray[i] < 48)
-                    byteArray[i] += randomGenerator.nextInt(5);
-                else
-                    byteArray[i] += randomGenerator.nextInt(10);
-            }
-        }
+        IdGenerator.fill(byteArray, 0, byteArray.length);
     }
 
 	/* to hex converter */
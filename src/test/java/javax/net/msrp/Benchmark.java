@@ -0,0 +1,71 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.junit.Assume;
+
+/**
+ * The switch of the benchmarks among the tests, which measure (and print)
+ * the speed of parts of the stack. They are skipped unless the
+ * <tt>msrp.benchmark</tt> system property is true, as with
+ * <tt>mvn test -Dmsrp.benchmark=true</tt>.
+ */
+public final class Benchmark
+{
+    /** The system property enabling the benchmarks */
+    public static final String PROPERTY = "msrp.benchmark";
+
+    private static Level logLevel = null;
+
+    private Benchmark()
+    {
+    }
+
+    /**
+     * Skip the calling test, or test class when called from a
+     * <tt>BeforeClass</tt> method, unless the benchmarks are enabled.
+     */
+    public static void assumeEnabled()
+    {
+        Assume.assumeTrue(Boolean.getBoolean(PROPERTY));
+    }
+
+    /**
+     * Skip the calling test unless the benchmarks are enabled, else log only
+     * warnings and errors until {@link #end()}: the debug logging to the
+     * console would take more time than what is measured.
+     */
+    public static void begin()
+    {
+        assumeEnabled();
+        logLevel = LogManager.getRootLogger().getLevel();
+        LogManager.getRootLogger().setLevel(Level.WARN);
+    }
+
+    /**
+     * Restore the logging of before {@link #begin()}, if it was called.
+     */
+    public static void end()
+    {
+        if (logLevel == null)
+            return;
+        LogManager.getRootLogger().setLevel(logLevel);
+        logLevel = null;
+    }
+}
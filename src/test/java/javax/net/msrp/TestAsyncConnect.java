@@ -0,0 +1,257 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.msrp.testutils.MockSessionListener;
+
+import org.junit.*;
+
+/**
+ * Tests connecting sessions asynchronously, the connect timeout and the
+ * pre-warmed connections.
+ *
+ * @see Session#setToPathAsync(ArrayList)
+ * @see Stack#setConnectTimeout(int)
+ * @see Stack#setPrewarmedConnections(int)
+ * @see Stack#setIdleConnectionTimeout(int)
+ */
+public class TestAsyncConnect extends TestFrame
+{
+    private ArrayList<Session> sessions = new ArrayList<Session>();
+
+    @After
+    public void tearDownAsync()
+    {
+        for (Session session : sessions)
+            session.tearDown();
+        Stack.setConnectTimeout(0);
+        Stack.setPrewarmedConnections(0);
+        Stack.setIdleConnectionTimeout(60000);
+    }
+
+    /**
+     * Connect a session to the (raw socket) peer, which then accepts its
+     * connection and the one pre-warmed.
+     * 
+     * @return the peer end of the pre-warmed connection.
+     */
+    private SocketChannel connectPrewarming(ServerSocketChannel server)
+        throws Exception
+    {
+        Stack.setPrewarmedConnections(1);
+        Session session = Session.create(false, false, address);
+        sessions.add(session);
+        MockSessionListener listener = new MockSessionListener("prewarming");
+        listener.setAcceptHookResult(Boolean.TRUE);
+        session.setListener(listener);
+        session.setToPath(peerPath(server, "first"));
+        server.accept();
+        SocketChannel prewarmed = server.accept();
+        Thread.sleep(200);				// give the pool a moment to keep it
+        return prewarmed;
+    }
+
+    private ArrayList<URI> peerPath(ServerSocketChannel server, String id)
+        throws Exception
+    {
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://" + address.getHostAddress() + ":" +
+            server.socket().getLocalPort() + "/" + id + ";tcp"));
+        return toPath;
+    }
+
+    private ServerSocketChannel newPeer() throws IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        return server;
+    }
+
+    @Test
+    public void testSetToPathAsync() throws Exception
+    {
+        byte[] data = new byte[10 * 1024];
+        fillText(data);
+        sendingSession.sendMessage(new OutgoingMessage("plain/text", data));
+
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(receivingSession.getURI());
+        Future<Session> connected = sendingSession.setToPathAsync(toPath);
+
+        receivingSessionListener.setDataContainer(
+            new MemoryDataContainer(data.length));
+        receivingSessionListener.setAcceptHookResult(true);
+        receivingSessionListener.triggerReception();
+        assertSame(sendingSession, connected.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(data, receivingSessionListener.getReceiveMessage()
+            .getDataContainer().get(0, 0).array());
+    }
+
+    /** @return true if a thread of the given name prefix is alive */
+    private static boolean isRunning(String name)
+    {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith(name) && thread.isAlive())
+                return true;
+        return false;
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        Stack.setReactorThreads(1);
+        try
+        {
+            Stack.getReactor();
+        }
+        finally
+        {
+            Stack.setReactorThreads(0);
+        }
+        Stack.getConnector();
+        assertTrue(isRunning("MSRP reactor"));
+        assertTrue(isRunning("MSRP connector"));
+
+        Stack.shutdown();
+        assertFalse("Reactor left running", isRunning("MSRP reactor"));
+        assertFalse("Connector left running", isRunning("MSRP connector"));
+
+        testSetToPathAsync();			/* a new connector runs */
+    }
+
+    @Test
+    public void testConnectFailure() throws Exception
+    {
+        /* a bound port that does not accept: the connect is refused */
+        ServerSocket closed = new ServerSocket();
+        closed.bind(new InetSocketAddress(address, 0));
+        int port = closed.getLocalPort();
+        closed.close();
+
+        Session session = Session.create(false, false, address);
+        sessions.add(session);
+        session.setListener(new MockSessionListener("unconnected"));
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://" + address.getHostAddress() + ":" + port +
+                           "/nobody;tcp"));
+        Stack.setConnectTimeout(2000);
+        Future<Session> connected = session.setToPathAsync(toPath);
+        try
+        {
+            connected.get(5, TimeUnit.SECONDS);
+            fail("Connected to a closed port");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testPrewarmedConnection() throws Exception
+    {
+        Stack.setPrewarmedConnections(1);
+        byte[] data = new byte[10 * 1024];
+        fillText(data);
+        assertArrayEquals(data, memory2Memory(data, false));
+        Thread.sleep(500);				// give the pre-warming a moment
+
+        Session sender = Session.create(false, false, address);
+        sessions.add(sender);
+        sender.setListener(new MockSessionListener("sender"));
+        Session receiver =
+            Session.create(false, false, sender.getURI(), address);
+        sessions.add(receiver);
+        MockSessionListener receiverListener =
+            new MockSessionListener("receiver");
+        receiver.setListener(receiverListener);
+        Connection own = sender.getConnection();
+
+        sender.sendMessage(new OutgoingMessage("plain/text", data));
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(receiver.getURI());
+        sender.setToPath(toPath);
+        assertNotSame("Pre-warmed connection not used",
+            own, sender.getConnection());
+        assertNotSame(sendingSession.getConnection(), sender.getConnection());
+
+        receiverListener.setDataContainer(new MemoryDataContainer(data.length));
+        receiverListener.setAcceptHookResult(true);
+        receiverListener.triggerReception();
+        assertArrayEquals(data, receiverListener.getReceiveMessage()
+            .getDataContainer().get(0, 0).array());
+    }
+
+    @Test
+    public void testIdleConnectionExpires() throws Exception
+    {
+        Stack.setIdleConnectionTimeout(300);
+        ServerSocketChannel server = newPeer();
+        try
+        {
+            SocketChannel prewarmed = connectPrewarming(server);
+            long start = System.currentTimeMillis();
+            assertEquals("Idle connection not closed", -1,
+                prewarmed.read(ByteBuffer.allocate(16)));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClosedIdleConnectionDropped() throws Exception
+    {
+        ServerSocketChannel server = newPeer();
+        try
+        {
+            connectPrewarming(server).close();
+            Thread.sleep(200);
+
+            Session next = Session.create(false, false, address);
+            sessions.add(next);
+            MockSessionListener listener = new MockSessionListener("next");
+            listener.setAcceptHookResult(Boolean.TRUE);
+            next.setListener(listener);
+            Connection own = next.getConnection();
+            next.setToPath(peerPath(server, "next"));
+            assertSame("Closed pre-warmed connection used",
+                own, next.getConnection());
+            assertNotNull(server.accept());
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+}
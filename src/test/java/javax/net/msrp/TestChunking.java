@@ -0,0 +1,230 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the chunking policies, and the chunks sent to a (raw socket) peer.
+ */
+public class TestChunking
+{
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(16 * 1024);
+        server.socket().bind(new InetSocketAddress(address, 0));
+        session = Session.create(false, false, address);
+        MockSessionListener listener = new MockSessionListener("chunkListener");
+        listener.setAcceptHookResult(Boolean.TRUE);
+        session.setListener(listener);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/chunks;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+        awaitEndLines(1);				// the initial bodiless SEND
+        received.reset();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        session.tearDown();
+        peer.close();
+        server.close();
+    }
+
+    /**
+     * Read from the peer socket until the given number of end-lines closing
+     * a message was received.
+     */
+    private void awaitEndLines(int count) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        int found = 0;
+        byte previous = 0, beforePrevious = 0;
+        while (found < count)
+        {
+            in.clear();
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            received.write(in.array(), 0, in.position());
+            for (int i = 0; i < in.position(); i++)
+            {
+                byte current = in.get(i);
+                if (beforePrevious == '$' && previous == '\r' && current == '\n')
+                    found++;
+                beforePrevious = previous;
+                previous = current;
+            }
+        }
+    }
+
+    private static byte[] content(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) ('a' + i % 26);
+        return content;
+    }
+
+    @Test
+    public void testBySize() throws Exception
+    {
+        session.setChunkingPolicy(new ChunkingPolicy.BySize(1000));
+        byte[] content = content(4500);
+        session.sendMessage("text/plain", content);
+        awaitEndLines(1);
+
+        String text = received.toString("ISO-8859-1");
+        ArrayList<String> ranges = new ArrayList<String>();
+        int sent = 0;
+        for (int at = text.indexOf("Byte-Range: "); at >= 0;
+                at = text.indexOf("Byte-Range: ", at + 1))
+        {
+            ranges.add(text.substring(at + 12, text.indexOf("\r\n", at)));
+            int start = text.indexOf("\r\n\r\n", at) + 4;
+            int end = text.indexOf("\r\n-------", start);
+            assertEquals(new String(content, sent, end - start,
+                                    TextUtils.latin1),
+                         text.substring(start, end));
+            sent += end - start;
+        }
+        assertEquals("[1-*/4500, 1001-*/4500, 2001-*/4500, 3001-*/4500, " +
+                     "4001-*/4500]", ranges.toString());
+        assertEquals(content.length, sent);
+    }
+
+    @Test
+    public void testInterleaved() throws Exception
+    {
+        session.setChunkingPolicy(new ChunkingPolicy.BySize(64 * 1024));
+        File file = File.createTempFile("chunking", ".txt");
+        file.deleteOnExit();
+        byte[] content = content(64 * 1024);
+        FileOutputStream out = new FileOutputStream(file);
+        for (int i = 0; i < 128; i++)		/* more than the socket buffers */
+            out.write(content);
+        out.close();
+        session.sendMessage("text/plain", file);
+        Thread.sleep(200);				/* the peer does not read yet */
+        session.sendMessage("text/plain",
+                            "small message".getBytes(TextUtils.utf8));
+        awaitEndLines(2);
+
+        String text = received.toString("ISO-8859-1");
+        int small = text.indexOf("small message");
+        assertTrue("Small message not sent", small >= 0);
+        assertTrue("Small message not sent between chunks",
+                   small < text.indexOf("Byte-Range: 8323073-*/8388608"));
+    }
+
+    @Test
+    public void testByCount()
+    {
+        ChunkingPolicy policy = new ChunkingPolicy.ByCount(4, 100);
+
+        assertEquals(250, policy.nextChunkSize(
+                new OutgoingMessage("text/plain", new byte[1000])));
+        assertEquals(100, policy.nextChunkSize(
+                new OutgoingMessage("text/plain", new byte[200])));
+    }
+
+    @Test
+    public void testAdaptive()
+    {
+        ChunkingPolicy.Adaptive policy =
+            new ChunkingPolicy.Adaptive(100, 1000, 64000);
+        OutgoingMessage message =
+            new OutgoingMessage("text/plain", new byte[1000000]);
+
+        assertEquals(1000, policy.nextChunkSize(message));
+        policy.responseReceived(message, 1000, 10000000L);	// 10 ms
+        assertEquals(2000, policy.nextChunkSize(message));
+        for (int i = 0; i < 10; i++)
+            policy.responseReceived(message, 1000, 10000000L);
+        assertEquals(64000, policy.nextChunkSize(message));
+        for (int i = 0; i < 20; i++)
+            policy.responseReceived(message, 64000, 1000000000L);	// 1 s
+        assertTrue(policy.getRoundTripMillis() > 100);
+        assertEquals(1000, policy.nextChunkSize(message));
+    }
+
+    @Test
+    public void testDefaultPerSession() throws Exception
+    {
+        ChunkingPolicy.Adaptive policy =
+            new ChunkingPolicy.Adaptive(100, 1000, 64000);
+        OutgoingMessage message =
+            new OutgoingMessage("text/plain", new byte[1000000]);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        Stack.setChunkingPolicy(policy);
+        try
+        {
+            Session first = Session.create(false, false, address);
+            Session second = Session.create(false, false, address);
+            assertNotSame(policy, first.getChunkingPolicy());
+            assertNotSame(first.getChunkingPolicy(),
+                          second.getChunkingPolicy());
+
+            first.getChunkingPolicy().responseReceived(message, 1000,
+                                                       10000000L);
+            assertEquals(2000, first.getChunkingPolicy()
+                                    .nextChunkSize(message));
+            assertEquals(1000, second.getChunkingPolicy()
+                                    .nextChunkSize(message));
+            assertEquals(1000, policy.nextChunkSize(message));
+            first.tearDown();
+            second.tearDown();
+        }
+        finally
+        {
+            Stack.setChunkingPolicy(ChunkingPolicy.NONE);
+        }
+        Session plain = Session.create(false, false, address);
+        assertSame(ChunkingPolicy.NONE, plain.getChunkingPolicy());
+        plain.tearDown();
+    }
+}
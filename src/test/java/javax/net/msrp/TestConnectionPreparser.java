@@ -6,6 +6,10 @@ package javax.net.msrp;
 import static org.junit.Assert.*;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
 
 import javax.net.msrp.Connection;
 import javax.net.msrp.exceptions.ParseException;
@@ -61,9 +65,54 @@ public class TestConnectionPreparser {
 			"\r\n" +
 			"-------22AR0e31$\r\n";
 
+	String ReceivePipelined =
+			"MSRP a1b2c3d4 SEND\r\n" +
+			"To-Path: javax.net.msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+			"From-Path: javax.net.msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+			"Message-ID: 1335451480454000c296b8d91\r\n" +
+			"Byte-Range: 1-5/5\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"\r\n" +
+			"hello\r\n" +
+			"-------a1b2c3d4$\r\n" +
+			"MSRP e5f6g7h8 REPORT\r\n" +
+			"To-Path: javax.net.msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+			"From-Path: javax.net.msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+			"Message-ID: 1335451480454000c296b8d92\r\n" +
+			"Byte-Range: 1-5/5\r\n" +
+			"Status: 000 200 OK\r\n" +
+			"-------e5f6g7h8$\r\n" +
+			"MSRP i9j0k1l2 SEND\r\n" +
+			"To-Path: javax.net.msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+			"From-Path: javax.net.msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+			"Message-ID: 1335451480454000c296b8d93\r\n" +
+			"Byte-Range: 1-0/0\r\n" +
+			"-------i9j0k1l2$\r\n" +
+			"MSRP m3n4o5p6 SEND\r\n" +
+			"To-Path: javax.net.msrp://192.168.52.46:12596/jm10r107;tcp\r\n" +
+			"From-Path: javax.net.msrp://192.168.51.191:1356/riTC090J;tcp\r\n" +
+			"Message-ID: 1335451480454000c296b8d94\r\n" +
+			"Byte-Range: 1-14/14\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"\r\n" +
+			"line\r\n\r\n-----\r\n" +
+			"\r\n" +
+			"-------m3n4o5p6$\r\n";
+
+	String[] PipelinedTids = { "a1b2c3d4", "e5f6g7h8", "i9j0k1l2", "m3n4o5p6" };
+
+	/** The transactions the connection notified */
+	List<String> received = new ArrayList<String>();
+
 	@Before
 	public void setUp() throws Exception {
 		in = new Connection(InetAddress.getLocalHost());
+		in.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (arg instanceof Transaction)
+					received.add(((Transaction) arg).getTID());
+			}
+		});
 	}
 
 	@After
@@ -96,4 +145,46 @@ public class TestConnectionPreparser {
 			fail(e.getMessage());
 		}
 	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		byte[] inbuffer = ReceivePipelined.getBytes(TextUtils.utf8);
+
+		in.preParser.preParse(inbuffer, inbuffer.length);
+		assertEquals(asList(PipelinedTids, 1), received);
+	}
+
+	@Test
+	public void testPipelinedSplit() throws Exception {
+		byte[] inbuffer = ReceivePipelined.getBytes(TextUtils.utf8);
+
+		for (int split = 1; split < inbuffer.length; split++) {
+			byte[] first = new byte[split];
+			byte[] second = new byte[inbuffer.length - split];
+			System.arraycopy(inbuffer, 0, first, 0, first.length);
+			System.arraycopy(inbuffer, split, second, 0, second.length);
+
+			in.preParser.preParse(first, first.length);
+			in.preParser.preParse(second, second.length);
+			assertEquals("split at " + split,
+					asList(PipelinedTids, split), received);
+		}
+	}
+
+	@Test
+	public void testPipelinedBytewise() throws Exception {
+		byte[] inbuffer = ReceivePipelined.getBytes(TextUtils.utf8);
+
+		for (int i = 0; i < inbuffer.length; i++)
+			in.preParser.preParse(new byte[] { inbuffer[i] }, 1);
+		assertEquals(asList(PipelinedTids, 1), received);
+	}
+
+	private static List<String> asList(String[] tids, int times) {
+		List<String> list = new ArrayList<String>();
+		for (int i = 0; i < times; i++)
+			for (String tid : tids)
+				list.add(tid);
+		return list;
+	}
 }
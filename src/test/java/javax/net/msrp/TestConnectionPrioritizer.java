@@ -0,0 +1,438 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the connection prioritizers, and measures the time a small message
+ * takes on a connection busy with a large transfer of another session (a
+ * {@link Benchmark}).
+ * <P>
+ * The size of the measured transfer is 64 MB, set the msrp.benchmark.megabytes
+ * system property for another.
+ */
+public class TestConnectionPrioritizer
+{
+    private static final byte[] SMALL =
+        "small message".getBytes(TextUtils.usascii);
+
+    private File largeFile = null;
+
+    /** Whether the small message arrived before the end of the large one */
+    private boolean smallFirst;
+
+    private InetAddress address;
+
+    private ArrayList<Session> sessions = new ArrayList<Session>();
+
+    private void createLargeFile(int megabytes) throws IOException
+    {
+        largeFile = File.createTempFile("prioritizer", ".txt");
+        largeFile.deleteOnExit();
+        byte[] content = new byte[1024 * 1024];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + i % 26);
+        FileOutputStream out = new FileOutputStream(largeFile);
+        for (int i = 0; i < megabytes; i++)
+            out.write(content);
+        out.close();
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        address = InetAddress.getByName("127.0.0.1");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (Session session : sessions)
+            session.tearDown();
+        Stack.setConnectionPrioritizer(null);
+        Stack.setMaxSessionsPerConnection(1);
+        if (largeFile != null)
+            largeFile.delete();
+        Benchmark.end();
+    }
+
+    private Session newSession() throws Exception
+    {
+        Session session = Session.create(false, false, address);
+        sessions.add(session);
+        return session;
+    }
+
+    @Test
+    public void testDeficitRoundRobin() throws Exception
+    {
+        DeficitRoundRobin drr = new DeficitRoundRobin(1000);
+        Session a = newSession(), b = newSession();
+        List<Session> both = Arrays.asList(a, b);
+
+        assertSame(a, drr.nextSession(both));
+        drr.accountSentBytes(a, null, 600);
+        assertFalse(drr.shouldSwap(Arrays.asList(b), a, null));
+        drr.accountSentBytes(a, null, 600);
+        assertTrue(drr.shouldSwap(Arrays.asList(b), a, null));
+        assertFalse("Swapped without another session",
+            drr.shouldSwap(Arrays.asList(a), a, null));
+        assertSame(b, drr.nextSession(both));
+        assertSame(a, drr.nextSession(both));
+        assertEquals(1200, drr.getSentBytes(a));
+    }
+
+    @Test
+    public void testWeightedFairQueueing() throws Exception
+    {
+        WeightedFairQueueing wfq = new WeightedFairQueueing(1000);
+        Session a = newSession(), b = newSession(), c = newSession();
+        wfq.setWeight(a, 3);
+        List<Session> both = Arrays.asList(a, b);
+
+        int servedA = 0;
+        for (int i = 0; i < 400; i++)
+        {
+            Session next = wfq.nextSession(both);
+            if (next == a)
+                servedA++;
+            wfq.accountSentBytes(next, null, 1000);
+        }
+        assertEquals(300, servedA, 2);
+
+        /* c, idle so far, does not get the credit of all that time */
+        List<Session> ac = Arrays.asList(a, c);
+        int servedC = 0;
+        for (int i = 0; i < 400; i++)
+        {
+            Session next = wfq.nextSession(ac);
+            if (next == c)
+                servedC++;
+            wfq.accountSentBytes(next, null, 1000);
+        }
+        assertEquals(100, servedC, 3);
+
+        Session busy = wfq.nextSession(ac);
+        wfq.accountSentBytes(busy, null, 10000);
+        Session other = busy == a ? c : a;
+        assertTrue(wfq.shouldSwap(ac, busy, null));
+        assertFalse(wfq.shouldSwap(ac, other, null));
+    }
+
+    @Test
+    public void testStrictPriority() throws Exception
+    {
+        StrictPriority strict = new StrictPriority();
+        Session a = newSession(), b = newSession(), c = newSession();
+        strict.setPriority(b, 5);
+
+        assertSame(a, strict.nextSession(Arrays.asList(a, c)));
+        assertSame(b, strict.nextSession(Arrays.asList(a, b, c)));
+        assertTrue(strict.shouldSwap(Arrays.asList(b), a, null));
+        assertFalse(strict.shouldSwap(Arrays.asList(c), a, null));
+        assertFalse(strict.shouldSwap(Arrays.asList(a), b, null));
+    }
+
+    @Test
+    public void testPerConnection() throws Exception
+    {
+        DeficitRoundRobin drr = new DeficitRoundRobin(1000);
+        ConnectionPrioritizer one = drr.newInstance(), two = drr.newInstance();
+        assertNotSame(one, two);
+        Session a = newSession(), b = newSession(), c = newSession();
+
+        assertSame(a, one.nextSession(Arrays.asList(a, b)));
+        one.accountSentBytes(a, null, 600);
+        assertSame(c, two.nextSession(Arrays.asList(c)));
+        assertFalse("Deficit lost to another connection",
+            one.shouldSwap(Arrays.asList(b), a, null));
+        assertEquals(0, two.getSentBytes(a));
+
+        WeightedFairQueueing wfq = new WeightedFairQueueing();
+        WeightedFairQueueing copy = (WeightedFairQueueing) wfq.newInstance();
+        wfq.setWeight(a, 3);
+        assertEquals(3, copy.getWeight(a));
+        StrictPriority strict = new StrictPriority();
+        StrictPriority strictCopy = (StrictPriority) strict.newInstance();
+        strict.setPriority(b, 5);
+        assertSame(b, strictCopy.nextSession(Arrays.asList(a, b)));
+    }
+
+    @Test
+    public void testTwoConnections() throws Exception
+    {
+        ConnectionPrioritizer drr = new DeficitRoundRobin();
+        Stack.setConnectionPrioritizer(drr);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        try
+        {
+            Session a = newSession(), b = newSession();
+            SocketChannel[] peers = new SocketChannel[2];
+            for (int i = 0; i < 2; i++)
+            {
+                Session session = sessions.get(i);
+                MockSessionListener listener = new MockSessionListener("peer");
+                listener.setAcceptHookResult(Boolean.TRUE);
+                session.setListener(listener);
+                ArrayList<URI> toPath = new ArrayList<URI>();
+                toPath.add(new URI("msrp://127.0.0.1:" +
+                    server.socket().getLocalPort() + "/peer" + i + ";tcp"));
+                session.setToPath(toPath);
+                peers[i] = server.accept();
+                session.sendMessage("text/plain", SMALL);
+            }
+            assertNotSame(a.getConnection(), b.getConnection());
+            for (SocketChannel peer : peers)
+            {
+                awaitEndLines(peer, 2);		/* bodiless SEND, message */
+                peer.close();
+            }
+            ConnectionPrioritizer first =
+                a.getTransactionManager().getPrioritizer();
+            ConnectionPrioritizer second =
+                b.getTransactionManager().getPrioritizer();
+            assertTrue(first instanceof DeficitRoundRobin);
+            assertTrue(second instanceof DeficitRoundRobin);
+            assertNotSame(first, second);
+            assertNotSame(drr, first);
+            assertEquals(0, first.getSentBytes(b));
+            assertEquals(0, second.getSentBytes(a));
+            assertTrue(first.getSentBytes(a) > 0);
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSessionQueues() throws Exception
+    {
+        Stack.setConnectionPrioritizer(new DeficitRoundRobin(100));
+        Stack.setMaxSessionsPerConnection(2);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        try
+        {
+            Session a = newSession(), b = newSession();
+            SocketChannel peer = null;
+            for (int i = 0; i < 2; i++)
+            {
+                Session session = sessions.get(i);
+                MockSessionListener listener = new MockSessionListener("peer");
+                listener.setAcceptHookResult(Boolean.TRUE);
+                session.setListener(listener);
+                ArrayList<URI> toPath = new ArrayList<URI>();
+                toPath.add(new URI("msrp://127.0.0.1:" +
+                    server.socket().getLocalPort() + "/peer" + i + ";tcp"));
+                session.setToPath(toPath);
+                if (peer == null)
+                    peer = server.accept();
+            }
+            assertSame(a.getConnection(), b.getConnection());
+            for (int i = 0; i < 5; i++)
+            {
+                a.sendMessage("text/plain", new byte[1000]);
+                b.sendMessage("text/plain", SMALL);
+            }
+            awaitEndLines(peer, 12);	/* 2 bodiless SENDs, 10 messages */
+            peer.close();
+            assertFalse(a.getTransactionManager().hasDataToSend());
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    /** Read from the peer until it got the given number of end-lines */
+    private static void awaitEndLines(SocketChannel peer, int count)
+        throws IOException
+    {
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        int found = 0;
+        byte previous = 0, beforePrevious = 0;
+        while (found < count)
+        {
+            in.clear();
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            for (int i = 0; i < in.position(); i++)
+            {
+                byte current = in.get(i);
+                if (beforePrevious == '$' && previous == '\r' && current == '\n')
+                    found++;
+                beforePrevious = previous;
+                previous = current;
+            }
+        }
+    }
+
+    @Test
+    public void testSmallMessageFirst() throws Exception
+    {
+        createLargeFile(8);
+        Stack.setConnectionPrioritizer(new DeficitRoundRobin());
+        smallMessageLatency(Stack.getConnectionPrioritizer());
+        assertTrue("Small message sent after the large one", smallFirst);
+    }
+
+    @Test
+    public void testSmallMessageLatency() throws Exception
+    {
+        Benchmark.begin();
+        createLargeFile(Integer.getInteger("msrp.benchmark.megabytes", 64));
+        ConnectionPrioritizer[] prioritizers = {
+            null, new DeficitRoundRobin(), new WeightedFairQueueing(),
+            new StrictPriority()
+        };
+        for (ConnectionPrioritizer prioritizer : prioritizers)
+        {
+            Stack.setConnectionPrioritizer(prioritizer);
+            long latency = smallMessageLatency(prioritizer);
+            System.out.printf(
+                "Small message behind %d MB with %s: %d ms\n",
+                largeFile.length() / (1024 * 1024),
+                prioritizer == null ? "no prioritizer" :
+                    prioritizer.getClass().getSimpleName(),
+                latency / 1000000);
+            for (Session session : sessions)
+                session.tearDown();
+            sessions.clear();
+        }
+    }
+
+    /**
+     * Send the large file on one session and, once it is under way, the
+     * small message on another session of the same connection.
+     * 
+     * @return the nanoseconds from sending the small message to the peer
+     *         receiving it.
+     */
+    private long smallMessageLatency(ConnectionPrioritizer prioritizer)
+        throws Exception
+    {
+        Stack.setMaxSessionsPerConnection(2);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        try
+        {
+            final Session large = newSession(), small = newSession();
+            for (Session session : sessions)
+            {
+                MockSessionListener listener = new MockSessionListener("peer");
+                listener.setAcceptHookResult(Boolean.TRUE);
+                session.setListener(listener);
+            }
+            String peerUri = "msrp://127.0.0.1:" +
+                server.socket().getLocalPort();
+            ArrayList<URI> toPath = new ArrayList<URI>();
+            toPath.add(new URI(peerUri + "/large;tcp"));
+            large.setToPath(toPath);
+            SocketChannel peer = server.accept();
+            toPath.set(0, new URI(peerUri + "/small;tcp"));
+            small.setToPath(toPath);
+            assertSame(large.getConnection(), small.getConnection());
+            if (prioritizer instanceof StrictPriority)
+                ((StrictPriority) prioritizer).setPriority(small, 1);
+
+            large.sendMessage("text/plain", largeFile);
+            final long[] sent = new long[1];
+            Thread sender = new Thread("small sender")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(50);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    synchronized (sent)
+                    {
+                        sent[0] = System.nanoTime();
+                    }
+                    small.sendMessage("text/plain", SMALL);
+                }
+            };
+            sender.start();
+
+            long received = 0;
+            int endLines = 0;
+            byte[] window = new byte[SMALL.length];
+            byte previous = 0, beforePrevious = 0;
+            ByteBuffer in = ByteBuffer.allocate(256 * 1024);
+            while (endLines < 4)		/* 2 bodiless SENDs, 2 messages */
+            {
+                in.clear();
+                if (peer.read(in) < 0)
+                    fail("Connection closed by the stack");
+                for (int i = 0; i < in.position(); i++)
+                {
+                    byte current = in.get(i);
+                    System.arraycopy(window, 1, window, 0, window.length - 1);
+                    window[window.length - 1] = current;
+                    if (received == 0 && current == 'e' &&
+                        Arrays.equals(window, SMALL))
+                    {
+                        received = System.nanoTime();
+                        smallFirst = endLines == 2;
+                    }
+                    if (beforePrevious == '$' && previous == '\r' &&
+                        current == '\n')
+                        endLines++;
+                    beforePrevious = previous;
+                    previous = current;
+                }
+            }
+            sender.join();
+            peer.close();
+            assertTrue("Small message not received", received > 0);
+            synchronized (sent)
+            {
+                return received - sent[0];
+            }
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+}
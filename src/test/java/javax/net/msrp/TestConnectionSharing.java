@@ -0,0 +1,106 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+
+import javax.net.msrp.testutils.MockSessionListener;
+
+import org.junit.*;
+
+/**
+ * Tests sessions to the same peer sharing an outgoing connection.
+ *
+ * @see Stack#setMaxSessionsPerConnection(int)
+ */
+public class TestConnectionSharing extends TestFrame
+{
+    private ArrayList<Session> sessions = new ArrayList<Session>();
+
+    @Before
+    public void setUpSharing()
+    {
+        Stack.setMaxSessionsPerConnection(2);
+    }
+
+    @After
+    public void tearDownSharing()
+    {
+        for (Session session : sessions)
+            session.tearDown();
+        Stack.setMaxSessionsPerConnection(1);
+    }
+
+    /**
+     * Connect a new session to a new receiving session and have it send the
+     * given data.
+     * 
+     * @return the sending session.
+     */
+    private Session sendOnNewSession(byte[] data) throws Exception
+    {
+        Session sender = Session.create(false, false, address);
+        sessions.add(sender);
+        sender.setListener(new MockSessionListener("sender"));
+        Session receiver =
+            Session.create(false, false, sender.getURI(), address);
+        sessions.add(receiver);
+        MockSessionListener receiverListener =
+            new MockSessionListener("receiver");
+        receiver.setListener(receiverListener);
+
+        sender.sendMessage(new OutgoingMessage("plain/text", data));
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(receiver.getURI());
+        sender.setToPath(toPath);
+
+        receiverListener.setDataContainer(new MemoryDataContainer(data.length));
+        receiverListener.setAcceptHookResult(true);
+        receiverListener.triggerReception();
+        assertArrayEquals(data, receiverListener.getReceiveMessage()
+            .getDataContainer().get(0, 0).array());
+        return sender;
+    }
+
+    @Test
+    public void testSessionsShareConnection() throws Exception
+    {
+        byte[] data = new byte[10 * 1024];
+        fillText(data);
+        assertArrayEquals(data, memory2Memory(data, false));
+        Connection connection = sendingSession.getConnection();
+
+        Session second = sendOnNewSession(data);
+        assertSame("Second session did not share the connection",
+            connection, second.getConnection());
+
+        Session third = sendOnNewSession(data);
+        assertNotSame("Connection shared by more than the maximum sessions",
+            connection, third.getConnection());
+
+        second.tearDown();
+        assertFalse("Shared connection closed with one of its sessions",
+            connection.closing);
+
+        Session fourth = sendOnNewSession(data);
+        assertSame("Freed up room not reused",
+            connection, fourth.getConnection());
+    }
+}
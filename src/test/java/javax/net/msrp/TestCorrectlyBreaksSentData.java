@@ -88,10 +88,12 @@ public class TestCorrectlyBreaksSentData extends TestFrame
 
             /*
              * all set, let's assign the message to the sending session and
-             * connect them
+             * connect them. Failure-Report: partial, so that no 200 response
+             * evicts the transactions looked at below.
              */
-            sendingSession.sendMessage(
-            		new OutgoingMessage("plain/text", data));
+            OutgoingMessage message = new OutgoingMessage("plain/text", data);
+            message.setFailureReport(Message.PARTIAL);
+            sendingSession.sendMessage(message);
 
             triggerSendReceive(data);
             /*
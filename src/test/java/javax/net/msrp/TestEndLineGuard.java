@@ -0,0 +1,119 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests guarding outgoing content against its end-line, fed in pieces.
+ *
+ * @see EndLineGuard
+ */
+public class TestEndLineGuard
+{
+    private static byte[] bytes(String data)
+    {
+        return data.getBytes(TextUtils.utf8);
+    }
+
+    /**
+     * @return the offset of the first flag completing an end-line, -1 if none
+     */
+    private static int naive(String content, String tid)
+    {
+        String endLine = "-------" + tid;
+        int i = -1;
+        while ((i = content.indexOf(endLine, i + 1)) >= 0)
+        {
+            int flag = i + endLine.length();
+            if (flag < content.length() && "$+#".indexOf(content.charAt(flag)) >= 0)
+                return flag;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testCutBeforeFlag()
+    {
+        EndLineGuard guard = new EndLineGuard("a786hjs2");
+        byte[] data = bytes("xyz-------a786hjs2$rest");
+        assertEquals(18, guard.scan(data, 0, data.length));
+        data = bytes("xyz-------a786hjs2 -------a786hjs");
+        guard = new EndLineGuard("a786hjs2");
+        assertEquals(data.length, guard.scan(data, 0, data.length));
+        data = bytes("2#");
+        assertEquals("Continued from the previous buffer", 1,
+                     guard.scan(data, 0, data.length));
+    }
+
+    @Test
+    public void testOverlaps()
+    {
+        /* more hyphens, and a tid starting like the end-line continues */
+        EndLineGuard guard = new EndLineGuard("ab-ab");
+        byte[] data = bytes("----------ab-ab-ab$");
+        assertEquals(-1, naive("----------ab-ab-ab", "ab-ab"));
+        assertEquals(data.length, guard.scan(data, 0, data.length));
+
+        guard = new EndLineGuard("a-------a");
+        String content = "-------a-------a-------a+";
+        assertEquals(naive(content, "a-------a"),
+                     guard.scan(bytes(content), 0, content.length()));
+    }
+
+    @Test
+    public void testRandomPieces()
+    {
+        Random random = new Random(4975);
+        String[] tids = { "ab", "a-b", "a+-", "x---y" };
+        String alphabet = "-ab+$#xy";
+        for (int run = 0; run < 5000; run++)
+        {
+            String tid = tids[random.nextInt(tids.length)];
+            StringBuilder content = new StringBuilder();
+            int length = random.nextInt(60);
+            for (int i = 0; i < length; i++)
+                content.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            if (random.nextBoolean())
+                content.insert(random.nextInt(length + 1), "-------" + tid);
+            String body = content.toString();
+            byte[] data = bytes(body);
+
+            EndLineGuard guard = new EndLineGuard(tid);
+            int sent = 0;
+            int cut = -1;
+            while (sent < data.length && cut < 0)
+            {
+                int piece = 1 + random.nextInt(data.length - sent);
+                int sendable = random.nextBoolean() ?
+                    guard.scan(data, sent, piece) :
+                    guard.scan(ByteBuffer.wrap(data, sent, piece).slice());
+                if (sendable < piece)
+                    cut = sent + sendable;
+                sent += sendable;
+            }
+            assertEquals(body + " with " + tid, naive(body, tid), cut);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests finding the end-line of a transaction, also when split over buffers.
+ *
+ * @see EndLineMatcher
+ */
+public class TestEndLineMatcher
+{
+    private static final String TID = "a+786hjs2";
+
+    private static byte[] bytes(String data)
+    {
+        return data.getBytes(TextUtils.utf8);
+    }
+
+    @Test
+    public void testFind()
+    {
+        EndLineMatcher endLine = new EndLineMatcher(TID);
+        byte[] data = bytes("body\r\n-------a+786hjs2+\r\nMSRP");
+        assertEquals(data.length - 4, endLine.find(data, 0, data.length));
+        assertEquals('+', endLine.getFlag());
+        assertEquals(2 + 7 + TID.length() + 3, endLine.length());
+        assertEquals(0, endLine.getPartial());
+    }
+
+    @Test
+    public void testNoMatch()
+    {
+        String[] data = {
+            "body\r\n-------a+786hjs2\r\n",			// no flag
+            "body\r\n-------a+786hjs3$\r\n",		// other tid
+            "body\r\n------a+786hjs2$\r\n",			// 6 dashes
+            "body-------a+786hjs2$\r\n",			// no CRLF
+            "body\r\n-------a+786hjs2$\n",
+            "body\r\n-------a+786hjs2$\r\r\n",
+        };
+        for (String body : data)
+        {
+            EndLineMatcher endLine = new EndLineMatcher(TID);
+            byte[] bytes = bytes(body);
+            assertEquals(body, -1, endLine.find(bytes, 0, bytes.length));
+        }
+    }
+
+    @Test
+    public void testRestartAfterMismatch()
+    {
+        EndLineMatcher endLine = new EndLineMatcher(TID);
+        byte[] data = bytes("\r\r\n---\r\n-------a+786hjs2$\r\r\n-------a+786hjs2#\r\n");
+        assertEquals(data.length, endLine.find(data, 0, data.length));
+        assertEquals('#', endLine.getFlag());
+    }
+
+    @Test
+    public void testSplit()
+    {
+        byte[] data = bytes("some body\r\n-------a+786hjs2$\r\n");
+        for (int split = 0; split <= data.length; split++)
+        {
+            EndLineMatcher endLine = new EndLineMatcher(TID);
+            int found = endLine.find(data, 0, split);
+            if (split < data.length)
+            {
+                assertEquals(-1, found);
+                assertEquals(Math.max(0, split - 9), endLine.getPartial());
+                found = endLine.find(data, split, data.length);
+            }
+            assertEquals("split at " + split, data.length, found);
+            assertEquals(0, endLine.getPartial());
+        }
+    }
+
+    @Test
+    public void testAtLineStart()
+    {
+        EndLineMatcher endLine = new EndLineMatcher(TID);
+        byte[] data = bytes("-------a+786hjs2$\r\n");
+        assertEquals(-1, endLine.find(data, 0, data.length));
+        endLine.resetAtLineStart();
+        assertEquals(0, endLine.getPartial());
+        assertEquals(data.length, endLine.find(data, 0, data.length));
+
+        endLine.resetAtLineStart();
+        data = bytes("x-------a+786hjs2$\r\n");
+        assertEquals(-1, endLine.find(data, 0, data.length));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.msrp.exceptions.SendQueueFullException;
+import javax.net.msrp.testutils.MockSessionListener;
+
+import org.junit.*;
+
+/**
+ * Tests the watermarks on the send queues against a (raw socket) peer that
+ * only reads when told to.
+ *
+ * @see Watermarks
+ * @see OverflowPolicy
+ */
+public class TestFlowControl
+{
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    /** Give up filling the queue after this many messages. */
+    private static final int MAX_MESSAGES = 1000;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private DrainListener drainListener = new DrainListener();
+
+    private byte[] content = new byte[MESSAGE_SIZE];
+
+    private class DrainListener implements SendQueueListener
+    {
+        private volatile CountDownLatch drained;
+
+        @Override
+        public void sendQueueDrained(Session session)
+        {
+            drained.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(16 * 1024);
+        server.socket().bind(new InetSocketAddress(address, 0));
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + i % 26);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (session != null)
+            session.tearDown();
+        if (peer != null)
+            peer.close();
+        server.close();
+        Stack.setConnectionWatermarks(Watermarks.NONE);
+    }
+
+    /**
+     * Create the session, after which its connection has the watermarks set
+     * in the stack.
+     */
+    private void createSession() throws Exception
+    {
+        session = Session.create(false, false,
+                InetAddress.getByName("127.0.0.1"));
+        session.setListener(new MockSessionListener("flowListener"));
+        session.setSendQueueListener(drainListener);
+        session.setOverflowPolicy(OverflowPolicy.ASYNC);
+    }
+
+    private void connect() throws Exception
+    {
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/flow;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+    }
+
+    /**
+     * Have the peer read (and discard) everything sent from now on.
+     */
+    private void drainPeer()
+    {
+        Thread reader = new Thread("peer reader") {
+            @Override
+            public void run()
+            {
+                ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+                try
+                {
+                    do
+                        in.clear();
+                    while (peer.read(in) >= 0);
+                }
+                catch (IOException e) { /* closed */ }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send until the queue stays full, the socket buffers absorb quite some
+     * data before that.
+     */
+    private void fillQueue() throws InterruptedException
+    {
+        drainListener.drained = new CountDownLatch(1);
+        for (int i = 0; i < MAX_MESSAGES; i++)
+        {
+            session.sendMessage("text/plain", content);
+            if (!session.isWritable())
+            {
+                Thread.sleep(100);
+                if (!session.isWritable())
+                    return;
+                drainListener.drained = new CountDownLatch(1);
+            }
+        }
+        fail("Send queue never filled up");
+    }
+
+    @Test
+    public void testFailWhenFull() throws Exception
+    {
+        createSession();
+        session.setWatermarks(
+                new Watermarks(MESSAGE_SIZE, 4 * MESSAGE_SIZE));
+        connect();
+        fillQueue();
+        session.setOverflowPolicy(OverflowPolicy.FAIL);
+        try
+        {
+            session.sendMessage("text/plain", content);
+            fail("Message accepted on a full queue");
+        }
+        catch (SendQueueFullException e) { /* expected */ }
+
+        drainPeer();
+        assertTrue("Queue did not drain",
+                drainListener.drained.await(10, TimeUnit.SECONDS));
+        assertTrue(session.isWritable());
+        session.sendMessage("text/plain", content);
+    }
+
+    @Test
+    public void testBlockUntilDrained() throws Exception
+    {
+        createSession();
+        session.setWatermarks(new Watermarks(0, 0, 2, 8));
+        connect();
+        fillQueue();
+
+        session.setOverflowPolicy(OverflowPolicy.BLOCK);
+        final CountDownLatch sent = new CountDownLatch(1);
+        Thread sender = new Thread("blocked sender") {
+            @Override
+            public void run()
+            {
+                session.sendMessage("text/plain", content);
+                sent.countDown();
+            }
+        };
+        sender.start();
+        assertFalse("Sending did not block",
+                sent.await(500, TimeUnit.MILLISECONDS));
+
+        drainPeer();
+        assertTrue("Sender not released",
+                sent.await(10, TimeUnit.SECONDS));
+        assertTrue(drainListener.drained.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBlockInterrupted() throws Exception
+    {
+        createSession();
+        session.setWatermarks(new Watermarks(0, 0, 2, 8));
+        connect();
+        fillQueue();
+
+        session.setOverflowPolicy(OverflowPolicy.BLOCK);
+        final OutgoingMessage message =
+            new OutgoingMessage("text/plain", content);
+        final SendQueueFullException[] refused = new SendQueueFullException[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread sender = new Thread("interrupted sender") {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    session.sendMessage(message);
+                }
+                catch (SendQueueFullException e)
+                {
+                    refused[0] = e;
+                    interrupted[0] = isInterrupted();
+                }
+            }
+        };
+        sender.start();
+        Thread.sleep(200);
+        sender.interrupt();
+        sender.join(10000);
+
+        assertNotNull("Message queued when interrupted", refused[0]);
+        assertTrue(refused[0].getCause() instanceof InterruptedException);
+        assertTrue("Interrupt not kept", interrupted[0]);
+        assertFalse(message.sessionQueued);
+        assertFalse(session.isWritable());
+    }
+
+    @Test
+    public void testConnectionWatermarks() throws Exception
+    {
+        Stack.setConnectionWatermarks(
+                new Watermarks(MESSAGE_SIZE, 4 * MESSAGE_SIZE));
+        createSession();
+        connect();
+        fillQueue();
+        assertEquals(Watermarks.NONE, session.getWatermarks());
+
+        /* queued anyway */
+        session.sendMessage("text/plain", content);
+        assertFalse(session.isWritable());
+
+        drainPeer();
+        assertTrue("Connection did not drain",
+                drainListener.drained.await(10, TimeUnit.SECONDS));
+        assertTrue(session.isWritable());
+    }
+
+    @Test
+    public void testUnbounded() throws Exception
+    {
+        createSession();
+        connect();
+        for (int i = 0; i < 8; i++)
+        {
+            session.sendMessage("text/plain", content);
+            assertTrue(session.isWritable());
+        }
+    }
+}
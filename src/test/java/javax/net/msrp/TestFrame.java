@@ -132,6 +132,14 @@ public abstract class TestFrame {
 	    }
 	}
 
+	/**
+	 * @return true to set up secure (msrps) sessions.
+	 */
+	boolean isSecure()
+	{
+		return false;
+	}
+
 	@Before
     public void setUpConnection()
     {
@@ -157,9 +165,9 @@ public abstract class TestFrame {
              */
             String addressString = testProperties.getProperty("address");
             address = InetAddress.getByName(addressString);
-            sendingSession = new Session(false, false, address);
+            sendingSession = new Session(isSecure(), false, address);
             receivingSession =
-                new Session(false, false, sendingSession.getURI(), address);
+                new Session(isSecure(), false, sendingSession.getURI(), address);
 
             sendingSession.setListener(sendingSessionListener);
             receivingSession.setListener(receivingSessionListener);
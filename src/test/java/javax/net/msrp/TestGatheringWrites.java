@@ -0,0 +1,99 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the outgoing data written by gathering writes instead of being copied
+ * into the output array of the connection. Messages kept in files are then
+ * transferred from the file to the socket.
+ *
+ * @see Stack#setGatheringWrites(boolean)
+ * @see TestStackModes#GATHERING_WRITES
+ */
+public class TestGatheringWrites extends TestFrame
+{
+    @Before
+    public void setUpGatheringWrites()
+    {
+        Stack.setGatheringWrites(true);
+    }
+
+    @After
+    public void tearDownGatheringWrites()
+    {
+        Stack.setGatheringWrites(false);
+    }
+
+    /**
+     * An end-line in the content of a transferred file still breaks the
+     * message into two SEND transactions.
+     */
+    @Test
+    public void testBreakingOfFileTransaction() throws Exception
+    {
+        byte[] data = new byte[300 * 1024];
+        fillTempFile(data, false);
+
+        byte[] tid = new byte[8];
+        TextUtils.generateRandom(tid);
+        String tidString = new String(tid, TextUtils.utf8);
+        TransactionManager txManager =
+            sendingSession.getConnection().getTransactionManager();
+        txManager.testing = true;
+        txManager.presetTID = tidString;
+
+        byte[] phonyEndLine =
+            ("-------" + tidString + "$").getBytes(TextUtils.utf8);
+        System.arraycopy(phonyEndLine, 0, data, 100 * 1024,
+                         phonyEndLine.length);
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        file.seek(100 * 1024);
+        file.write(phonyEndLine);
+        file.close();
+
+        /* Failure-Report: partial, no 200 response evicts the SENDs */
+        outMessage = new OutgoingMessage("plain/text", tempFile);
+        outMessage.setFailureReport(Message.PARTIAL);
+        sendingSession.sendMessage(outMessage);
+        triggerSendReceive((byte[]) null);
+        assertArrayEquals(data, receivingSessionListener.getReceiveMessage()
+                                    .getDataContainer().get(0, 0).array());
+
+        int sendTransactions = 0;
+        boolean foundFirstSendTransaction = false;
+        for (Transaction transaction : txManager.getExistingTransactions())
+        {
+            if (transaction.getTransactionType() != TransactionType.SEND ||
+                transaction.getMessage() != outMessage)
+                continue;
+            sendTransactions++;
+            if (transaction.getTID().equals(tidString))
+                foundFirstSendTransaction = true;
+        }
+        assertTrue("first transaction not found!", foundFirstSendTransaction);
+        assertEquals("message not sent in two transactions", 2,
+                     sendTransactions);
+    }
+}
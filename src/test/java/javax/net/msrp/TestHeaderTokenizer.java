@@ -0,0 +1,232 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import javax.net.msrp.exceptions.*;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the header lines recognised in a single pass and measures the time
+ * spent on the headers of typical SEND and REPORT requests (a
+ * {@link Benchmark}).
+ *
+ * @see HeaderTokenizer
+ */
+public class TestHeaderTokenizer
+{
+    static final String sendHeaders =
+        "To-Path: msrp://192.168.2.3:1234/asd23asd;tcp\r\n" +
+        "From-Path: msrp://192.168.2.3:1324/123asd;tcp\r\n" +
+        "Message-ID: 87652491\r\n" +
+        "Success-Report: yes\r\n" +
+        "Failure-Report: partial\r\n" +
+        "Byte-Range: 1-25/25\r\n" +
+        "Content-Type: text/plain; charset=utf-8\r\n\r\n";
+
+    static final String reportHeaders =
+        "To-Path: msrp://192.168.2.3:1324/123asd;tcp\r\n" +
+        "From-Path: msrp://192.168.2.3:1234/asd23asd;tcp\r\n" +
+        "Message-ID: 87652491\r\n" +
+        "Byte-Range: 1-25/25\r\n" +
+        "Status: 000 200 OK\r\n";
+
+    static final int RUNS = 200000;
+
+    private TransactionManager manager = new TransactionManager();
+
+    private static HeaderTokenizer tokenize(String headers)
+    {
+        byte[] data = headers.getBytes(TextUtils.utf8);
+        return new HeaderTokenizer(data, 0, data.length);
+    }
+
+    private Transaction parse(TransactionType type, String headers)
+        throws Exception
+    {
+        Transaction tx =
+            new Transaction("d93kswow", type, manager, Direction.IN);
+        byte[] data = headers.getBytes(TextUtils.utf8);
+        tx.parse(data, 0, data.length, false);
+        tx.signalizeEnd('$');
+        return tx;
+    }
+
+    @Test
+    public void testTokenizer() throws InvalidHeaderException
+    {
+        HeaderTokenizer header = tokenize(sendHeaders);
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.TO_PATH, header.getName());
+        assertEquals("msrp://192.168.2.3:1234/asd23asd;tcp", header.getValue());
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.FROM_PATH, header.getName());
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.MESSAGE_ID, header.getName());
+        assertEquals("87652491", header.getMessageId());
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.SUCCESS_REPORT, header.getName());
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.FAILURE_REPORT, header.getName());
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.BYTE_RANGE, header.getName());
+        long[] range = new long[3];
+        assertTrue(header.getByteRange(range, -2));
+        assertArrayEquals(new long[] { 1, 25, 25 }, range);
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.CONTENT_TYPE, header.getName());
+        assertEquals("text/plain", header.getContentType());
+        assertFalse("Empty line ends the headers", header.next());
+    }
+
+    @Test
+    public void testNames() throws InvalidHeaderException
+    {
+        HeaderTokenizer header = tokenize(
+            "message-id: abcd\r\nX-Message-ID: abcd\r\nMessage-ID:abcd\r\n");
+        assertTrue(header.next());
+        assertEquals(HeaderTokenizer.Name.MESSAGE_ID, header.getName());
+        assertTrue(header.next());
+        assertNull(header.getName());
+        assertEquals("X-Message-ID: abcd", header.getValue());
+        assertTrue(header.next());
+        assertNull(header.getName());
+        assertFalse(header.next());
+    }
+
+    @Test
+    public void testValues() throws InvalidHeaderException
+    {
+        HeaderTokenizer header = tokenize(
+            "Byte-Range: 1-*/*\r\n" +
+            "Byte-Range: 1-2/3 \r\n" +
+            "Byte-Range: *-2/3\r\n" +
+            "Message-ID: abc\r\n" +
+            "Message-ID: a+b%c=d.e-f\r\n" +
+            "Message-ID: -abcd\r\n" +
+            "Status: 000 200\r\n" +
+            "Status: 000 20\r\n" +
+            "Use-Nickname:   \"Hairy Scary\" x\r\n" +
+            "Content-Type: text\r\n" +
+            "To-Path: a  b c\r\n");
+        long[] range = new long[3];
+        header.next();
+        assertTrue(header.getByteRange(range, -2));
+        assertArrayEquals(new long[] { 1, -2, -2 }, range);
+        header.next();
+        assertFalse(header.getByteRange(range, -2));
+        header.next();
+        assertFalse(header.getByteRange(range, -2));
+        header.next();
+        assertNull(header.getMessageId());
+        header.next();
+        assertEquals("a+b%c=d.e-f", header.getMessageId());
+        header.next();
+        assertNull(header.getMessageId());
+        header.next();
+        assertEquals(200, header.getStatus().getStatusCode());
+        header.next();
+        assertNull(header.getStatus());
+        header.next();
+        assertEquals("Hairy Scary", header.getNickname());
+        header.next();
+        assertNull(header.getContentType());
+        header.next();
+        PathHeader path = header.getPath();
+        assertEquals(3, path.size());
+        assertEquals("a", path.get(0));
+        assertEquals("b", path.get(1));
+        assertEquals("c", path.get(2));
+    }
+
+    @Test
+    public void testInvalidLines()
+    {
+        String[] invalid = {
+            "To-Path: msrp://h\u00e9llo\r\n",
+            "To-Path: msrp://hello\nFrom-Path: x\r\n",
+            "To-Path: msrp://hello"
+        };
+        for (String headers : invalid)
+        {
+            try
+            {
+                HeaderTokenizer header = tokenize(headers);
+                while (header.next())
+                    ;
+                fail("Accepted " + headers);
+            }
+            catch (InvalidHeaderException e)
+            {
+                /* expected */;
+            }
+        }
+    }
+
+    @Test
+    public void testParsingReport() throws Exception
+    {
+        Transaction tx = parse(TransactionType.REPORT, reportHeaders);
+        assertTrue(tx.isValid());
+        assertEquals("87652491", tx.getMessageID());
+        assertEquals(200, tx.getStatusHeader().getStatusCode());
+        assertEquals(URI.create("msrp://192.168.2.3:1324/123asd;tcp"),
+                    tx.getToPath()[0]);
+    }
+
+    @Test
+    public void testMissingMessageID() throws Exception
+    {
+        Transaction tx = parse(TransactionType.REPORT,
+                        reportHeaders.replace("Message-ID: 87652491\r\n", ""));
+        assertFalse(tx.isValid());
+    }
+
+    @Test
+    public void testParsingSpeed() throws Exception
+    {
+        Benchmark.begin();
+        try
+        {
+            for (int i = 0; i < RUNS; i++)		// warm up
+            {
+                parse(TransactionType.SEND, sendHeaders);
+                parse(TransactionType.REPORT, reportHeaders);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++)
+                parse(TransactionType.SEND, sendHeaders);
+            long send = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++)
+                parse(TransactionType.REPORT, reportHeaders);
+            long report = System.nanoTime() - start;
+            System.out.println(String.format(
+                "header parsing: SEND %d ns, REPORT %d ns per transaction",
+                send / RUNS, report / RUNS));
+        }
+        finally
+        {
+            Benchmark.end();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+
+/**
+ * Tests sending and receiving messages kept in a
+ * {@link MappedFileDataContainer}.
+ *
+ * @see Stack#setMappedFileBytes(long)
+ */
+public class TestMappedFileDataContainer extends TestFrame
+{
+    @Before
+    public void setUpMappedFiles()
+    {
+        Stack.setMappedFileBytes(1);
+    }
+
+    @After
+    public void tearDownMappedFiles()
+    {
+        Stack.setMappedFileBytes(0);
+        Stack.setGatheringWrites(false);
+    }
+
+    private byte[] mapped2Mapped(int size, boolean presized)
+        throws Exception
+    {
+        byte[] data = new byte[size];
+        fillTempFile(data, true);
+
+        outMessage = new OutgoingMessage("plain/text", tempFile);
+        assertTrue("File not sent through a mapped container",
+            outMessage.getDataContainer() instanceof MappedFileDataContainer);
+        sendingSession.sendMessage(outMessage);
+
+        receivingTempFile = File.createTempFile("recv", null);
+        MappedFileDataContainer received = presized ?
+            new MappedFileDataContainer(receivingTempFile, size) :
+            new MappedFileDataContainer(receivingTempFile);
+        triggerSendReceive(received);
+
+        assertEquals(size, receivingTempFile.length());
+        assertArrayEquals(data, received.get(0, 0).array());
+        return data;
+    }
+
+    @Test
+    public void test5MbMapped2PresizedMapped() throws Exception
+    {
+        mapped2Mapped(5 * 1024 * 1024, true);
+    }
+
+    @Test
+    public void test1MbMapped2Mapped() throws Exception
+    {
+        mapped2Mapped(1024 * 1024, false);
+    }
+
+    /**
+     * Gathering writes send views on the mapping.
+     */
+    @Test
+    public void test5MbMapped2MappedGathering() throws Exception
+    {
+        Stack.setGatheringWrites(true);
+        mapped2Mapped(5 * 1024 * 1024, true);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException, Exception
+    {
+        MappedFileDataContainer container =
+            new MappedFileDataContainer(tempFile, 4);
+        container.put(0, new byte[] { 1, 2 });
+        container.put((byte) 3);
+        container.put(3, (byte) 4);
+        container.put(4, new byte[] { 5, 6 });	// beyond the set size
+        assertEquals(6, container.size());
+        container.put(6, ByteBuffer.wrap(new byte[] { 0, 7, 8 }, 1, 2));
+        assertEquals(8, container.size());
+
+        byte[] read = new byte[4];
+        assertEquals(4, container.get(read, 0));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, read);
+        container.rewindRead(2);
+        assertEquals(3, container.getSlice(10).get());
+        assertFalse(container.hasDataToRead());
+        container.dispose();
+        assertEquals(8, tempFile.length());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Test the received paths and the URIs made of them, and compare the time to
+ * find the session-id with that of parsing the URI (a {@link Benchmark}).
+ */
+public class TestPathHeader
+{
+    private static final String RELAY =
+        "msrp://relay.example.com:2855/kjh2s;tcp";
+
+    private static final String LOCAL =
+        "msrp://192.168.52.46:12596/jm10r107;tcp";
+
+    private static PathHeader path(String value)
+    {
+        byte[] bytes = ("To-Path: " + value).getBytes(TextUtils.latin1);
+        return new PathHeader(bytes, 9, bytes.length);
+    }
+
+    @Test
+    public void testUris() throws Exception
+    {
+        PathHeader path = path(LOCAL + "  " + RELAY);
+
+        assertEquals(2, path.size());
+        assertEquals(LOCAL, path.get(0));
+        assertEquals(RELAY, path.get(1));
+        assertArrayEquals(new URI[] { new URI(LOCAL), new URI(RELAY) },
+            path.getUris());
+        assertEquals(LOCAL + "  " + RELAY, path.toString());
+    }
+
+    @Test
+    public void testSessionId()
+    {
+        ByteSlice id = path(LOCAL + " " + RELAY).getSessionId();
+
+        assertEquals("jm10r107", id.toString());
+        assertEquals(PathHeader.getSessionId(URI.create(LOCAL)), id);
+        assertFalse(id.equals(PathHeader.getSessionId(URI.create(RELAY))));
+        assertNull(path("msrp://192.168.52.46:12596;tcp").getSessionId());
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        PathHeader path = path(LOCAL + " msrp://[bad;tcp");
+        try
+        {
+            path.validate();
+            fail("invalid URI accepted");
+        }
+        catch (URISyntaxException e)
+        {
+            /* expected */;
+        }
+        assertNull(path.getUris());
+    }
+
+    @Test
+    public void testWellFormed()
+    {
+        assertTrue(path(LOCAL + " " + RELAY).isWellFormed());
+        assertTrue(path("msrps://relay.example.com:2855/kjh2s;tcp")
+            .isWellFormed());
+        /* only parsed when used */
+        assertTrue(path(LOCAL + " msrp://[bad;tcp").isWellFormed());
+        assertFalse(path("http://192.168.52.46:12596/jm10r107;tcp")
+            .isWellFormed());
+        assertFalse(path("msrp:192.168.52.46:12596/jm10r107;tcp")
+            .isWellFormed());
+        assertFalse(path(LOCAL + " msrp://192.168.52.46:12596/jm10r107")
+            .isWellFormed());
+        assertFalse(path("").isWellFormed());
+    }
+
+    @Test
+    public void testCached() throws Exception
+    {
+        URI first = path(LOCAL).getUri(0);
+
+        assertSame(first, path(RELAY + " " + LOCAL).getUri(1));
+        /* enough to fill every stripe of the cache */
+        for (int i = 0; i < 4 * UriCache.CAPACITY; i++)
+            path("msrp://10.0.0.1:2855/s" + i + ";tcp").getUri(0);
+        assertEquals(UriCache.CAPACITY, UriCache.size());
+        assertNotSame(first, path(LOCAL).getUri(0));
+    }
+
+    @Test
+    public void testSpeed() throws Exception
+    {
+        Benchmark.assumeEnabled();
+        byte[] bytes = ("To-Path: " + LOCAL).getBytes(TextUtils.latin1);
+        int rounds = 100000;
+
+        for (int warm = 0; warm < 2; warm++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                URI.create(new String(bytes, 9, bytes.length - 9,
+                                    TextUtils.latin1));
+            long parsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++)
+                new PathHeader(bytes, 9, bytes.length).getSessionId();
+            long sliced = System.nanoTime() - start;
+            if (warm == 1)
+                System.out.printf(
+                    "To-Path: URI %d ns, session-id bytes %d ns\n",
+                    parsed / rounds, sliced / rounds);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import javax.net.msrp.events.MessageAbortedEvent;
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the SENDs to a (raw socket) peer that never responds: they are
+ * evicted at the response timeout, their messages aborted when a response was
+ * asked for. Those answered are evicted as their response arrives.
+ */
+public class TestResponseTimeout
+{
+    private static final int TIMEOUT = 300;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private MockSessionListener listener;
+
+    /** What the peer received so far */
+    private StringBuilder received = new StringBuilder();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Stack.setResponseTimeout(TIMEOUT);
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        session = Session.create(false, false, address);
+        listener = new MockSessionListener("timeoutListener");
+        listener.setAcceptHookResult(Boolean.TRUE);
+        session.setListener(listener);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/timeout;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Stack.setResponseTimeout(30000);
+        session.tearDown();
+        peer.close();
+        server.close();
+    }
+
+    /**
+     * Read from the peer socket until the given number of SEND end-lines was
+     * received.
+     */
+    private void awaitEndLines(int count) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        int found = 0;
+        byte previous = 0, beforePrevious = 0;
+        while (found < count)
+        {
+            in.clear();
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            received.append(new String(in.array(), 0, in.position(),
+                                       TextUtils.latin1));
+            for (int i = 0; i < in.position(); i++)
+            {
+                byte current = in.get(i);
+                if (beforePrevious == '$' && previous == '\r' && current == '\n')
+                    found++;
+                beforePrevious = previous;
+                previous = current;
+            }
+        }
+    }
+
+    private boolean isExisting(Message message)
+    {
+        for (Transaction tx :
+                session.getTransactionManager().getExistingTransactions())
+            if (tx.getMessage() == message)
+                return true;
+        return false;
+    }
+
+    private MessageAbortedEvent abortEventOf(Message message)
+    {
+        synchronized (listener.messageAbortEvents)
+        {
+            for (MessageAbortedEvent event : listener.messageAbortEvents)
+                if (event.getMessage() == message)
+                    return event;
+        }
+        return null;
+    }
+
+    @Test
+    public void testAborted() throws Exception
+    {
+        awaitEndLines(1);				// the initial bodiless SEND
+        OutgoingMessage message = session.sendMessage("text/plain",
+                "never answered".getBytes(TextUtils.utf8));
+        awaitEndLines(1);
+        assertTrue("SEND not kept for its response", isExisting(message));
+
+        MessageAbortedEvent event = null;
+        for (int i = 0; i < 100 && event == null; i++)
+        {
+            Thread.sleep(50);
+            event = abortEventOf(message);
+        }
+        assertNotNull("Message not aborted", event);
+        assertEquals(ResponseCode.RC408, event.getReason());
+        assertTrue(message.wasAborted());
+        assertFalse("SEND not evicted", isExisting(message));
+    }
+
+    /** Answer the last SEND received with a 200 response */
+    private void answerLastSend() throws IOException
+    {
+        String text = received.toString();
+        int start = text.lastIndexOf("MSRP ");
+        String tid = text.substring(start + 5, text.indexOf(' ', start + 5));
+        String toPath = header(text, start, "To-Path");
+        String fromPath = header(text, start, "From-Path");
+        String response = "MSRP " + tid + " 200 OK\r\nTo-Path: " + fromPath +
+            "\r\nFrom-Path: " + toPath + "\r\n-------" + tid + "$\r\n";
+        peer.write(ByteBuffer.wrap(response.getBytes(TextUtils.usascii)));
+    }
+
+    private static String header(String text, int from, String name)
+    {
+        int start = text.indexOf(name + ": ", from) + name.length() + 2;
+        return text.substring(start, text.indexOf("\r\n", start));
+    }
+
+    @Test
+    public void testAnsweredEvicted() throws Exception
+    {
+        Stack.setResponseTimeout(30000);
+        awaitEndLines(1);
+        OutgoingMessage message = session.sendMessage("text/plain",
+                "answered".getBytes(TextUtils.utf8));
+        awaitEndLines(1);
+        assertTrue("SEND not kept for its response", isExisting(message));
+        answerLastSend();
+
+        for (int i = 0; i < 100 && isExisting(message); i++)
+            Thread.sleep(50);
+        assertFalse("SEND not evicted on its response", isExisting(message));
+        assertNull("Message aborted", abortEventOf(message));
+    }
+
+    @Test
+    public void testAnsweredEvictedWithoutTimeout() throws Exception
+    {
+        Stack.setResponseTimeout(0);
+        awaitEndLines(1);
+        OutgoingMessage message = session.sendMessage("text/plain",
+                "answered".getBytes(TextUtils.utf8));
+        awaitEndLines(1);
+        answerLastSend();
+
+        for (int i = 0; i < 100 && isExisting(message); i++)
+            Thread.sleep(50);
+        assertFalse("SEND not evicted on its response", isExisting(message));
+    }
+
+    @Test
+    public void testNoReportEvicted() throws Exception
+    {
+        awaitEndLines(1);
+        OutgoingMessage message = new OutgoingMessage("text/plain",
+                "no report asked".getBytes(TextUtils.utf8));
+        message.setFailureReport(Message.NO);
+        session.sendMessage(message);
+        awaitEndLines(1);
+
+        for (int i = 0; i < 100 && isExisting(message); i++)
+            Thread.sleep(50);
+        assertFalse("SEND not evicted", isExisting(message));
+        assertNull("Message aborted", abortEventOf(message));
+        assertFalse(message.wasAborted());
+    }
+}
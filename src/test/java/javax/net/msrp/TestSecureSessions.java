@@ -0,0 +1,137 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the ASCII message tests over secure (msrps) sessions, with a thread
+ * pair per connection and with the connections serviced by the
+ * {@link Reactor}, so on non-blocking channels.
+ * <P>
+ * Both ends use the self-signed test key in <tt>tls.p12</tt>, which they
+ * also trust.
+ *
+ * @see Stack#setSSLContext(SSLContext)
+ */
+@RunWith(Parameterized.class)
+public class TestSecureSessions extends TestSendingASCIIMessages
+{
+    static final char[] PASSWORD = "msrptest".toCharArray();
+
+    private final TestStackModes.Mode mode;
+
+    public TestSecureSessions(TestStackModes.Mode mode)
+    {
+        this.mode = mode;
+    }
+
+    @Parameters
+    public static Collection<Object[]> modes()
+    {
+        return Arrays.asList(new Object[][] {
+            { TestStackModes.THREADS }, { TestStackModes.REACTOR }
+        });
+    }
+
+    /**
+     * @return a TLS context with the test key, trusting only that key.
+     */
+    static SSLContext testContext() throws Exception
+    {
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        InputStream in = TestSecureSessions.class.getResourceAsStream("/tls.p12");
+        try
+        {
+            keys.load(in, PASSWORD);
+        }
+        finally
+        {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keys);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    @BeforeClass
+    public static void setUpContext() throws Exception
+    {
+        Stack.setSSLContext(testContext());
+    }
+
+    @AfterClass
+    public static void tearDownContext()
+    {
+        Stack.setSSLContext(null);
+    }
+
+    @Before
+    public void setUpMode()
+    {
+        mode.set();
+    }
+
+    @After
+    public void tearDownMode()
+    {
+        mode.reset();
+    }
+
+    @Override
+    boolean isSecure()
+    {
+        return true;
+    }
+
+    @Test
+    public void testSessionsAreSecure()
+    {
+        assertEquals("msrps", sendingSession.getURI().getScheme());
+        assertEquals("msrps", receivingSession.getURI().getScheme());
+
+        byte[] data = new byte[1024];
+        fillText(data);
+        assertArrayEquals(data, memory2Memory(data, false));
+
+        SecureChannel channel =
+            sendingSession.getConnection().getSecureChannel();
+        assertNotNull("Connection not secured", channel);
+        assertTrue(channel.isHandshakeDone());
+        assertTrue(channel.getSession().getProtocol().startsWith("TLS"));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests the send queue of a connection to a (raw socket) peer: messages
+ * queued from many threads at once and responses sent before the SEND in
+ * progress.
+ */
+public class TestSendQueue
+{
+    private static final int THREADS = 8;
+
+    private static final int MESSAGES = 250;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(16 * 1024);
+        server.socket().bind(new InetSocketAddress(address, 0));
+        session = Session.create(false, false, address);
+        MockSessionListener listener = new MockSessionListener("queueListener");
+        listener.setAcceptHookResult(Boolean.TRUE);
+        session.setListener(listener);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/queue;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        session.tearDown();
+        peer.close();
+        server.close();
+    }
+
+    /**
+     * Read from the peer socket until the given number of end-lines (with
+     * the given continuation flag) was received.
+     */
+    private void awaitEndLines(char flag, int count) throws IOException
+    {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        int found = 0;
+        byte previous = 0, beforePrevious = 0;
+        while (found < count)
+        {
+            in.clear();
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            received.write(in.array(), 0, in.position());
+            for (int i = 0; i < in.position(); i++)
+            {
+                byte current = in.get(i);
+                if (beforePrevious == flag && previous == '\r' && current == '\n')
+                    found++;
+                beforePrevious = previous;
+                previous = current;
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentSenders() throws Exception
+    {
+        awaitEndLines('$', 1);			// the initial bodiless SEND
+        Thread[] senders = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            final byte[] content =
+                ("chat message from sender " + i).getBytes(TextUtils.utf8);
+            senders[i] = new Thread("sender " + i) {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < MESSAGES; j++)
+                        session.sendMessage("text/plain", content);
+                }
+            };
+            senders[i].start();
+        }
+        awaitEndLines('$', THREADS * MESSAGES);
+        for (Thread sender : senders)
+            sender.join();
+
+        String text = received.toString("ISO-8859-1");
+        for (int i = 0; i < THREADS; i++)
+        {
+            String content = "chat message from sender " + i;
+            int count = 0;
+            for (int at = text.indexOf(content); at >= 0;
+                    at = text.indexOf(content, at + 1))
+                count++;
+            assertEquals(content, MESSAGES, count);
+        }
+    }
+
+    @Test
+    public void testResponseBeforeSend() throws Exception
+    {
+        awaitEndLines('$', 1);
+        File file = File.createTempFile("sendqueue", ".txt");
+        file.deleteOnExit();
+        byte[] content = new byte[64 * 1024];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + i % 26);
+        FileOutputStream out = new FileOutputStream(file);
+        for (int i = 0; i < 128; i++)		/* more than the socket buffers */
+            out.write(content);
+        out.close();
+        session.sendMessage("text/plain", file);
+        Thread.sleep(200);				/* the peer does not read yet */
+
+        String send = "MSRP peerTx01 SEND\r\n" +
+            "To-Path: " + session.getURI() + "\r\n" +
+            "From-Path: msrp://127.0.0.1:" + server.socket().getLocalPort() +
+                "/queue;tcp\r\n" +
+            "Message-ID: peerMessage01\r\n" +
+            "Byte-Range: 1-2/2\r\n" +
+            "Content-Type: text/plain\r\n\r\n" +
+            "hi\r\n" +
+            "-------peerTx01$\r\n";
+        peer.write(ByteBuffer.wrap(send.getBytes(TextUtils.usascii)));
+        Thread.sleep(200);
+
+        /* the response, the rest of the interrupted SEND */
+        awaitEndLines('$', 2);
+        String text = received.toString("ISO-8859-1");
+        int response = text.indexOf("MSRP peerTx01 200");
+        assertTrue("No response sent", response >= 0);
+        assertTrue("SEND not interrupted",
+                text.lastIndexOf("+\r\n", response) > 0);
+        assertTrue("Rest of the SEND not sent after the response",
+                text.indexOf(" SEND\r\n", response) > 0);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.net.msrp.testutils.MockSessionListener;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the ASCII message tests once for each of the optional modes of the
+ * stack.
+ */
+@RunWith(Parameterized.class)
+public class TestStackModes extends TestSendingASCIIMessages
+{
+    /**
+     * An optional mode of the stack, set for the tests and reset after.
+     */
+    static abstract class Mode
+    {
+        private final String name;
+
+        Mode(String name)
+        {
+            this.name = name;
+        }
+
+        abstract void set();
+
+        abstract void reset();
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /** Nothing set: a read/write thread pair per connection */
+    static final Mode THREADS = new Mode("threads")
+    {
+        void set()
+        {
+            /* the default */;
+        }
+
+        void reset()
+        {
+            /* the default */;
+        }
+    };
+
+    /**
+     * The connections serviced by the {@link Reactor}.
+     *
+     * @see Stack#setReactorThreads(int)
+     */
+    static final Mode REACTOR = new Mode("reactor")
+    {
+        void set()
+        {
+            Stack.setReactorThreads(2);
+        }
+
+        void reset()
+        {
+            Stack.setReactorThreads(0);
+        }
+    };
+
+    /**
+     * The connection and accept loops on virtual threads (platform threads
+     * on JVMs that do not have them).
+     *
+     * @see Stack#setVirtualThreads(boolean)
+     */
+    static final Mode VIRTUAL_THREADS = new Mode("virtual threads")
+    {
+        void set()
+        {
+            Stack.setVirtualThreads(true);
+        }
+
+        void reset()
+        {
+            Stack.setVirtualThreads(false);
+        }
+    };
+
+    /**
+     * The outgoing data written by gathering writes instead of being copied
+     * into the output array of the connection.
+     *
+     * @see Stack#setGatheringWrites(boolean)
+     */
+    static final Mode GATHERING_WRITES = new Mode("gathering writes")
+    {
+        void set()
+        {
+            Stack.setGatheringWrites(true);
+        }
+
+        void reset()
+        {
+            Stack.setGatheringWrites(false);
+        }
+    };
+
+    /**
+     * Received file data stored by the write-behind stage of the connection.
+     * The queue is kept small, so that the larger transfers also pause and
+     * resume reading.
+     *
+     * @see Stack#setWriteBehindBytes(int)
+     */
+    static final Mode WRITE_BEHIND = new Mode("write-behind")
+    {
+        void set()
+        {
+            Stack.setWriteBehindBytes(64 * 1024);
+        }
+
+        void reset()
+        {
+            Stack.setWriteBehindBytes(0);
+        }
+    };
+
+    private final Mode mode;
+
+    public TestStackModes(Mode mode)
+    {
+        this.mode = mode;
+    }
+
+    @Parameters
+    public static Collection<Object[]> modes()
+    {
+        return Arrays.asList(new Object[][] {
+            { REACTOR }, { VIRTUAL_THREADS }, { GATHERING_WRITES },
+            { WRITE_BEHIND }
+        });
+    }
+
+    @Before
+    public void setUpMode()
+    {
+        mode.set();
+    }
+
+    @After
+    public void tearDownMode()
+    {
+        mode.reset();
+    }
+
+    /**
+     * A connection the peer closed is reported lost, and closed, by the
+     * reactor.
+     */
+    @Test
+    public void testPeerClosed() throws Exception
+    {
+        Assume.assumeTrue(mode == REACTOR);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+        final Throwable[] lost = new Throwable[1];
+        Session session = Session.create(false, false, address);
+        MockSessionListener listener = new MockSessionListener("closedPeer")
+        {
+            @Override
+            public void connectionLost(Session session, Throwable cause)
+            {
+                synchronized (lost)
+                {
+                    lost[0] = cause;
+                    lost.notifyAll();
+                }
+                session.tearDown();
+            }
+        };
+        listener.setAcceptHookResult(Boolean.TRUE);
+        session.setListener(listener);
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://" + address.getHostAddress() + ":" +
+            server.socket().getLocalPort() + "/closing;tcp"));
+        session.setToPath(toPath);
+        Connection connection = session.getConnection();
+        server.accept().close();
+        server.close();
+
+        synchronized (lost)
+        {
+            long end = System.currentTimeMillis() + 5000;
+            while (lost[0] == null && System.currentTimeMillis() < end)
+                lost.wait(100);
+        }
+        assertTrue("Connection loss not reported",
+                   lost[0] instanceof EOFException);
+        assertFalse(connection.getSocketChannel().isOpen());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.Test;
+
+/**
+ * Tests recognising the start line of incoming transactions.
+ *
+ * @see StartLine
+ */
+public class TestStartLine
+{
+    private static StartLine parse(String data)
+    {
+        byte[] bytes = data.getBytes(TextUtils.utf8);
+        return StartLine.parse(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testRequest()
+    {
+        String data = "MSRP a786hjs2 SEND\r\nTo-Path: msrp://";
+        StartLine line = parse(data);
+        assertNotNull(line);
+        assertTrue(line.isRequest());
+        assertEquals("a786hjs2", line.getTid());
+        assertEquals(TransactionType.SEND, line.getType());
+        assertEquals("SEND", line.getMethod());
+        assertEquals(data.indexOf("To-Path"), line.getEnd());
+    }
+
+    @Test
+    public void testResponse()
+    {
+        StartLine line = parse("MSRP d93kswow 200 OK\r\n");
+        assertNotNull(line);
+        assertFalse(line.isRequest());
+        assertEquals("d93kswow", line.getTid());
+        assertEquals(200, line.getStatus());
+        assertEquals(" OK", line.getComment());
+
+        line = parse("MSRP d93k-s.w+o=w% 481\r\n");
+        assertNotNull(line);
+        assertEquals("d93k-s.w+o=w%", line.getTid());
+        assertEquals(481, line.getStatus());
+        assertEquals("", line.getComment());
+    }
+
+    @Test
+    public void testUnsupportedMethod()
+    {
+        StartLine line = parse("MSRP a786hjs2 AUTH\r\n");
+        assertNotNull(line);
+        assertTrue(line.isRequest());
+        assertEquals(TransactionType.UNSUPPORTED, line.getType());
+        assertEquals("AUTH", line.getMethod());
+
+        /* no method, even if a transaction type */
+        assertEquals(TransactionType.UNSUPPORTED,
+                parse("MSRP a786hjs2 RESPONSE\r\n").getType());
+        assertEquals(TransactionType.UNSUPPORTED,
+                parse("MSRP a786hjs2 SENDS\r\n").getType());
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        assertNull(parse("MSRP abc SEND\r\n"));				// tid too short
+        assertNull(parse("MSRP -bcd SEND\r\n"));				// tid start
+        assertNull(parse(
+            "MSRP 0123456789012345678901234567890123 SEND\r\n"));	// too long
+        assertNull(parse("MSRP a786hjs2 send\r\n"));
+        assertNull(parse("MSRP a786hjs2 SEND\n"));
+        assertNull(parse("MSRP a786hjs2  SEND\r\n"));
+        assertNull(parse("MSRP a786hjs2 20 OK\r\n"));
+        assertNull(parse("MSRP a786hjs2 200 OK\n\r\n"));
+        assertNull(parse("msrp a786hjs2 SEND\r\n"));
+        assertNull(parse(" MSRP a786hjs2 SEND\r\n"));
+    }
+
+    @Test
+    public void testIncomplete()
+    {
+        String data = "MSRP a786hjs2 SEND\r\n";
+        for (int i = 0; i < data.length(); i++)
+            assertNull("Accepted " + i + " bytes",
+                       parse(data.substring(0, i)));
+        assertNotNull(parse(data));
+    }
+
+    @Test
+    public void testAtOffset()
+    {
+        byte[] data = ("-------a786hjs2$\r\nMSRP 8jd83b2a 200 OK\r\n" +
+                       "To-Path: x").getBytes(TextUtils.utf8);
+        int offset = 18;
+        assertNull(StartLine.parse(data, 0, data.length));
+        StartLine line = StartLine.parse(data, offset, data.length);
+        assertNotNull(line);
+        assertEquals("8jd83b2a", line.getTid());
+        assertEquals(data.length - "To-Path: x".length(), line.getEnd());
+        /* the limit is respected */
+        assertNull(StartLine.parse(data, offset, line.getEnd() - 1));
+    }
+}
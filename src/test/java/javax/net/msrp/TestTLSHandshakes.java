@@ -0,0 +1,197 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.junit.*;
+
+/**
+ * Tests resuming TLS sessions and compares the throughput of full TLS
+ * handshakes with that of resumed ones (a {@link Benchmark}), connecting
+ * {@link SecureChannel}s over the loopback interface. A full
+ * handshake is forced by creating the engine without the peer, which keeps
+ * the client session cache from being used.
+ *
+ * @see Stack#setSSLContext(SSLContext)
+ */
+public class TestTLSHandshakes
+{
+    private static final int WARMUP = 200;
+
+    private static final int RUNS = 300;
+
+    private SSLContext context;
+
+    private ServerSocketChannel server;
+
+    private InetSocketAddress serverAddress;
+
+    private Thread acceptor;
+
+    private ExecutorService reader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        context = TestSecureSessions.testContext();
+        server = ServerSocketChannel.open();
+        server.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        serverAddress = (InetSocketAddress) server.socket().getLocalSocketAddress();
+        reader = Executors.newSingleThreadExecutor();
+        acceptor = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                        echo(server.accept());
+                }
+                catch (IOException e)
+                {
+                    /* server closed, done */;
+                }
+            }
+        }, "TLS echo server");
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.close();
+        acceptor.join();
+        reader.shutdownNow();
+        Benchmark.end();
+    }
+
+    /**
+     * Echo one byte on the accepted connection, then wait for it to close.
+     */
+    private void echo(SocketChannel socket) throws IOException
+    {
+        socket.socket().setTcpNoDelay(true);
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SecureChannel channel = new SecureChannel(socket, engine);
+        try
+        {
+            ByteBuffer in = ByteBuffer.allocate(1);
+            if (channel.read(in) == 1)
+            {
+                in.flip();
+                channel.write(in);
+                in.clear();
+                while (channel.read(in) >= 0)
+                    in.clear();
+            }
+        }
+        catch (IOException e)
+        {
+            /* client gone, next */;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Connect, handshake and have one byte echoed.
+     * 
+     * @param resume let the engine resume a cached session.
+     * @return the TLS session used.
+     */
+    private SSLSession connect(boolean resume) throws Exception
+    {
+        SocketChannel socket = SocketChannel.open(serverAddress);
+        socket.socket().setTcpNoDelay(true);
+        SSLEngine engine = resume ?
+            context.createSSLEngine(serverAddress.getAddress().getHostAddress(),
+                                    serverAddress.getPort()) :
+            context.createSSLEngine();
+        engine.setUseClientMode(true);
+        final SecureChannel channel = new SecureChannel(socket, engine);
+        try
+        {
+            Future<Integer> echoed = reader.submit(new Callable<Integer>()
+            {
+                public Integer call() throws IOException
+                {
+                    return channel.read(ByteBuffer.allocate(1));
+                }
+            });
+            channel.write(ByteBuffer.wrap(new byte[] { 42 }));
+            assertEquals(1, echoed.get().intValue());
+            return channel.getSession();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return handshakes per second over the given number of connections.
+     */
+    private double handshakes(boolean resume, int runs) throws Exception
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            connect(resume);
+        return runs * 1e9 / (System.nanoTime() - start);
+    }
+
+    @Test
+    public void testResumedHandshake() throws Exception
+    {
+        SSLSession first = connect(true);
+        SSLSession again = connect(true);
+        assertEquals("Session not resumed",
+            first.getCreationTime(), again.getCreationTime());
+    }
+
+    @Test
+    public void testHandshakeRates() throws Exception
+    {
+        Benchmark.begin();
+        handshakes(false, WARMUP);
+        handshakes(true, WARMUP);
+        double fullRate = handshakes(false, RUNS);
+        double resumedRate = handshakes(true, RUNS);
+        System.out.println(String.format(
+            "TLS handshakes over %d connections: full %.0f/s, resumed %.0f/s",
+            RUNS, fullRate, resumedRate));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Test the timer wheel timing out transactions, and measure scheduling and
+ * cancelling timeouts (a {@link Benchmark}).
+ */
+public class TestTimerWheel
+{
+    @Test
+    public void testFires() throws Exception
+    {
+        TimerWheel wheel = new TimerWheel(10, 64);
+        int count = 10000;
+        final CountDownLatch fired = new CountDownLatch(count);
+        final AtomicLong early = new AtomicLong();
+        for (int i = 0; i < count; i++)
+        {
+            final long delay = i % 500;
+            final long start = System.nanoTime();
+            wheel.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                                            System.nanoTime() - start);
+                        if (elapsed < delay - 1)
+                            early.incrementAndGet();
+                        fired.countDown();
+                    }
+                }, delay);
+        }
+        assertTrue("Not all fired", fired.await(5, TimeUnit.SECONDS));
+        assertEquals("Fired early", 0, early.get());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void testRounds() throws Exception
+    {
+        TimerWheel wheel = new TimerWheel(10, 4);	/* one turn = 40 ms */
+        final CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    fired.countDown();
+                }
+            }, 200);
+        assertTrue("Not fired", fired.await(2, TimeUnit.SECONDS));
+        long elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Fired after " + elapsed + " ms", elapsed >= 199);
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        TimerWheel wheel = new TimerWheel(10, 64);
+        final AtomicBoolean fired = new AtomicBoolean();
+        TimerWheel.Timeout timeout = wheel.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    fired.set(true);
+                }
+            }, 50);
+        assertEquals(1, wheel.getPending());
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, wheel.getPending());
+        Thread.sleep(200);
+        assertFalse("Cancelled timeout fired", fired.get());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void testEndsWhenIdle() throws Exception
+    {
+        TimerWheel wheel = new TimerWheel(10, 64);
+        final CountDownLatch fired = new CountDownLatch(2);
+        Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    fired.countDown();
+                }
+            };
+        wheel.schedule(task, 20);
+        Thread.sleep(200);
+        assertEquals(1, fired.getCount());
+        assertFalse("Still running when idle", wheel.isRunning());
+
+        wheel.schedule(task, 20);
+        assertTrue("Not started again", fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStop() throws Exception
+    {
+        TimerWheel wheel = new TimerWheel(10, 64);
+        final CountDownLatch fired = new CountDownLatch(2);
+        Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    fired.countDown();
+                }
+            };
+        wheel.schedule(task, 100);
+        wheel.stop();
+        assertFalse(wheel.isRunning());
+        Thread.sleep(200);
+        assertEquals("Fired when stopped", 2, fired.getCount());
+        assertEquals(1, wheel.getPending());
+
+        wheel.schedule(task, 0);
+        assertTrue("Pending timeout lost", fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSpeed()
+    {
+        Benchmark.assumeEnabled();
+        TimerWheel wheel = new TimerWheel(100, 512);
+        Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    fail("Fired");
+                }
+            };
+        int count = 1000000;
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[count];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            timeouts[i] = wheel.schedule(task, 60000 + i % 30000);
+        long scheduled = System.nanoTime() - start;
+        assertEquals(count, wheel.getPending());
+
+        start = System.nanoTime();
+        for (TimerWheel.Timeout timeout : timeouts)
+            timeout.cancel();
+        long cancelled = System.nanoTime() - start;
+        assertEquals(0, wheel.getPending());
+        System.out.printf("Timer wheel: schedule %d ns, cancel %d ns\n",
+            scheduled / count, cancelled / count);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Tests a burst of small SENDs to a (raw socket) peer on the loopback
+ * interface with write coalescing, and compares the writes needed with and
+ * without it (a {@link Benchmark}).
+ *
+ * @see Stack#setCoalesceMicros(int)
+ */
+public class TestWriteCoalescing
+{
+    private static final int MESSAGES = 1000;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = ServerSocketChannel.open();
+        server.socket().bind(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Stack.setCoalesceMicros(0);
+        Stack.setTcpNoDelay(false);
+        server.close();
+        Benchmark.end();
+    }
+
+    private void connect() throws Exception
+    {
+        session = Session.create(false, false,
+                InetAddress.getByName("127.0.0.1"));
+        session.setListener(new MockSessionListener("coalesceListener"));
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/coalesce;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+    }
+
+    private void disconnect() throws IOException
+    {
+        session.tearDown();
+        peer.close();
+    }
+
+    /**
+     * Read from the peer socket until the given number of end-lines was
+     * received.
+     */
+    private void awaitEndLines(int count) throws IOException
+    {
+        int found = 0;
+        byte previous = 0, beforePrevious = 0;
+        while (found < count)
+        {
+            in.clear();
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            for (int i = 0; i < in.position(); i++)
+            {
+                byte current = in.get(i);
+                if (beforePrevious == '$' && previous == '\r' && current == '\n')
+                    found++;
+                beforePrevious = previous;
+                previous = current;
+            }
+        }
+    }
+
+    /**
+     * @return the number of writes to send the burst of messages.
+     */
+    private long sendBurst() throws Exception
+    {
+        connect();
+        awaitEndLines(1);			// the initial bodiless SEND
+        byte[] content = "a short chat message".getBytes(TextUtils.utf8);
+        long before = session.getConnection().getWriteCount();
+        for (int i = 0; i < MESSAGES; i++)
+            session.sendMessage("text/plain", content);
+        awaitEndLines(MESSAGES);
+        long writes = session.getConnection().getWriteCount() - before;
+        disconnect();
+        return writes;
+    }
+
+    @Test
+    public void testCoalescedBurst() throws Exception
+    {
+        Stack.setCoalesceMicros(2000);
+        long writes = sendBurst();
+        assertTrue(writes > 0 && writes <= MESSAGES);
+    }
+
+    @Test
+    public void testCoalescedWrites() throws Exception
+    {
+        Benchmark.begin();
+        long plain = sendBurst();
+
+        Stack.setCoalesceMicros(2000);
+        long coalesced = sendBurst();
+
+        System.out.println(String.format(
+                "writes for %d small SENDs: %d plain, %d coalesced",
+                MESSAGES, plain, coalesced));
+        assertTrue("Coalescing did not halve the writes: " + plain +
+                " plain, " + coalesced + " coalesced", coalesced * 2 < plain);
+    }
+
+    @Test
+    public void testTcpNoDelay() throws Exception
+    {
+        Stack.setTcpNoDelay(true);
+        connect();
+        assertTrue(session.getConnection().getTcpNoDelay());
+        session.setTcpNoDelay(false);
+        assertFalse(session.getConnection().getTcpNoDelay());
+        disconnect();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.net.msrp.testutils.MockSessionListener;
+import javax.net.msrp.utils.TextUtils;
+
+import org.junit.*;
+
+/**
+ * Measures the time between queueing a small SEND and its last byte
+ * arriving at a (raw socket) peer on the loopback interface (a
+ * {@link Benchmark}).
+ * <P>
+ * With the former 200 ms polling of the write cycle, a wakeup racing with the
+ * has-data check showed up as a 200 ms outlier.
+ */
+public class TestWriteLatency
+{
+    private static final int WARMUP = 5000;
+
+    private static final int RUNS = 2000;
+
+    /**
+     * p99 bound in microseconds. On a single CPU every hand-over between the
+     * sending thread and the write cycle costs a full scheduler switch, so
+     * only guard against polling delays there.
+     */
+    private static final long MAX_P99 =
+        Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 20000;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel peer;
+
+    private Session session;
+
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+    @BeforeClass
+    public static void assumeBenchmark()
+    {
+        Benchmark.assumeEnabled();
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Benchmark.begin();
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(address, 0));
+
+        session = Session.create(false, false, address);
+        session.setListener(new MockSessionListener("latencyListener"));
+        ArrayList<URI> toPath = new ArrayList<URI>();
+        toPath.add(new URI("msrp://127.0.0.1:" +
+                server.socket().getLocalPort() + "/latency;tcp"));
+        session.setToPath(toPath);
+        peer = server.accept();
+        awaitEndLine();					// the initial bodiless SEND
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        session.tearDown();
+        peer.close();
+        server.close();
+        Benchmark.end();
+    }
+
+    /**
+     * Read from the peer socket until a complete end-line was received.
+     */
+    private void awaitEndLine() throws IOException
+    {
+        int scanned = 0;
+        in.clear();
+        while (true)
+        {
+            if (peer.read(in) < 0)
+                fail("Connection closed by the stack");
+            for (int i = scanned; i < in.position() - 2; i++)
+            {
+                byte flag = in.get(i);
+                if ((flag == '$' || flag == '+' || flag == '#') &&
+                    in.get(i + 1) == '\r' && in.get(i + 2) == '\n')
+                    return;
+            }
+            scanned = Math.max(0, in.position() - 2);
+        }
+    }
+
+    @Test
+    public void testSmallSendToWireLatency() throws IOException
+    {
+        byte[] content = "latency probe".getBytes(TextUtils.utf8);
+        long[] latency = new long[RUNS];
+
+        for (int i = 0; i < WARMUP + RUNS; i++)
+        {
+            long start = System.nanoTime();
+            session.sendMessage("text/plain", content);
+            awaitEndLine();
+            if (i >= WARMUP)
+                latency[i - WARMUP] = System.nanoTime() - start;
+        }
+        Arrays.sort(latency);
+        long p50 = latency[RUNS / 2];
+        long p99 = latency[RUNS * 99 / 100];
+        System.out.println(String.format(
+                "send-to-wire latency over %d SENDs: p50 %d us, p99 %d us, max %d us",
+                RUNS, p50 / 1000, p99 / 1000, latency[RUNS - 1] / 1000));
+        assertTrue("p99 send-to-wire latency too high: " + p99 / 1000 + " us",
+                p99 / 1000 < MAX_P99);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.net.msrp.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Tests the word-at-a-time byte scanning against a plain loop, and compares
+ * their speed on 64 KB bodies (a {@link Benchmark}).
+ *
+ * @see ByteScanner
+ */
+public class TestByteScanner
+{
+    private static final int BODYSIZE = 64 * 1024;
+
+    private static final int RUNS = 5000;
+
+    private Random random = new Random(4975);
+
+    private static int loopIndexOf(byte[] data, int from, int to, byte value)
+    {
+        for (int i = from; i < to; i++)
+            if (data[i] == value)
+                return i;
+        return -1;
+    }
+
+    @Test
+    public void testIndexOf()
+    {
+        byte[] data = new byte[300];
+        for (int run = 0; run < 2000; run++)
+        {
+            random.nextBytes(data);
+            byte value = (byte) random.nextInt(256);
+            int from = random.nextInt(data.length);
+            int to = from + random.nextInt(data.length - from + 1);
+            assertEquals(loopIndexOf(data, from, to, value),
+                         ByteScanner.indexOf(data, from, to, value));
+        }
+    }
+
+    @Test
+    public void testIndexOfBorrow()
+    {
+        /* a borrow from a matching byte must not hide or fake a match */
+        byte[] data = new byte[64];
+        Arrays.fill(data, (byte) '\r');
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) '\f';
+            assertEquals(i, ByteScanner.indexOf(data, 0, data.length,
+                                                (byte) '\f'));
+            data[i] = (byte) ('\r' + 1);
+            assertEquals(i, ByteScanner.indexOf(data, 0, data.length,
+                                                (byte) ('\r' + 1)));
+            data[i] = (byte) '\r';
+        }
+        Arrays.fill(data, (byte) 0x80);
+        data[40] = 0;
+        assertEquals(40, ByteScanner.indexOf(data, 0, data.length, (byte) 0));
+        assertEquals(-1, ByteScanner.indexOf(data, 41, data.length, (byte) 0));
+    }
+
+    @Test
+    public void testIndexOfCrlf()
+    {
+        byte[] data = "\r\r abc\n\r\rdef\r\n".getBytes(TextUtils.usascii);
+        assertEquals(data.length - 2,
+                     ByteScanner.indexOfCrlf(data, 0, data.length));
+        assertEquals(-1, ByteScanner.indexOfCrlf(data, 0, data.length - 1));
+        assertEquals(-1, ByteScanner.indexOfCrlf(data, 0, 0));
+    }
+
+    @Test
+    public void testBodyScanSpeed()
+    {
+        Benchmark.assumeEnabled();
+        byte[] text = new byte[BODYSIZE];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + random.nextInt(26));
+        byte[] binary = new byte[BODYSIZE];
+        random.nextBytes(binary);
+
+        for (byte[] body : new byte[][] { text, binary })
+        {
+            for (int run = 0; run < RUNS; run++)	// warm up
+                assertEquals(scanLoop(body), scanWords(body));
+            long found = 0;
+            long start = System.nanoTime();
+            for (int run = 0; run < RUNS; run++)
+                found += scanLoop(body);
+            long loop = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int run = 0; run < RUNS; run++)
+                found -= scanWords(body);
+            long words = System.nanoTime() - start;
+            assertEquals(0, found);
+            System.out.println(String.format(
+                "CR scan over %s 64 KB: byte loop %d us, words %d us",
+                body == text ? "text" : "binary", loop / RUNS / 1000,
+                words / RUNS / 1000));
+        }
+    }
+
+    /** @return the number of CRs in the body */
+    private static int scanLoop(byte[] body)
+    {
+        int count = 0;
+        int i = 0;
+        while ((i = loopIndexOf(body, i, body.length, (byte) '\r')) >= 0)
+        {
+            count++;
+            i++;
+        }
+        return count;
+    }
+
+    private static int scanWords(byte[] body)
+    {
+        int count = 0;
+        int i = 0;
+        while ((i = ByteScanner.indexOf(body, i, body.length, (byte) '\r')) >= 0)
+        {
+            count++;
+            i++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright � Jo�o Antunes 2008 This file is part of MSRP Java Stack.
+ * 
+ * MSRP Java Stack is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * MSRP Java Stack is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MSRP Java Stack. If not, see <http://www.gnu.org/licenses/>.
+ */
+package javax.net.msrp.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.UUID;
+
+import javax.net.msrp.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Tests the identifiers generated, and compares their speed with the UUIDs
+ * message-ids were made of, from many threads at once (a {@link Benchmark}).
+ *
+ * @see IdGenerator
+ */
+public class TestIdGenerator
+{
+    private static final int THREADS = 4;
+
+    private static final int IDS = 250000;
+
+    @Test
+    public void testAlphanumeric()
+    {
+        IdGenerator generator = new IdGenerator(64);
+        assertEquals(11, generator.getLength());
+        assertTrue(generator.getBits() >= 64);
+        for (int i = 0; i < 10000; i++)
+        {
+            String id = generator.next();
+            assertEquals(11, id.length());
+            for (int j = 0; j < id.length(); j++)
+                assertTrue(id, Character.isLetterOrDigit(id.charAt(j)) &&
+                                id.charAt(j) < 128);
+        }
+        assertEquals(22, IdGenerator.MESSAGE.next().length());
+        assertEquals(14, IdGenerator.SESSION.next().length());
+    }
+
+    @Test
+    public void testSources()
+    {
+        assertTrue(IdGenerator.SESSION.isSecure());
+        assertTrue(IdGenerator.MESSAGE.isSecure());
+        assertFalse(IdGenerator.TRANSACTION.isSecure());
+        assertTrue(new IdGenerator(64).isSecure());
+
+        IdGenerator secure = new IdGenerator(64, true);
+        IdGenerator fast = new IdGenerator(64, false);
+        HashSet<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++)
+        {
+            assertTrue(ids.add(secure.next()));
+            assertTrue(ids.add(fast.next()));
+        }
+    }
+
+    @Test
+    public void testBits()
+    {
+        IdGenerator generator = new IdGenerator(64);
+        generator.setBits(190);
+        assertEquals(32, generator.next().length());
+        for (int bits : new int[] { 16, 191 })
+        {
+            try
+            {
+                generator.setBits(bits);
+                fail(bits + " bits accepted");
+            }
+            catch (IllegalArgumentException e)
+            {
+                /* expected */;
+            }
+        }
+        assertEquals(32, generator.getLength());
+    }
+
+    @Test
+    public void testUnique() throws Exception
+    {
+        final HashSet<String> ids = new HashSet<String>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    String[] generated = new String[IDS];
+                    for (int j = 0; j < IDS; j++)
+                        generated[j] = IdGenerator.TRANSACTION.next();
+                    synchronized (ids)
+                    {
+                        for (String id : generated)
+                            ids.add(id);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(THREADS * IDS, ids.size());
+    }
+
+    @Test
+    public void testSpeed() throws Exception
+    {
+        Benchmark.assumeEnabled();
+        for (int warm = 0; warm < 2; warm++)
+        {
+            long uuids = run(new Runnable()
+                {
+                    public void run()
+                    {
+                        for (int i = 0; i < IDS; i++)
+                        {
+                            UUID id = UUID.randomUUID();
+                            Long.toHexString(id.getMostSignificantBits());
+                            Long.toHexString(id.getLeastSignificantBits());
+                        }
+                    }
+                });
+            long generated = run(new Runnable()
+                {
+                    public void run()
+                    {
+                        for (int i = 0; i < IDS; i++)
+                            IdGenerator.MESSAGE.next();
+                    }
+                });
+            if (warm == 1)
+                System.out.println(String.format(
+                    "Message-ids from %d threads: UUID %d ns, base62 %d ns",
+                    THREADS, uuids / IDS, generated / IDS));
+        }
+    }
+
+    /** @return the time taken by the given task on all threads at once */
+    private static long run(Runnable task) throws InterruptedException
+    {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+            threads[i] = new Thread(task);
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        return System.nanoTime() - start;
+    }
+}